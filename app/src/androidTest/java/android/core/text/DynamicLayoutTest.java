@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import android.text.TextPaint;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicLayoutTest {
+    private static final String[] INSERTS = {"", "x", "\n", "a\nb", "\n\n",
+            "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor ",
+            "wrapped line that is much wider than the layout so it takes several rows\n"};
+
+    /**
+     * Compare with counting the real line starts from the first layout line, as the layout did
+     * before it kept the running count.
+     */
+    private static void assertMatchesLinearScan(DynamicLayout layout, CharSequence text) {
+        int count = layout.getLineCount();
+        int realLine = 0;
+        int lineStart = 0;
+        for (int i = 0; i < count; i++) {
+            if (layout.isRealNewLine(i)) {
+                realLine++;
+                assertEquals(realLine, layout.getRealLine(i));
+                assertEquals(i, layout.realLineToVirtualLine(realLine));
+                // 真实行从上一个 \n 后面开始
+                assertEquals(lineStart, layout.getLineStart(i));
+                lineStart = TextUtils.indexOf(text, '\n', lineStart) + 1;
+            } else {
+                assertEquals(0, layout.getRealLine(i));
+            }
+        }
+        assertEquals(0, lineStart);
+        assertEquals(-1, layout.realLineToVirtualLine(realLine + 1));
+        assertEquals(-1, layout.realLineToVirtualLine(count + 1));
+    }
+
+    @Test
+    public void realLinesAfterWrappedEdits() {
+        SpannableStringBuilder text = new SpannableStringBuilder(INSERTS[5] + "\n" + INSERTS[6] + "end");
+        DynamicLayout layout = new DynamicLayout(new LayoutContext(), text, new TextPaint(), 200,
+                Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+        assertMatchesLinearScan(layout, text);
+
+        Random random = new Random(1);
+        boolean wrapped = false;
+        for (int i = 0; i < 500; i++) {
+            int start = random.nextInt(text.length() + 1);
+            // 删除的比插入的少一些，文本慢慢变长
+            int end = Math.min(text.length(), start + random.nextInt(60));
+            text.replace(start, end, INSERTS[random.nextInt(INSERTS.length)]);
+            assertMatchesLinearScan(layout, text);
+            wrapped |= layout.getLineCount() > countLines(text);
+        }
+        assertTrue(wrapped);
+    }
+
+    private static int countLines(CharSequence text) {
+        int lines = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n')
+                lines++;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import org.junit.Test;
+
+import java.nio.CharBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RopeTest {
+
+    @Test
+    public void randomEdits() {
+        Random random = new Random(1);
+        char[] text = randomChars(random, 100000);
+        StringBuilder expected = new StringBuilder(new String(text));
+        Rope rope = Rope.wrap(text, 0, text.length);
+        Rope snapshot = rope;
+        String snapshotText = expected.toString();
+
+        for (int i = 0; i < 5000; i++) {
+            int start = random.nextInt(expected.length() + 1);
+            int end = Math.min(expected.length(), start + random.nextInt(random.nextInt(50) == 0 ? 10000 : 4));
+            String insert = new String(randomChars(random, random.nextInt(20) == 0 ? 9000 : random.nextInt(3)));
+            rope = rope.replace(start, end, insert, 0, insert.length());
+            expected.replace(start, end, insert);
+
+            assertEquals(expected.length(), rope.length());
+            int index = random.nextInt(expected.length());
+            assertEquals(expected.charAt(index), rope.charAt(index));
+        }
+        assertEquals(expected.toString(), rope.toString());
+        // 每个节点左右高度差不超过 1，高度不超过 1.44 log2(n)
+        int leaves = rope.getCharBuffers().length;
+        assertTrue(rope.height() <= 1.45 * Math.log(leaves + 2) / Math.log(2));
+        assertEquals(snapshotText, snapshot.toString());
+    }
+
+    @Test
+    public void ropeBuilderMatchesGapBuffer() {
+        Random random = new Random(2);
+        String text = new String(randomChars(random, 20000));
+        SpannableStringBuilder gap = new SpannableStringBuilder(text);
+        SpannableStringBuilder rope = SpannableStringBuilder.ropeOf(text);
+        assertTrue(rope.isRope());
+
+        for (int i = 0; i < 2000; i++) {
+            int start = random.nextInt(gap.length() + 1);
+            int end = Math.min(gap.length(), start + random.nextInt(5));
+            String insert = new String(randomChars(random, random.nextInt(5)));
+            gap.replace(start, end, insert);
+            rope.replace(start, end, insert);
+        }
+        assertEquals(gap.toString(), rope.toString());
+
+        SpannableStringBuilder copy = new SpannableStringBuilder(rope, 100, 5000);
+        assertTrue(copy.isRope());
+        assertEquals(gap.toString().substring(100, 5000), copy.toString());
+    }
+
+    @Test
+    public void latin1ChunksInflateOnWideChars() {
+        Random random = new Random(3);
+        char[] text = randomChars(random, 3 * Rope.MAX_LEAF);
+        Rope rope = Rope.wrap(text, 0, text.length);
+        for (CharBuffer buffer : rope.getCharBuffers()) {
+            assertFalse(buffer.hasArray());
+        }
+
+        StringBuilder expected = new StringBuilder(new String(text));
+        rope = rope.replace(10, 12, "\u4e2d\u6587", 0, 2);
+        expected.replace(10, 12, "\u4e2d\u6587");
+        rope = rope.replace(5000, 5000, "\u00e9", 0, 1);
+        expected.insert(5000, "\u00e9");
+        assertEquals(expected.toString(), rope.toString());
+
+        StringBuilder written = new StringBuilder();
+        for (CharBuffer buffer : rope.getCharBuffers()) {
+            written.append(buffer);
+        }
+        assertEquals(expected.toString(), written.toString());
+        assertEquals('\u4e2d', rope.charAt(10));
+        assertEquals('\u00e9', rope.charAt(5000));
+    }
+
+    private static char[] randomChars(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = random.nextInt(40) == 0 ? '\n' : (char) ('a' + random.nextInt(26));
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.LineBackgroundSpan;
+import android.text.style.MetricAffectingSpan;
+import android.text.style.ParagraphStyle;
+import android.util.Log;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cost of span queries while drawing and of edits with a highlighted document of
+ * 10k, 100k and 1M spans. Results go to logcat with the tag below.
+ */
+public class SpannableStringBuilderBenchmark {
+    private static final String TAG = "SSBBenchmark";
+    private static final int LINE_LENGTH = 80;
+    private static final int TOKEN_LENGTH = 4;
+    private static final int SCREEN_LINES = 60;
+
+    @Test
+    public void spans10k() {
+        run(10000);
+    }
+
+    @Test
+    public void spans100k() {
+        run(100000);
+    }
+
+    @Test
+    public void spans1m() {
+        run(1000000);
+    }
+
+    private static void run(int spanCount) {
+        int length = spanCount * TOKEN_LENGTH;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (i + 1) % LINE_LENGTH == 0 ? '\n' : (char) ('a' + i % 26);
+        }
+        SpannableStringBuilder text = new SpannableStringBuilder(new String(chars));
+
+        long t = System.nanoTime();
+        for (int i = 0; i < spanCount; i++) {
+            text.setSpan(new ForegroundColorSpan(i), i * TOKEN_LENGTH, (i + 1) * TOKEN_LENGTH, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        long highlight = System.nanoTime() - t;
+
+        int middle = length / 2 / LINE_LENGTH * LINE_LENGTH;
+        int frames = 20;
+        int found = 0;
+        t = System.nanoTime();
+        for (int f = 0; f < frames; f++) {
+            found = drawScreen(text, middle);
+        }
+        long draw = (System.nanoTime() - t) / frames;
+        assertEquals(SCREEN_LINES * LINE_LENGTH / TOKEN_LENGTH, found);
+
+        int edits = 100;
+        t = System.nanoTime();
+        for (int i = 0; i < edits; i++) {
+            text.insert(middle + 1, "x");
+            text.delete(middle + 1, middle + 2);
+        }
+        long edit = (System.nanoTime() - t) / (2 * edits);
+
+        Log.i(TAG, spanCount + " spans: highlight " + highlight / 1000000 + " ms, frame " + draw / 1000 + " us, edit " + edit / 1000 + " us");
+    }
+
+    /**
+     * The span queries Layout.drawBackground, Layout.drawText and TextLine make for one screen
+     * of lines.
+     *
+     * @return the number of color spans seen
+     */
+    private static int drawScreen(SpannableStringBuilder text, int start) {
+        int found = 0;
+        text.getSpans(0, text.length(), LineBackgroundSpan.class);
+        for (int line = 0; line < SCREEN_LINES; line++) {
+            int lineStart = start + line * LINE_LENGTH;
+            int lineEnd = lineStart + LINE_LENGTH;
+            text.getSpans(lineStart, lineEnd, ParagraphStyle.class);
+            text.nextSpanTransition(lineStart, lineEnd, MetricAffectingSpan.class);
+            for (int i = lineStart, next; i < lineEnd; i = next) {
+                next = text.nextSpanTransition(i, lineEnd, ForegroundColorSpan.class);
+                found += text.getSpans(i, next, ForegroundColorSpan.class).length;
+            }
+        }
+        return found;
+    }
+}
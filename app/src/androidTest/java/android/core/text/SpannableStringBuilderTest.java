@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SpannableStringBuilderTest {
+    private static final String TEXT = "0123456789abcdefghij";
+
+    private static class Base {
+    }
+
+    private static class Derived extends Base {
+    }
+
+    private interface Marker {
+    }
+
+    private static class Marked implements Marker {
+    }
+
+    private static final Class<?>[] KINDS = {Object.class, Base.class, Derived.class, Marker.class, Marked.class};
+
+    @Test
+    public void firstSpanMovedPastNeighbours() {
+        for (SpannableStringBuilder ssb : builders()) {
+            Object x = new Object(), y = new Object(), z = new Object();
+            ssb.setSpan(x, 0, 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(y, 2, 3, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(z, 4, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(x, 10, 11, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            assertEquals(10, ssb.getSpanStart(x));
+            assertEquals(2, ssb.getSpanStart(y));
+            assertArrayEquals(new Object[]{y, z}, ssb.getSpans(0, 6, Object.class));
+            assertArrayEquals(new Object[]{x}, ssb.getSpans(9, 12, Object.class));
+            assertEquals(10, ssb.nextSpanTransition(5, 20, Object.class));
+        }
+    }
+
+    @Test
+    public void spansAcrossReplaceAndDelete() {
+        for (SpannableStringBuilder ssb : builders()) {
+            Object exclusive = new Object(), inclusive = new Object(), point = new Object();
+            ssb.setSpan(exclusive, 3, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(inclusive, 3, 6, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            ssb.setSpan(point, 8, 8, Spanned.SPAN_POINT_POINT);
+
+            ssb.insert(3, "ab");
+            assertSpan(ssb, exclusive, 5, 8);
+            assertSpan(ssb, inclusive, 3, 8);
+            assertSpan(ssb, point, 10, 10);
+
+            ssb.replace(6, 7, "xyz");
+            assertSpan(ssb, exclusive, 5, 10);
+            assertSpan(ssb, point, 12, 12);
+
+            ssb.delete(0, 6);
+            assertSpan(ssb, exclusive, 0, 4);
+            assertSpan(ssb, inclusive, 0, 4);
+            assertSpan(ssb, point, 6, 6);
+
+            // 整个被删掉的 EXCLUSIVE_EXCLUSIVE span 会被移除
+            ssb.delete(0, 4);
+            assertSpan(ssb, exclusive, -1, -1);
+            assertSpan(ssb, inclusive, 0, 0);
+            assertArrayEquals(new Object[]{inclusive}, ssb.getSpans(0, 0, Object.class));
+        }
+    }
+
+    @Test
+    public void getSpansByKindAndOrder() {
+        for (SpannableStringBuilder ssb : builders()) {
+            Derived derived = new Derived();
+            Base base = new Base();
+            Marked marked = new Marked();
+            Base important = new Base();
+            ssb.setSpan(derived, 5, 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(base, 0, 8, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(marked, 7, 7, Spanned.SPAN_POINT_POINT);
+            ssb.setSpan(important, 12, 15, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE | (1 << Spanned.SPAN_PRIORITY_SHIFT));
+
+            // 优先级高的在前，其余按加入的顺序，跟位置无关
+            assertArrayEquals(new Object[]{important, derived, base, marked}, ssb.getSpans(0, 20, Object.class));
+            assertArrayEquals(new Base[]{important, derived, base}, ssb.getSpans(0, 20, Base.class));
+            assertArrayEquals(new Derived[]{derived}, ssb.getSpans(0, 20, Derived.class));
+            assertArrayEquals(new Marker[]{marked}, ssb.getSpans(0, 20, Marker.class));
+            assertEquals(0, ssb.getSpans(0, 20, String.class).length);
+
+            // 只碰到边界的不算，空的 span 和空的范围除外
+            assertArrayEquals(new Base[]{base}, ssb.getSpans(0, 5, Base.class));
+            assertArrayEquals(new Object[]{derived, base, marked}, ssb.getSpans(7, 7, Object.class));
+            assertArrayEquals(new Object[]{derived}, ssb.getSpans(8, 10, Object.class));
+
+            // 重新设置位置不改变加入的顺序，移除后再加入排到最后
+            ssb.setSpan(base, 16, 18, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            assertArrayEquals(new Base[]{important, derived, base}, ssb.getSpans(0, 20, Base.class));
+            ssb.removeSpan(derived);
+            ssb.setSpan(derived, 1, 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            assertArrayEquals(new Base[]{important, base, derived}, ssb.getSpans(0, 20, Base.class));
+
+            // 一种 span 全部移除后，它的桶也不再返回
+            ssb.removeSpan(marked);
+            assertEquals(0, ssb.getSpans(0, 20, Marker.class).length);
+            assertEquals(20, ssb.nextSpanTransition(0, 20, Marker.class));
+        }
+    }
+
+    @Test
+    public void nextSpanTransition() {
+        for (SpannableStringBuilder ssb : builders()) {
+            ssb.setSpan(new Derived(), 5, 10, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            ssb.setSpan(new Marked(), 7, 12, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            assertEquals(5, ssb.nextSpanTransition(0, 20, Object.class));
+            assertEquals(7, ssb.nextSpanTransition(5, 20, Object.class));
+            assertEquals(10, ssb.nextSpanTransition(5, 20, Base.class));
+            assertEquals(7, ssb.nextSpanTransition(0, 20, Marker.class));
+            assertEquals(12, ssb.nextSpanTransition(7, 20, Marker.class));
+            assertEquals(6, ssb.nextSpanTransition(0, 6, Marker.class));
+            assertEquals(20, ssb.nextSpanTransition(12, 20, Object.class));
+        }
+    }
+
+    /**
+     * Random edits, then every query is checked against a scan over all spans.
+     */
+    @Test
+    public void randomEditsMatchScan() {
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            for (SpannableStringBuilder ssb : builders()) {
+                List<Object> spans = new ArrayList<>();
+                for (int step = 0; step < 500; step++) {
+                    randomEdit(random, ssb, spans);
+                    for (int k = 0; k < 5; k++) {
+                        int start = random.nextInt(ssb.length() + 1);
+                        int end = start + random.nextInt(ssb.length() - start + 1);
+                        Class<?> kind = KINDS[random.nextInt(KINDS.length)];
+                        assertArrayEquals("seed " + seed + " step " + step,
+                                scanSpans(ssb, spans, start, end, kind), ssb.getSpans(start, end, kind));
+                        assertEquals("seed " + seed + " step " + step,
+                                scanTransition(ssb, spans, start, end, kind), ssb.nextSpanTransition(start, end, kind));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void batchEditSendsOneChange() {
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            for (SpannableStringBuilder ssb : builders()) {
+                ChangeCounter counter = new ChangeCounter();
+                ssb.setSpan(counter, 0, ssb.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+                String old = ssb.toString();
+
+                ssb.beginBatchEdit();
+                int edits = 1 + random.nextInt(10);
+                for (int i = 0; i < edits; i++) {
+                    // 嵌套的一批并入外层
+                    if (i == edits / 2)
+                        ssb.beginBatchEdit();
+                    int start = random.nextInt(ssb.length() + 1);
+                    int end = start + random.nextInt(Math.min(5, ssb.length() - start) + 1);
+                    ssb.replace(start, end, "xyz".substring(random.nextInt(4) % 3));
+                    if (i == edits / 2)
+                        ssb.endBatchEdit();
+                }
+                assertEquals(0, counter.changes);
+                ssb.endBatchEdit();
+                assertEquals(1, counter.changes);
+
+                // 一次改动的范围能把旧文本变成新文本
+                String now = ssb.toString();
+                String merged = old.substring(0, counter.start)
+                        + now.substring(counter.start, counter.start + counter.after)
+                        + old.substring(counter.start + counter.before);
+                assertEquals("seed " + seed, now, merged);
+
+                // 批量修改之外每次修改照常通知
+                ssb.insert(0, "a");
+                assertEquals(2, counter.changes);
+            }
+        }
+    }
+
+    private static class ChangeCounter implements TextWatcher {
+        int changes;
+        int start, before, after;
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            changes++;
+            this.start = start;
+            this.before = before;
+            this.after = count;
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+    }
+
+    private static SpannableStringBuilder[] builders() {
+        return new SpannableStringBuilder[]{new SpannableStringBuilder(TEXT), SpannableStringBuilder.ropeOf(TEXT)};
+    }
+
+    private static void assertSpan(SpannableStringBuilder ssb, Object span, int start, int end) {
+        assertEquals(start, ssb.getSpanStart(span));
+        assertEquals(end, ssb.getSpanEnd(span));
+    }
+
+    private static void randomEdit(Random random, SpannableStringBuilder ssb, List<Object> spans) {
+        int length = ssb.length();
+        int start = random.nextInt(length + 1);
+        int end = start + random.nextInt(Math.min(8, length - start) + 1);
+        switch (random.nextInt(5)) {
+            case 0:
+                Object span = newSpan(random);
+                ssb.setSpan(span, start, end, randomFlags(random, start, end));
+                spans.add(span);
+                break;
+            case 1:
+                // 移动已有的 span，可能移过很多个别的 span
+                if (!spans.isEmpty())
+                    ssb.setSpan(spans.get(random.nextInt(spans.size())), start, end, randomFlags(random, start, end));
+                break;
+            case 2:
+                if (!spans.isEmpty())
+                    ssb.removeSpan(spans.remove(random.nextInt(spans.size())));
+                break;
+            case 3:
+                ssb.replace(start, end, "xyz".substring(random.nextInt(4) % 3));
+                break;
+            default:
+                if (length > 10)
+                    ssb.delete(start, end);
+                else
+                    ssb.insert(start, "0123456789");
+                break;
+        }
+        // 被删除时移除的 span
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            if (ssb.getSpanStart(spans.get(i)) < 0)
+                spans.remove(i);
+        }
+    }
+
+    private static Object newSpan(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return new Base();
+            case 1:
+                return new Derived();
+            case 2:
+                return new Marked();
+            default:
+                return new Object();
+        }
+    }
+
+    private static int randomFlags(Random random, int start, int end) {
+        int[] flags = {Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+                Spanned.SPAN_POINT_POINT, Spanned.SPAN_MARK_MARK, Spanned.SPAN_EXCLUSIVE_INCLUSIVE};
+        int flag = flags[random.nextInt(start == end ? flags.length - 1 : flags.length) + (start == end ? 1 : 0)];
+        return random.nextInt(4) == 0 ? flag | (random.nextInt(3) << Spanned.SPAN_PRIORITY_SHIFT) : flag;
+    }
+
+    /**
+     * The spans getSpans() should return: overlapping, by decreasing priority, then in the order
+     * they were added.
+     */
+    private static Object[] scanSpans(SpannableStringBuilder ssb, List<Object> spans, int start, int end, Class<?> kind) {
+        List<Object> found = new ArrayList<>();
+        for (int priority = 0xFF; priority >= 0; priority--) {
+            for (Object span : spans) {
+                int flags = ssb.getSpanFlags(span);
+                if ((flags & Spanned.SPAN_PRIORITY) >> Spanned.SPAN_PRIORITY_SHIFT != priority || !kind.isInstance(span))
+                    continue;
+                int st = ssb.getSpanStart(span);
+                int en = ssb.getSpanEnd(span);
+                if (st <= end && en >= start && (st == en || start == end || (st != end && en != start)))
+                    found.add(span);
+            }
+        }
+        return found.toArray();
+    }
+
+    private static int scanTransition(SpannableStringBuilder ssb, List<Object> spans, int start, int limit, Class<?> kind) {
+        for (Object span : spans) {
+            if (!kind.isInstance(span))
+                continue;
+            int st = ssb.getSpanStart(span);
+            int en = ssb.getSpanEnd(span);
+            if (st > start && st < limit)
+                limit = st;
+            if (en > start && en < limit)
+                limit = en;
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.widget;
+
+import android.support.test.rule.ActivityTestRule;
+import android.text.Editable;
+import android.text.TextWatcher;
+
+import com.duy.text.editor.R;
+import com.jecelyin.editor.v2.ui.activities.MainActivity;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import static com.jecelyin.editor.v2.ui.activities.MainActivityTest.duplicateStr;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bulk line edits are one change for the layout and one undo step.
+ */
+public class EditAreaViewTest {
+    private static final String TEXT = duplicateStr("int a = 1;\n    b();\n\n", 200) + "end";
+
+    @Rule
+    public ActivityTestRule<MainActivity> mRule = new ActivityTestRule<MainActivity>(MainActivity.class);
+
+    private interface BulkEdit {
+        void run(EditAreaView editView);
+    }
+
+    private void assertOneChangeAndOneUndo(final BulkEdit edit) throws Throwable {
+        mRule.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                EditAreaView editView = mRule.getActivity().findViewById(R.id.edit_text);
+                editView.setText(TEXT);
+                editView.setSelection(0, TEXT.length());
+                int undos = editView.getUndoManager().countUndos(null);
+
+                ChangeCounter counter = new ChangeCounter();
+                editView.addTextChangedListener(counter);
+                try {
+                    edit.run(editView);
+                } finally {
+                    editView.removeTextChangedListener(counter);
+                }
+                assertNotEquals(TEXT, editView.getText().toString());
+                // 布局和高亮都是由 onTextChanged 触发的
+                assertEquals(1, counter.changes);
+                assertEquals(undos + 1, editView.getUndoManager().countUndos(null));
+
+                editView.undo();
+                assertEquals(TEXT, editView.getText().toString());
+                assertEquals(TEXT.split("\n", -1).length, editView.getLayout().getLineCount());
+            }
+        });
+    }
+
+    @Test
+    public void indentIsOneEdit() throws Throwable {
+        assertOneChangeAndOneUndo(new BulkEdit() {
+            @Override
+            public void run(EditAreaView editView) {
+                editView.shiftIndent(false);
+                String[] lines = editView.getText().toString().split("\n");
+                for (String line : lines) {
+                    assertTrue(line, line.isEmpty() || Character.isWhitespace(line.charAt(0)));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void outdentIsOneEdit() throws Throwable {
+        assertOneChangeAndOneUndo(new BulkEdit() {
+            @Override
+            public void run(EditAreaView editView) {
+                editView.shiftIndent(true);
+                assertEquals(TEXT.replace("\n    b", "\nb"), editView.getText().toString());
+            }
+        });
+    }
+
+    @Test
+    public void toggleCommentIsOneEdit() throws Throwable {
+        assertOneChangeAndOneUndo(new BulkEdit() {
+            @Override
+            public void run(EditAreaView editView) {
+                editView.setLineComment("//");
+                editView.toggleComment();
+                assertEquals(TEXT.replace("int", "//int").replace("    b", "//    b").replace("end", "//end"),
+                        editView.getText().toString());
+            }
+        });
+    }
+
+    private static class ChangeCounter implements TextWatcher {
+        int changes;
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            changes++;
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+    }
+}
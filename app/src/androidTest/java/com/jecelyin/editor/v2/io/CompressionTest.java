@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressionTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TEXT = "first line\nsecond 中文 😀\n\nlast";
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Save <code>TEXT</code> compressed, check the bytes on disk and read it back.
+     *
+     * @return the decompressed bytes of the file
+     */
+    private static FileReader roundTrip(File file, Compression compression) throws IOException {
+        FileWriter writer = new FileWriter(file, false, "UTF-8", LineEnding.CRLF, compression, false);
+        assertNull(writer.doInBackground(TEXT));
+        assertEquals(compression.getType(), Compression.detect(file));
+
+        FileReader reader = new FileReader(file, "UTF-8");
+        assertTrue(reader.read());
+        assertEquals(TEXT, reader.getBuffer().toString());
+        assertEquals(LineEnding.CRLF, reader.getLineEnding());
+        assertEquals(compression.getType(), reader.getCompression().getType());
+        return reader;
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        File file = File.createTempFile("compression", ".txt.gz");
+        try {
+            roundTrip(file, Compression.forFileName(file.getName()));
+            InputStream in = new GZIPInputStream(new FileInputStream(file));
+            try {
+                assertEquals(TEXT.replace("\n", "\r\n"), new String(readAll(in), UTF8));
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void zipRoundTrip() throws IOException {
+        File file = File.createTempFile("compression", ".txt.zip");
+        try {
+            Compression compression = Compression.forFileName(file.getName());
+            FileReader reader = roundTrip(file, compression);
+            // 保存时用打开时的文件名
+            assertEquals(compression.getEntryName(), reader.getCompression().getEntryName());
+
+            ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+            try {
+                ZipEntry entry = in.getNextEntry();
+                assertEquals(compression.getEntryName(), entry.getName());
+                assertEquals(TEXT.replace("\n", "\r\n"), new String(readAll(in), UTF8));
+                assertNull(in.getNextEntry());
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void multiEntryZipRejected() throws IOException {
+        File file = File.createTempFile("compression", ".zip");
+        try {
+            ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+            try {
+                out.putNextEntry(new ZipEntry("dir/"));
+                out.putNextEntry(new ZipEntry("dir/a.txt"));
+                out.write("a".getBytes(UTF8));
+                out.putNextEntry(new ZipEntry("b.txt"));
+                out.write("b".getBytes(UTF8));
+            } finally {
+                out.close();
+            }
+
+            try {
+                Compression.checkSingleEntry(file);
+                fail("checkSingleEntry accepted two files");
+            } catch (IOException e) {
+                // expected
+            }
+            assertFalse(new FileReader(file, "UTF-8").read());
+
+            // root 管道读取时没有中央目录可查，读到第一个文件结尾时才拒绝
+            InputStream in = new FileInputStream(file);
+            try {
+                Compression.Decompressed decompressed = Compression.open(in);
+                assertEquals("dir/a.txt", decompressed.compression.getEntryName());
+                readAll(decompressed.stream);
+                fail("the stream of a zip with two files read to the end");
+            } catch (IOException e) {
+                // expected
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void forFileName() {
+        assertEquals(Compression.Type.GZIP, Compression.forFileName("log.txt.gz").getType());
+        assertEquals(Compression.Type.GZIP, Compression.forFileName("LOG.GZ").getType());
+        Compression zip = Compression.forFileName("notes.txt.ZIP");
+        assertEquals(Compression.Type.ZIP, zip.getType());
+        assertEquals("notes.txt", zip.getEntryName());
+        assertEquals(Compression.NONE, Compression.forFileName(".zip"));
+        assertEquals(Compression.NONE, Compression.forFileName("archive.zip.txt"));
+        assertFalse(Compression.forFileName("readme").isCompressed());
+    }
+}
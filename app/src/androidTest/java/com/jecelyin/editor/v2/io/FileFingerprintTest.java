@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileFingerprintTest {
+    private static final int BLOCK = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static byte[] repeat(String unit, int size) {
+        byte[] bytes = unit.getBytes(UTF8);
+        byte[] result = new byte[(size / bytes.length + 1) * bytes.length];
+        for (int i = 0; i < result.length; i += bytes.length) {
+            System.arraycopy(bytes, 0, result, i, bytes.length);
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, pos, part.length);
+            pos += part.length;
+        }
+        return result;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        char[] chars = new String(bytes, UTF8).toCharArray();
+        return new String(chars, 0, new LineEnding.Normalizer().normalize(chars, 0, chars.length));
+    }
+
+    /**
+     * Patch the document of <code>oldBytes</code> to the file now holding <code>newBytes</code>
+     * and compare with decoding the new file from scratch.
+     *
+     * @return the patch, to check how much of the file it skipped
+     */
+    private static FileFingerprint.Patch assertPatches(byte[] oldBytes, byte[] newBytes) throws IOException {
+        File file = File.createTempFile("fingerprint", ".txt");
+        try {
+            write(file, oldBytes);
+            FileFingerprint fingerprint = FileFingerprint.compute(file, "UTF-8");
+            String doc = decode(oldBytes);
+            write(file, newBytes);
+
+            FileFingerprint.Patch patch = fingerprint.diff(file, "UTF-8");
+            assertNotNull(patch);
+            assertTrue(patch.matches(doc));
+            String patched = patch.isEmpty() ? doc : doc.substring(0, patch.prefixChars) + patch.text
+                    + doc.substring(doc.length() - patch.suffixChars);
+            assertEquals(decode(newBytes), patched);
+            return patch;
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void append() throws IOException {
+        byte[] old = repeat("a😀é中\r\n", 5 * BLOCK);
+        FileFingerprint.Patch patch = assertPatches(old, concat(old, "tail 尾\n".getBytes(UTF8)));
+        assertTrue(patch.text.length() < 2 * BLOCK);
+        assertEquals(0, patch.suffixChars);
+    }
+
+    @Test
+    public void middleEdit() throws IOException {
+        byte[] old = repeat("a😀é中\r\n", 8 * BLOCK);
+        byte[] edited = concat(Arrays.copyOf(old, 4 * BLOCK + 100), "插入 inserted\r\n".getBytes(UTF8),
+                Arrays.copyOfRange(old, 4 * BLOCK + 100, old.length));
+        FileFingerprint.Patch patch = assertPatches(old, edited);
+        // 只解码了变化的块和两边各一块
+        assertTrue(patch.prefixChars > 0);
+        assertTrue(patch.suffixChars > 0);
+        assertTrue(patch.text.length() < 4 * BLOCK);
+    }
+
+    @Test
+    public void truncate() throws IOException {
+        byte[] old = repeat("a😀é中\r\n", 5 * BLOCK);
+        assertPatches(old, Arrays.copyOf(old, 3 * BLOCK + 7));
+        assertPatches(old, new byte[0]);
+    }
+
+    @Test
+    public void crlfSplitAtBlockBoundary() throws IOException {
+        // 每个块边界上都是 \r|\n，两边的块都不变时边界也不能多出或少掉一个换行
+        byte[] old = concat(repeat("x", BLOCK - 2), repeat("\r\n", 6 * BLOCK));
+        old = Arrays.copyOf(old, 7 * BLOCK);
+        byte[] edited = old.clone();
+        edited[3 * BLOCK + 10] = 'y';
+        edited[3 * BLOCK + 11] = 'y';
+        FileFingerprint.Patch patch = assertPatches(old, edited);
+        assertTrue(patch.prefixChars > 0);
+        assertTrue(patch.suffixChars > 0);
+
+        // 变化正好把边界前的 \r 换掉
+        edited = old.clone();
+        edited[4 * BLOCK - 1] = 'z';
+        assertPatches(old, edited);
+    }
+
+    @Test
+    public void unchanged() throws IOException {
+        byte[] old = repeat("a😀é中\r\n", 3 * BLOCK);
+        assertTrue(assertPatches(old, old.clone()).isEmpty());
+    }
+}
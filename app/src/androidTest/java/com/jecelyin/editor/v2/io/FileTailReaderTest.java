@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileTailReaderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static void append(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void crlfSplitBetweenReads() throws IOException {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            append(file, "first\r".getBytes(UTF8));
+            // 从 \r 后面开始跟踪，下一次开头的 \n 属于它
+            FileTailReader reader = new FileTailReader(file, "UTF-8", file.length(), 1024);
+            append(file, "\nsecond\r".getBytes(UTF8));
+            assertEquals("second\n", reader.read());
+            assertEquals("", reader.read());
+            append(file, "\nthird\r\r".getBytes(UTF8));
+            assertEquals("third\n\n", reader.read());
+            append(file, "fourth".getBytes(UTF8));
+            assertEquals("fourth", reader.read());
+            assertEquals(file.length(), reader.getPosition());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void multibyteCharSplitBetweenReads() throws IOException {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            FileTailReader reader = new FileTailReader(file, "UTF-8", 0, 1024);
+            byte[] bytes = "a😀中\n".getBytes(UTF8);
+            // 一个字节一个字节地写，字符只写了一半时不能输出
+            StringBuilder text = new StringBuilder();
+            for (byte b : bytes) {
+                append(file, new byte[]{b});
+                text.append(reader.read());
+            }
+            assertEquals("a😀中\n", text.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void largeGrowthReadInBatches() throws IOException {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            FileTailReader reader = new FileTailReader(file, "UTF-8", 0, 100);
+            byte[] unit = "é中\r\n".getBytes(UTF8);
+            byte[] bytes = new byte[unit.length * 1000];
+            for (int i = 0; i < bytes.length; i += unit.length) {
+                System.arraycopy(unit, 0, bytes, i, unit.length);
+            }
+            append(file, bytes);
+
+            StringBuilder text = new StringBuilder();
+            int reads = 0;
+            while (reader.getPosition() < file.length()) {
+                long position = reader.getPosition();
+                String batch = reader.read();
+                assertTrue(reader.getPosition() - position <= 100);
+                assertTrue(batch.length() <= 100);
+                text.append(batch);
+                reads++;
+            }
+            assertTrue(reads >= bytes.length / 100);
+            char[] expected = new String(bytes, UTF8).toCharArray();
+            int length = new LineEnding.Normalizer().normalize(expected, 0, expected.length);
+            assertEquals(new String(expected, 0, length), text.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        File file = File.createTempFile("tail", ".log");
+        try {
+            byte[] bytes = new byte[100];
+            Arrays.fill(bytes, (byte) 'a');
+            append(file, bytes);
+            FileTailReader reader = new FileTailReader(file, "UTF-8", file.length(), 1024);
+            new FileOutputStream(file).close();
+            assertNull(reader.read());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LineEndingTest {
+    private static final String SAMPLE = "a\r\nb\rc\n\r\r\nd\r";
+    private static final String NORMALIZED = "a\nb\nc\n\n\nd\n";
+
+    @Test
+    public void normalizeWhole() {
+        char[] text = SAMPLE.toCharArray();
+        LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+        assertEquals(NORMALIZED, new String(text, 0, normalizer.normalize(text, 0, text.length)));
+        assertEquals("LF=1 CRLF=2 CR=3", normalizer.toString());
+        assertEquals(6, normalizer.getLineEndCount());
+        assertEquals(LineEnding.CR, normalizer.getLineEnding());
+        assertTrue(normalizer.isMixed());
+    }
+
+    @Test
+    public void crlfSplitBetweenCalls() {
+        // 同一个 normalizer 分两次处理，切点在每个位置上，包括 \r 和 \n 之间
+        for (int cut = 0; cut <= SAMPLE.length(); cut++) {
+            char[] text = SAMPLE.toCharArray();
+            LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+            int length = normalizer.normalize(text, 0, cut);
+            int rest = normalizer.normalize(text, cut, text.length - cut);
+            System.arraycopy(text, cut, text, length, rest);
+            assertEquals("cut " + cut, NORMALIZED, new String(text, 0, length + rest));
+            assertEquals("cut " + cut, "LF=1 CRLF=2 CR=3", normalizer.toString());
+        }
+    }
+
+    @Test
+    public void addCarriesCounts() {
+        // 分块各自处理再合并计数，块不会从 \r\n 中间切开
+        for (int cut = 0; cut <= SAMPLE.length(); cut++) {
+            if (cut > 0 && cut < SAMPLE.length() && SAMPLE.charAt(cut - 1) == '\r' && SAMPLE.charAt(cut) == '\n')
+                continue;
+            char[] text = SAMPLE.toCharArray();
+            LineEnding.Normalizer first = new LineEnding.Normalizer();
+            LineEnding.Normalizer second = new LineEnding.Normalizer();
+            first.normalize(text, 0, cut);
+            second.normalize(text, cut, text.length - cut);
+            LineEnding.Normalizer total = new LineEnding.Normalizer();
+            total.add(first);
+            total.add(second);
+            assertEquals("cut " + cut, "LF=1 CRLF=2 CR=3", total.toString());
+
+            // 合并后接着处理后面的文本，要记得最后一个字符是 \r
+            char[] next = "\nx".toCharArray();
+            assertEquals(1, total.normalize(next, 0, next.length));
+            assertEquals("LF=1 CRLF=3 CR=2", total.toString());
+        }
+    }
+
+    @Test
+    public void singleKind() {
+        char[] text = "a\r\nb\r\n".toCharArray();
+        LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+        normalizer.normalize(text, 0, text.length);
+        assertEquals(LineEnding.CRLF, normalizer.getLineEnding());
+        assertFalse(normalizer.isMixed());
+
+        normalizer = new LineEnding.Normalizer();
+        assertEquals(LineEnding.LF, normalizer.getLineEnding());
+        assertFalse(normalizer.isMixed());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.core.text.SpannableStringBuilder;
+
+import org.gjt.sp.jedit.util.IntegerArray;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PagedTextStoreTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static File writeFile(byte[] bytes) throws IOException {
+        File file = File.createTempFile("paged", ".txt");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String repeat(String unit, int chars) {
+        StringBuilder sb = new StringBuilder(chars + unit.length());
+        while (sb.length() < chars) {
+            sb.append(unit);
+        }
+        return sb.toString();
+    }
+
+    private static String normalize(String text) {
+        char[] chars = text.toCharArray();
+        LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+        return new String(chars, 0, normalizer.normalize(chars, 0, chars.length));
+    }
+
+    @Test
+    public void pagesMatchSequentialDecode() throws IOException {
+        // 第一页最后一个字符是 \r，\n 在下一页开头
+        String[] texts = {"x" + repeat("\r\n", 3 * PagedTextStore.PAGE_CHARS),
+                repeat("a😀é中\r\n", 3 * PagedTextStore.PAGE_CHARS),
+                repeat("ab\rc\n", 2 * PagedTextStore.PAGE_CHARS) + "end"};
+        for (String text : texts) {
+            File file = writeFile(text.getBytes(UTF8));
+            try {
+                // 只缓存两页，读的时候一直在换页
+                PagedTextStore store = new PagedTextStore(file, "UTF-8", 2);
+                String expected = normalize(text);
+                assertTrue(store.getPageCount() > 2);
+                assertEquals(expected.length(), store.length());
+                assertEquals(expected, store.getText().toString());
+
+                Random random = new Random(1);
+                CharSequence rope = store.getText();
+                for (int i = 0; i < 2000; i++) {
+                    int index = random.nextInt(expected.length());
+                    assertEquals(expected.charAt(index), rope.charAt(index));
+                }
+
+                IntegerArray offsets = new IntegerArray();
+                char[] chars = expected.toCharArray();
+                FileReader.collectLineEnds(chars, 0, chars.length, 0, offsets);
+                offsets.add(chars.length + 1);
+                assertArrayEquals(Arrays.copyOf(offsets.getArray(), offsets.getSize()),
+                        Arrays.copyOf(store.getLineEndOffsets().getArray(), store.getLineEndOffsets().getSize()));
+
+                LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+                char[] raw = text.toCharArray();
+                lineEndings.normalize(raw, 0, raw.length);
+                assertEquals(lineEndings.toString(), store.getLineEndings().toString());
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void editsKeepUntouchedPagesInFile() throws IOException {
+        String text = repeat("line 行\n", 4 * PagedTextStore.PAGE_CHARS);
+        File file = writeFile(text.getBytes(UTF8));
+        try {
+            PagedTextStore store = new PagedTextStore(file, "UTF-8", 2);
+            SpannableStringBuilder ssb = SpannableStringBuilder.ropeOf(store.getText());
+            StringBuilder expected = new StringBuilder(text);
+            Random random = new Random(2);
+            for (int i = 0; i < 200; i++) {
+                int start = random.nextInt(expected.length());
+                int end = Math.min(expected.length(), start + random.nextInt(100));
+                String insert = random.nextBoolean() ? "" : "edit 改";
+                ssb.replace(start, end, insert);
+                expected.replace(start, end, insert);
+            }
+            assertTrue(ssb.isPaged());
+            assertEquals(expected.toString(), ssb.toString());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void saveWritesBackTheSameBytes() throws IOException {
+        byte[] bytes = repeat("a😀é中\r\n", 3 * PagedTextStore.PAGE_CHARS).getBytes(UTF8);
+        File file = writeFile(bytes);
+        try {
+            PagedTextStore store = new PagedTextStore(file, "UTF-8", 2);
+            SpannableStringBuilder ssb = SpannableStringBuilder.ropeOf(store.getText());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TextChannelEncoder.write(ssb.getSnapshot(), "UTF-8", store.getLineEndings().getLineEnding(),
+                    Channels.newChannel(out));
+            assertArrayEquals(bytes, out.toByteArray());
+        } finally {
+            file.delete();
+        }
+    }
+}
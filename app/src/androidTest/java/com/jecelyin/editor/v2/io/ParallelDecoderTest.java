@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDecoderTest {
+    /**
+     * 至少切成四块
+     */
+    private static final int SIZE = 2 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void utf8CharsOnChunkEdges() {
+        // 同一种长度的字符铺满整个输入，切点一定落在字符中间
+        for (String unit : new String[]{"é", "中", "😀", "a😀é中\r\n"}) {
+            assertDecodes(repeat(unit, UTF8), UTF8);
+        }
+    }
+
+    @Test
+    public void singleByteCharset() {
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        assertDecodes(repeat("abcéÿ\r\n", latin1), latin1);
+    }
+
+    @Test
+    public void crlfOnChunkEdges() {
+        ParallelDecoder.Result result = assertDecodes(repeat("\r\n", UTF8), UTF8);
+        assertEquals(LineEnding.CRLF, result.lineEndings.getLineEnding());
+        assertFalse(result.lineEndings.isMixed());
+    }
+
+    @Test
+    public void malformedInput() {
+        // 单独的续字节比数出来的字符多解码出一个 U+FFFD
+        byte[] bytes = repeat("a😀", UTF8);
+        bytes[bytes.length / 2 / 5 * 5] = (byte) 0x80;
+        assertNull(ParallelDecoder.decode(ByteBuffer.wrap(bytes), UTF8, 0, false));
+
+        // 被截断的四字节序列只解码成一个 U+FFFD，比数出来的少
+        bytes = repeat("a😀", UTF8);
+        bytes[bytes.length / 2 / 5 * 5 + 4] = 'a';
+        assertNull(ParallelDecoder.decode(ByteBuffer.wrap(bytes), UTF8, 0, false));
+    }
+
+    @Test
+    public void decodeInOrder() throws Exception {
+        for (String unit : new String[]{"a😀é中\r\n", "\r\n", "😀"}) {
+            assertDecodesInOrder(repeat(unit, UTF8), UTF8);
+        }
+        // 有错的字节按顺序解码的方式替换
+        byte[] bytes = repeat("a😀", UTF8);
+        bytes[bytes.length / 2 / 5 * 5] = (byte) 0x80;
+        assertDecodesInOrder(bytes, UTF8);
+    }
+
+    private static void assertDecodesInOrder(byte[] bytes, Charset charset) throws Exception {
+        final StringBuilder text = new StringBuilder();
+        final List<Integer> chunks = new ArrayList<>();
+        final int[] progress = {0};
+        LineEnding.Normalizer result = ParallelDecoder.decodeInOrder(ByteBuffer.wrap(bytes), charset,
+                new FileReader.ChunkListener() {
+                    @Override
+                    public void onChunkRead(char[] buf, int len, int percent) {
+                        assertTrue(percent >= progress[0]);
+                        progress[0] = percent;
+                        chunks.add(len);
+                        text.append(buf, 0, len);
+                    }
+                });
+        assertEquals(100, progress[0]);
+        // 第一块很小，第一屏不用等
+        assertTrue(chunks.size() > 2);
+        assertTrue(chunks.get(0) <= 64 * 1024);
+
+        char[] expected = new String(bytes, charset).toCharArray();
+        LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        int length = lineEndings.normalize(expected, 0, expected.length);
+        assertEquals(new String(expected, 0, length), text.toString());
+        assertEquals(lineEndings.toString(), result.toString());
+    }
+
+    private static byte[] repeat(String unit, Charset charset) {
+        byte[] bytes = unit.getBytes(charset);
+        byte[] result = new byte[(SIZE / bytes.length + 1) * bytes.length];
+        for (int i = 0; i < result.length; i += bytes.length) {
+            System.arraycopy(bytes, 0, result, i, bytes.length);
+        }
+        return result;
+    }
+
+    /**
+     * Compare the parallel result with a sequential decode of the same bytes.
+     */
+    private static ParallelDecoder.Result assertDecodes(byte[] bytes, Charset charset) {
+        ParallelDecoder.Result result = ParallelDecoder.decode(ByteBuffer.wrap(bytes), charset, 16, true);
+        assertNotNull(result);
+        assertTrue(result.text.length >= result.length + 16);
+
+        char[] expected = new String(bytes, charset).toCharArray();
+        LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        int length = lineEndings.normalize(expected, 0, expected.length);
+        assertEquals(new String(expected, 0, length), new String(result.text, 0, result.length));
+        assertEquals(lineEndings.toString(), result.lineEndings.toString());
+
+        assertEquals(lineEndings.getLineEndCount(), result.lineEnds.getSize());
+        for (int i = 0; i < result.lineEnds.getSize(); i++) {
+            assertEquals('\n', result.text[result.lineEnds.get(i) - 1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.core.text.SpannableStringBuilder;
+
+import com.jecelyin.common.utils.DLog;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+public class TextChannelEncoderTest extends TestCase {
+    private static final String SAMPLE = "Hello, 世界 😀 line\r\n";
+
+    private static String encodeToString(CharSequence text, String encoding) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextChannelEncoder.write(text, encoding, Channels.newChannel(out));
+        return new String(out.toByteArray(), encoding);
+    }
+
+    public void testGapBuffer() throws Exception {
+        SpannableStringBuilder ssb = new SpannableStringBuilder(SAMPLE);
+        // 把空隙移到代理对中间
+        int split = SAMPLE.indexOf('\uDE00');
+        ssb.insert(split, "x");
+        ssb.delete(split, split + 1);
+        assertEquals(SAMPLE, encodeToString(ssb, "UTF-8"));
+        assertEquals(SAMPLE, encodeToString(ssb, "UTF-16LE"));
+    }
+
+    public void testPlainCharSequence() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append(SAMPLE);
+        assertEquals(sb.toString(), encodeToString(sb, "UTF-8"));
+    }
+
+    public void testLineEnding() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            sb.append(SAMPLE);
+        String original = sb.toString();
+        char[] text = original.toCharArray();
+        LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+        // \r\n 被切在两次调用之间
+        int half = original.indexOf('\n');
+        int length = normalizer.normalize(text, 0, half);
+        int rest = normalizer.normalize(text, half, text.length - half);
+        System.arraycopy(text, half, text, length, rest);
+        length += rest;
+        String normalized = new String(text, 0, length);
+        assertEquals(original.replace("\r\n", "\n"), normalized);
+        assertEquals(LineEnding.CRLF, normalizer.getLineEnding());
+        assertEquals(5000, normalizer.getLineEndCount());
+        assertFalse(normalizer.isMixed());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TextChannelEncoder.write(new SpannableStringBuilder(normalized), "UTF-8", LineEnding.CRLF, Channels.newChannel(out));
+        assertEquals(original, new String(out.toByteArray(), "UTF-8"));
+
+        char[] mixed = "a\rb\nc\r\n".toCharArray();
+        normalizer = new LineEnding.Normalizer();
+        assertEquals("a\nb\nc\n", new String(mixed, 0, normalizer.normalize(mixed, 0, mixed.length)));
+        assertTrue(normalizer.isMixed());
+    }
+
+    /**
+     * Throughput of the old Writer pipeline against the channel encoder, in MB/s.
+     */
+    public void testThroughput() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 32 * 1024 * 1024)
+            sb.append(SAMPLE);
+        SpannableStringBuilder text = new SpannableStringBuilder(sb);
+        text.insert(text.length() / 2, "gap");
+        File file = File.createTempFile("encoder", ".txt");
+        try {
+            for (int round = 0; round < 3; round++) {
+                long t = System.nanoTime();
+                writeWithWriter(text, file);
+                long writer = System.nanoTime() - t;
+
+                t = System.nanoTime();
+                FileOutputStream fos = new FileOutputStream(file);
+                try {
+                    FileChannel channel = fos.getChannel();
+                    TextChannelEncoder.write(text, "UTF-8", channel);
+                    channel.force(true);
+                } finally {
+                    fos.close();
+                }
+                long encoder = System.nanoTime() - t;
+
+                double mb = file.length() / 1024d / 1024d;
+                DLog.d("TextChannelEncoderTest", String.format("round %d: writer %.1f MB/s, channel %.1f MB/s",
+                        round, mb * 1e9 / writer, mb * 1e9 / encoder));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void writeWithWriter(SpannableStringBuilder text, File file) throws Exception {
+        FileOutputStream fos = new FileOutputStream(file);
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"), 16 * 1024);
+        try {
+            char[] buffer = new char[16 * 1024];
+            int size = text.length();
+            for (int start = 0; start < size; start += buffer.length) {
+                int end = Math.min(size, start + buffer.length);
+                text.getChars(start, end, buffer, 0);
+                bw.write(buffer, 0, end - start);
+            }
+            bw.flush();
+            fos.getFD().sync();
+        } finally {
+            bw.close();
+        }
+    }
+}
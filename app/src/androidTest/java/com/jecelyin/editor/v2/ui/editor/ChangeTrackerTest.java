@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.ui.editor;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeTrackerTest {
+
+    private static StringBuilder randomText(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(random.nextInt(10) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+        }
+        return sb;
+    }
+
+    private static ChangeTracker load(CharSequence text) {
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.append(text);
+        tracker.markSaved(text);
+        return tracker;
+    }
+
+    private static void replace(ChangeTracker tracker, StringBuilder text, int start, int end, String replacement) {
+        text.replace(start, end, replacement);
+        tracker.onTextChanged(start, end - start, replacement.length());
+    }
+
+    @Test
+    public void revertedEditIsUnchanged() {
+        Random random = new Random(1);
+        StringBuilder text = randomText(random, 50000);
+        ChangeTracker tracker = load(text);
+
+        // 改完再改回去，版本号不同了，只能靠哈希判断
+        int start = 4096 - 3;
+        String removed = text.substring(start, start + 10);
+        replace(tracker, text, start, start + 10, "xyz");
+        assertTrue(tracker.isChanged(text));
+        replace(tracker, text, start, start + 3, removed);
+        assertFalse(tracker.isChanged(text));
+
+        // 插入一大段，块会被拆开，再删掉
+        String big = randomText(random, 20000).toString();
+        replace(tracker, text, 100, 100, big);
+        assertTrue(tracker.isChanged(text));
+        replace(tracker, text, 100, 100 + big.length(), "");
+        assertFalse(tracker.isChanged(text));
+
+        // 删掉跨好几块的一段，再放回去
+        removed = text.substring(1000, 30000);
+        replace(tracker, text, 1000, 30000, "");
+        assertTrue(tracker.isChanged(text));
+        replace(tracker, text, 1000, 1000, removed);
+        assertFalse(tracker.isChanged(text));
+    }
+
+    @Test
+    public void sameLengthDifferentText() {
+        StringBuilder text = randomText(new Random(2), 20000);
+        ChangeTracker tracker = load(text);
+        char ch = text.charAt(12345);
+        replace(tracker, text, 12345, 12346, String.valueOf((char) (ch + 1)));
+        assertTrue(tracker.isChanged(text));
+        replace(tracker, text, 12345, 12346, String.valueOf(ch));
+        assertFalse(tracker.isChanged(text));
+    }
+
+    @Test
+    public void randomEditsMatchFreshHash() {
+        Random random = new Random(3);
+        StringBuilder text = randomText(random, 30000);
+        ChangeTracker tracker = load(text);
+        for (int round = 0; round < 200; round++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(6000));
+            replace(tracker, text, start, end, randomText(random, random.nextInt(6000)).toString());
+
+            // 跟新建的 tracker 算出的哈希一样
+            ChangeTracker fresh = load(text);
+            tracker.markSaved(text);
+            assertEquals(fresh.getSavedLength(), tracker.getSavedLength());
+            assertEquals(fresh.getSavedHash(), tracker.getSavedHash());
+        }
+    }
+
+    @Test
+    public void restoredMarker() {
+        StringBuilder text = randomText(new Random(4), 10000);
+        ChangeTracker saved = load(text);
+
+        // 重建 activity 后只剩长度和哈希
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.append(text);
+        tracker.restoreSaved(saved.getSavedLength(), saved.getSavedHash());
+        assertFalse(tracker.isChanged(text));
+        replace(tracker, text, 0, 1, "#");
+        assertTrue(tracker.isChanged(text));
+    }
+}
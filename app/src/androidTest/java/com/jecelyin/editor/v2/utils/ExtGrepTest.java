@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.utils;
+
+import org.junit.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExtGrepTest {
+    /**
+     * Replace the first <code>max</code> matches one at a time, the way the replace button does.
+     */
+    private static String replaceEachMatch(Pattern pattern, String text, String replaceText, int max) {
+        StringBuilder sb = new StringBuilder();
+        Matcher m = pattern.matcher(text);
+        int last = 0;
+        for (int n = 0; n < max && m.find(); n++) {
+            sb.append(text, last, m.start());
+            sb.append(ExtGrep.parseReplacement(new MatcherResult(m), replaceText));
+            last = m.end();
+        }
+        return sb.append(text, last, text.length()).toString();
+    }
+
+    private static int countMatches(Pattern pattern, String text) {
+        Matcher m = pattern.matcher(text);
+        int count = 0;
+        while (m.find())
+            count++;
+        return count;
+    }
+
+    private static String apply(String text, ExtGrep.ReplaceAllResult result) {
+        if (result.count == 0)
+            return text;
+        return text.substring(0, result.start) + result.text + text.substring(result.end);
+    }
+
+    private static void assertReplacesLikeEachMatch(String regex, String text, String replaceText) {
+        Pattern pattern = Pattern.compile(regex, Pattern.MULTILINE);
+        ExtGrep.ReplaceAllResult result = ExtGrep.replaceAll(pattern, text, replaceText, null);
+        assertEquals(countMatches(pattern, text), result.count);
+        assertEquals(replaceEachMatch(pattern, text, replaceText, Integer.MAX_VALUE), apply(text, result));
+    }
+
+    @Test
+    public void groups() {
+        String text = "mail alice@example and bob@test, not @nobody\n";
+        assertReplacesLikeEachMatch("(\\w+)@(\\w+)", text, "$2 at $1");
+        assertReplacesLikeEachMatch("(\\w+)@(\\w+)", text, "<$0>\\t$9$");
+        assertReplacesLikeEachMatch("@", text, "\\n");
+        assertReplacesLikeEachMatch("none", text, "$1");
+    }
+
+    @Test
+    public void zeroLengthMatches() {
+        String text = "axxbx\n\nline\nx";
+        assertReplacesLikeEachMatch("x*", text, "-");
+        assertReplacesLikeEachMatch("^", text, "> ");
+        assertReplacesLikeEachMatch("$", text, ";");
+        assertReplacesLikeEachMatch("\\b", text, "|");
+        assertReplacesLikeEachMatch("(?=x)", text, "$0_");
+    }
+
+    @Test
+    public void cancel() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("key").append(i).append(" = value\n");
+        }
+        final String text = sb.toString();
+        final Pattern pattern = Pattern.compile("(\\w+) = (\\w+)");
+        final int[] calls = {0};
+        ExtGrep.ReplaceAllResult result = ExtGrep.replaceAll(pattern, text, "$2 = $1", new ExtGrep.ReplaceAllProgress() {
+            @Override
+            public boolean onProgress(int count) {
+                // 进度只会增加，取消前已经找到的都要替换
+                assertTrue(count > 0);
+                return ++calls[0] < 3;
+            }
+        });
+        assertEquals(3, calls[0]);
+        assertTrue(result.count < countMatches(pattern, text));
+        assertEquals(replaceEachMatch(pattern, text, "$2 = $1", result.count), apply(text, result));
+    }
+}
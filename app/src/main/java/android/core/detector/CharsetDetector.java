@@ -27,27 +27,52 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class CharsetDetector {
+    private final static int CHUNK_SIZE = 1024;
 
     public static String detect(BufferedInputStream bufferedInputStream) throws Exception {
+        Session session = new Session();
+        byte[] buf = new byte[CHUNK_SIZE];
+        int len;
 
-        nsDetector det = new nsDetector(nsPSMDetector.ALL);
+        while (!session.done && (len = bufferedInputStream.read(buf, 0, buf.length)) != -1) {
+            session.feed(buf, len);
+        }
+        return session.end();
+    }
 
-        // Set an observer...
-        // The Notify() will be called when a matching charset is found.
-        final List<String> charsets = new ArrayList<>();
-        det.Init(new nsICharsetDetectionObserver() {
-            public void Notify(String charset) {
-                charsets.add(charset);
-            }
-        });
+    /**
+     * 只检测给定的字节样本，一旦 nsDetector 确定了编码就停止
+     */
+    public static String detect(byte[] data, int length) {
+        Session session = new Session();
+        byte[] buf = new byte[CHUNK_SIZE];
 
-        byte[] buf = new byte[1024];
-        int len;
-        boolean done = false;
-        boolean isAscii = true;
+        for (int offset = 0; offset < length && !session.done; offset += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, length - offset);
+            System.arraycopy(data, offset, buf, 0, len);
+            session.feed(buf, len);
+        }
+        return session.end();
+    }
+
+    private static class Session {
+        private final nsDetector det;
+        private final List<String> charsets = new ArrayList<>();
+        private boolean done = false;
+        private boolean isAscii = true;
 
-        while ((len = bufferedInputStream.read(buf, 0, buf.length)) != -1) {
+        Session() {
+            det = new nsDetector(nsPSMDetector.ALL);
+            // Set an observer...
+            // The Notify() will be called when a matching charset is found.
+            det.Init(new nsICharsetDetectionObserver() {
+                public void Notify(String charset) {
+                    charsets.add(charset);
+                }
+            });
+        }
 
+        void feed(byte[] buf, int len) {
             // Check if the stream is only ascii.
             if (isAscii)
                 isAscii = det.isAscii(buf, len);
@@ -56,12 +81,15 @@ public class CharsetDetector {
             if (!isAscii && !done)
                 done = det.DoIt(buf, len, false);
         }
-        det.DataEnd();
 
-        String encoding = charsets.isEmpty() ? "UTF-8" : charsets.get(0);
-        if ("GB2312".equals(encoding)) {
-            encoding = "GBK";
+        String end() {
+            det.DataEnd();
+
+            String encoding = charsets.isEmpty() ? "UTF-8" : charsets.get(0);
+            if ("GB2312".equals(encoding)) {
+                encoding = "GBK";
+            }
+            return encoding;
         }
-        return encoding;
     }
 }
@@ -73,8 +73,10 @@ public class DynamicLayout extends Layout {
     private static final int TOP = 1;
     private static final int DESCENT = 2;
     private static final int LINE_BREAK = 3;
+    // jec+: 到这一行为止（包括这一行）有多少行是真正的换行，行号和虚拟行互相换算不用从头数
+    private static final int REAL_LINES = 4;
     //    private static final int COLUMNS_NORMAL = 3;
-    private static final int COLUMNS_NORMAL = 4;
+    private static final int COLUMNS_NORMAL = 5;
     private static final int ELLIPSIS_START = 3;
     private static final int ELLIPSIS_COUNT = 4;
     private static final int COLUMNS_ELLIPSIZE = 5;
@@ -212,9 +214,11 @@ public class DynamicLayout extends Layout {
         start[TOP] = 0;
         start[DESCENT] = desc;
         start[LINE_BREAK] = 1; //jec: default has newline
+        start[REAL_LINES] = 1;
         mInts.insertAt(0, start);
 
         start[TOP] = desc - asc;
+        start[REAL_LINES] = 2;
         mInts.insertAt(1, start);
 
         mObjects.insertAt(0, dirs);
@@ -347,6 +351,10 @@ public class DynamicLayout extends Layout {
         if (where + after != len && reflowed.getLineStart(n - 1) == where + after)
             n--;
 
+        // 被替换的行之前和之中各有多少真正的换行
+        int realLinesBefore = startline > 0 ? mInts.getValue(startline - 1, REAL_LINES) : 0;
+        int oldRealLines = endline > startline ? mInts.getValue(endline - 1, REAL_LINES) - realLinesBefore : 0;
+
         // remove affected lines from old layout
         mInts.deleteAt(startline, endline - startline);
         mObjects.deleteAt(startline, endline - startline);
@@ -370,6 +378,13 @@ public class DynamicLayout extends Layout {
         mInts.adjustValuesBelow(startline, START, after - before);
         mInts.adjustValuesBelow(startline, TOP, startv - endv + ht);
 
+        int newRealLines = 0;
+        for (int i = 0; i < n; i++) {
+            if (reflowed.isRealNewLine(i))
+                newRealLines++;
+        }
+        mInts.adjustValuesBelow(startline, REAL_LINES, newRealLines - oldRealLines);
+
         // insert new layout
 
         int[] ints;
@@ -401,6 +416,8 @@ public class DynamicLayout extends Layout {
             objects[0] = reflowed.getLineDirections(i);
 
             ints[LINE_BREAK] = reflowed.isRealNewLine(i) ? 1 : 0;
+            realLinesBefore += ints[LINE_BREAK];
+            ints[REAL_LINES] = realLinesBefore;
 
             if (mEllipsize) {
                 ints[ELLIPSIS_START] = reflowed.getEllipsisStart(i);
@@ -665,27 +682,24 @@ public class DynamicLayout extends Layout {
     public int getRealLine(int line) {
         if (!isRealNewLine(line))
             return 0;
-        int realLine = 0;
-        for (int i = 0; i <= line; i++) {
-            if (isRealNewLine(i))
-                realLine++;
-        }
-        return realLine;
+        return mInts.getValue(line, REAL_LINES);
     }
 
     @Override
     public int realLineToVirtualLine(int line) {
         int count = getLineCount();
-        if (line > count)
+        if (line > count || count == 0)
             return -1;
-        int realLine = 0;
-        for (int i = 0; i < count; i++) {
-            if (isRealNewLine(i))
-                realLine++;
-            if (realLine == line)
-                return i;
-        }
-        return -1;
+        // REAL_LINES 是递增的，二分找第一个达到 line 的虚拟行
+        int low = 0, high = count - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mInts.getValue(mid, REAL_LINES) < line)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return mInts.getValue(low, REAL_LINES) == line ? low : -1;
     }
 
     @Override
@@ -416,7 +416,7 @@ public abstract class Layout {
             if (layoutContext.pref.isShowLineNumber()) {
                 int realLine = getRealLine(i);
                 if (realLine != 0) {
-                    layoutContext.textLineNumber.addLine(Integer.toString(realLine), lbottom);
+                    layoutContext.textLineNumber.addLine(realLine, lbottom);
                 }
             }
             //end jec+
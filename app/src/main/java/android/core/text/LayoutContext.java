@@ -33,6 +33,10 @@ public class LayoutContext {
     public Paint gutterBackgroundPaint;
     public float tabPath;
     public int gutterWidth;
+    /**
+     * gutterWidth 是按这么多位的行号量出来的，位数变了才重新量
+     */
+    public int gutterDigits;
     public int lineNumberX;
     public float translateX;
     public float translateY;
@@ -42,4 +46,8 @@ public class LayoutContext {
     public boolean isShowWhiteSpace;
     public int whiteSpaceColor;
     public TextLineNumber textLineNumber = new TextLineNumber();
+    /**
+     * 语法高亮的颜色，没有高亮时为 null
+     */
+    public StyleRuns styleRuns;
 }
@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import android.text.GetChars;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An immutable sequence of chars kept as a height balanced tree of chunks.
+ * <p>
+ * Insert, delete, slice and charAt cost O(log n) whatever the distance between two edits, and an
+ * edit copies at most one chunk. Every edit returns a new rope that shares all the untouched
+ * chunks with the old one, so keeping an old version around is free and it can be read from any
+ * thread.
+ * <p>
+ * A chunk whose chars all fit in Latin-1 is kept as one byte per char, which halves the memory
+ * of ASCII text such as logs, JSON or source code. Only the chunks an edit puts a wider char in
+ * are stored as chars.
+ * <p>
+ * A rope made by {@link #paged(Pages)} doesn't hold the text at all: each chunk reads a page of a
+ * {@link Pages} source, such as a file decoded on demand, and only the chunks an edit touches are
+ * copied to the heap.
+ */
+public final class Rope implements CharSequence, GetChars {
+    /**
+     * 叶子最多这么多个字符，一次编辑最多复制这么多
+     */
+    static final int MAX_LEAF = 4096;
+    public static final Rope EMPTY = new Rope(new Leaf(new byte[0], 0, 0));
+
+    private final Node root;
+    /**
+     * 上次 charAt 所在的叶子，顺序读取时不用每次都从根往下找
+     */
+    private Cursor cursor;
+
+    /**
+     * Text which is decoded a page at a time when it is read.
+     */
+    public interface Pages {
+        int getPageCount();
+
+        int getPageLength(int page);
+
+        /**
+         * Called from any thread. The array must not be changed, it is read without copying.
+         *
+         * @return an array of {@link #getPageLength(int)} chars
+         */
+        char[] getPage(int page);
+    }
+
+    private Rope(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Make a rope over all the pages of <code>pages</code>, which must not change afterwards.
+     * Nothing is read until the chars are.
+     */
+    public static Rope paged(Pages pages) {
+        int count = pages.getPageCount();
+        ArrayList<Node> leaves = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = pages.getPageLength(i);
+            if (length > 0)
+                leaves.add(new Leaf(pages, i, 0, length));
+        }
+        if (leaves.isEmpty())
+            return EMPTY;
+        return new Rope(build(leaves.toArray(new Node[leaves.size()]), 0, leaves.size()));
+    }
+
+    /**
+     * Make a rope over <code>text[start, end)</code>, the array must not be changed afterwards.
+     * <p>
+     * If none of the chunks fit in Latin-1 the array is shared without copying. Otherwise those
+     * chunks are packed into bytes and the others copied, so that the array can be freed.
+     */
+    public static Rope wrap(char[] text, int start, int end) {
+        int length = end - start;
+        if (length <= 0)
+            return EMPTY;
+        Node[] leaves = new Node[(length + MAX_LEAF - 1) / MAX_LEAF];
+        boolean packed = false;
+        for (int i = 0; i < leaves.length; i++) {
+            int offset = start + i * MAX_LEAF;
+            int count = Math.min(MAX_LEAF, end - offset);
+            if (isLatin1(text, offset, count)) {
+                leaves[i] = new Leaf(pack(text, offset, count), 0, count);
+                packed = true;
+            } else {
+                leaves[i] = new Leaf(text, offset, count);
+            }
+        }
+        if (packed) {
+            for (int i = 0; i < leaves.length; i++) {
+                Leaf leaf = (Leaf) leaves[i];
+                if (leaf.chars != null)
+                    leaves[i] = new Leaf(Arrays.copyOfRange(leaf.chars, leaf.offset, leaf.offset + leaf.length), 0, leaf.length);
+            }
+        }
+        return new Rope(build(leaves, 0, leaves.length));
+    }
+
+    /**
+     * Copy <code>text[start, end)</code> into a rope, another rope is shared instead.
+     */
+    public static Rope valueOf(CharSequence text, int start, int end) {
+        if (text instanceof Rope)
+            return ((Rope) text).subSequence(start, end);
+        return new Rope(copyOf(text, start, end));
+    }
+
+    private static Node copyOf(CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length <= 0)
+            return EMPTY.root;
+        Node[] leaves = new Node[(length + MAX_LEAF - 1) / MAX_LEAF];
+        for (int i = 0; i < leaves.length; i++) {
+            int from = start + i * MAX_LEAF;
+            int count = Math.min(MAX_LEAF, end - from);
+            char[] chars = new char[count];
+            TextUtils.getChars(text, from, from + count, chars, 0);
+            leaves[i] = isLatin1(chars, 0, count) ? new Leaf(pack(chars, 0, count), 0, count) : new Leaf(chars, 0, count);
+        }
+        return build(leaves, 0, leaves.length);
+    }
+
+    private static boolean isLatin1(char[] chars, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            if (chars[i] > 0xFF)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] pack(char[] chars, int offset, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) chars[offset + i];
+        }
+        return bytes;
+    }
+
+    private static Node build(Node[] leaves, int from, int to) {
+        if (to - from == 1)
+            return leaves[from];
+        int mid = (from + to) >>> 1;
+        return new Branch(build(leaves, from, mid), build(leaves, mid, to));
+    }
+
+    @Override
+    public int length() {
+        return root.length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= root.length)
+            throw new IndexOutOfBoundsException("charAt: " + index + " length " + root.length);
+        Cursor c = cursor;
+        if (c != null && index >= c.start && index < c.start + c.leaf.length)
+            return c.chars != null ? c.chars[c.leaf.offset + index - c.start] : c.leaf.charAt(index - c.start);
+
+        Node node = root;
+        int start = 0;
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int leftLength = branch.left.length;
+            if (index - start < leftLength) {
+                node = branch.left;
+            } else {
+                start += leftLength;
+                node = branch.right;
+            }
+        }
+        Leaf leaf = (Leaf) node;
+        c = new Cursor(leaf, start);
+        cursor = c;
+        return c.chars != null ? c.chars[leaf.offset + index - start] : leaf.charAt(index - start);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        if (start < 0 || end > root.length || start > end)
+            throw new IndexOutOfBoundsException("getChars: " + start + " ... " + end + " length " + root.length);
+        if (start < end)
+            getChars(root, start, end, dest, destoff);
+    }
+
+    private static void getChars(Node node, int start, int end, char[] dest, int destoff) {
+        while (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int leftLength = branch.left.length;
+            if (end <= leftLength) {
+                node = branch.left;
+            } else if (start >= leftLength) {
+                node = branch.right;
+                start -= leftLength;
+                end -= leftLength;
+            } else {
+                getChars(branch.left, start, leftLength, dest, destoff);
+                destoff += leftLength - start;
+                node = branch.right;
+                start = 0;
+                end -= leftLength;
+            }
+        }
+        ((Leaf) node).getChars(start, end, dest, destoff);
+    }
+
+    @Override
+    public Rope subSequence(int start, int end) {
+        if (start < 0 || end > root.length || start > end)
+            throw new IndexOutOfBoundsException("subSequence: " + start + " ... " + end + " length " + root.length);
+        if (start == 0 && end == root.length)
+            return this;
+        Node[] head = split(root, end);
+        return new Rope(split(head[0], start)[1]);
+    }
+
+    /**
+     * @return a rope with <code>[start, end)</code> replaced by <code>text[textStart, textEnd)</code>
+     */
+    public Rope replace(int start, int end, CharSequence text, int textStart, int textEnd) {
+        if (start < 0 || end > root.length || start > end)
+            throw new IndexOutOfBoundsException("replace: " + start + " ... " + end + " length " + root.length);
+        Node middle = text instanceof Rope
+                ? ((Rope) text).subSequence(textStart, textEnd).root
+                : copyOf(text, textStart, textEnd);
+        Node[] head = split(root, start);
+        Node[] tail = split(head[1], end - start);
+        return new Rope(join(join(head[0], middle), tail[1]));
+    }
+
+    /**
+     * The chunks in order, wrapped without copying, for writing the text out. The Latin-1 and the
+     * paged chunks are read only buffers without a backing array; a paged one reads its page when
+     * it is first read.
+     */
+    public CharBuffer[] getCharBuffers() {
+        ArrayList<CharBuffer> buffers = new ArrayList<>();
+        collect(root, buffers);
+        return buffers.toArray(new CharBuffer[buffers.size()]);
+    }
+
+    private static void collect(Node node, ArrayList<CharBuffer> buffers) {
+        while (node instanceof Branch) {
+            collect(((Branch) node).left, buffers);
+            node = ((Branch) node).right;
+        }
+        Leaf leaf = (Leaf) node;
+        if (leaf.length == 0)
+            return;
+        if (leaf.chars != null) {
+            buffers.add(CharBuffer.wrap(leaf.chars, leaf.offset, leaf.length));
+        } else if (leaf.pages != null) {
+            buffers.add(CharBuffer.wrap(new PagedChars(leaf.pages, leaf.page, leaf.offset, leaf.length)));
+        } else {
+            buffers.add(CharBuffer.wrap(new Latin1Chars(leaf.bytes, leaf.offset, leaf.length)));
+        }
+    }
+
+    /**
+     * @return true if some of the chars are still read from a {@link Pages} source
+     */
+    public boolean isPaged() {
+        return root.paged;
+    }
+
+    /**
+     * @return the height of the tree, for tests
+     */
+    int height() {
+        return root.height;
+    }
+
+    @Override
+    public String toString() {
+        char[] buf = new char[root.length];
+        getChars(0, root.length, buf, 0);
+        return new String(buf);
+    }
+
+    private static Node[] split(Node node, int index) {
+        if (index <= 0)
+            return new Node[]{EMPTY.root, node};
+        if (index >= node.length)
+            return new Node[]{node, EMPTY.root};
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            return new Node[]{leaf.slice(0, index), leaf.slice(index, leaf.length)};
+        }
+        Branch branch = (Branch) node;
+        int leftLength = branch.left.length;
+        if (index < leftLength) {
+            Node[] parts = split(branch.left, index);
+            parts[1] = join(parts[1], branch.right);
+            return parts;
+        }
+        Node[] parts = split(branch.right, index - leftLength);
+        parts[0] = join(branch.left, parts[0]);
+        return parts;
+    }
+
+    private static Node join(Node left, Node right) {
+        if (left.length == 0)
+            return right;
+        if (right.length == 0)
+            return left;
+        if (left instanceof Leaf && right instanceof Leaf && left.length + right.length <= MAX_LEAF) {
+            // 小的碎片合并，连续输入时不会变成一个字符一个叶子
+            Leaf l = (Leaf) left;
+            Leaf r = (Leaf) right;
+            int length = l.length + r.length;
+            if (l.bytes != null && r.bytes != null) {
+                byte[] bytes = new byte[length];
+                System.arraycopy(l.bytes, l.offset, bytes, 0, l.length);
+                System.arraycopy(r.bytes, r.offset, bytes, l.length, r.length);
+                return new Leaf(bytes, 0, length);
+            }
+            // 有一边不是 Latin-1，合并后按字符保存
+            char[] chars = new char[length];
+            l.getChars(0, l.length, chars, 0);
+            r.getChars(0, r.length, chars, l.length);
+            return new Leaf(chars, 0, length);
+        }
+        if (left.height > right.height + 1) {
+            Branch l = (Branch) left;
+            return balance(l.left, join(l.right, right));
+        }
+        if (right.height > left.height + 1) {
+            Branch r = (Branch) right;
+            return balance(join(left, r.left), r.right);
+        }
+        return new Branch(left, right);
+    }
+
+    /**
+     * AVL rotations for two subtrees whose heights differ by at most 2
+     */
+    private static Node balance(Node left, Node right) {
+        if (left.height > right.height + 1) {
+            Branch l = (Branch) left;
+            if (l.left.height >= l.right.height)
+                return new Branch(l.left, new Branch(l.right, right));
+            Branch lr = (Branch) l.right;
+            return new Branch(new Branch(l.left, lr.left), new Branch(lr.right, right));
+        }
+        if (right.height > left.height + 1) {
+            Branch r = (Branch) right;
+            if (r.right.height >= r.left.height)
+                return new Branch(new Branch(left, r.left), r.right);
+            Branch rl = (Branch) r.left;
+            return new Branch(new Branch(left, rl.left), new Branch(rl.right, r.right));
+        }
+        return new Branch(left, right);
+    }
+
+    private static abstract class Node {
+        final int length;
+        final int height;
+        /**
+         * 子树里有从 {@link Pages} 读取的叶子
+         */
+        final boolean paged;
+
+        Node(int length, int height, boolean paged) {
+            this.length = length;
+            this.height = height;
+            this.paged = paged;
+        }
+    }
+
+    /**
+     * 字符放在 chars 里，或者都不超过 0xFF 时每个字符一个字节放在 bytes 里，
+     * 或者在 pages 的第 page 页里，用到时才读
+     */
+    private static final class Leaf extends Node {
+        final char[] chars;
+        final byte[] bytes;
+        final Pages pages;
+        final int page;
+        final int offset;
+
+        Leaf(char[] chars, int offset, int length) {
+            super(length, 0, false);
+            this.chars = chars;
+            this.bytes = null;
+            this.pages = null;
+            this.page = 0;
+            this.offset = offset;
+        }
+
+        Leaf(byte[] bytes, int offset, int length) {
+            super(length, 0, false);
+            this.chars = null;
+            this.bytes = bytes;
+            this.pages = null;
+            this.page = 0;
+            this.offset = offset;
+        }
+
+        Leaf(Pages pages, int page, int offset, int length) {
+            super(length, 0, true);
+            this.chars = null;
+            this.bytes = null;
+            this.pages = pages;
+            this.page = page;
+            this.offset = offset;
+        }
+
+        char charAt(int index) {
+            if (bytes != null)
+                return (char) (bytes[offset + index] & 0xFF);
+            if (pages != null)
+                return pages.getPage(page)[offset + index];
+            return chars[offset + index];
+        }
+
+        void getChars(int start, int end, char[] dest, int destoff) {
+            if (pages != null) {
+                System.arraycopy(pages.getPage(page), offset + start, dest, destoff, end - start);
+                return;
+            }
+            if (bytes == null) {
+                System.arraycopy(chars, offset + start, dest, destoff, end - start);
+                return;
+            }
+            for (int i = offset + start, last = offset + end; i < last; i++) {
+                dest[destoff++] = (char) (bytes[i] & 0xFF);
+            }
+        }
+
+        Leaf slice(int start, int end) {
+            if (bytes != null)
+                return new Leaf(bytes, offset + start, end - start);
+            if (pages != null)
+                return new Leaf(pages, page, offset + start, end - start);
+            return new Leaf(chars, offset + start, end - start);
+        }
+    }
+
+    /**
+     * 把 Latin-1 的叶子包装成 CharBuffer 用，不复制
+     */
+    private static final class Latin1Chars implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        Latin1Chars(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[offset + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Latin1Chars(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+
+    /**
+     * 保存时包装分页的叶子，第一次读取时才读出那一页，之后不再经过页缓存
+     */
+    private static final class PagedChars implements CharSequence {
+        private final Pages pages;
+        private final int page;
+        private final int offset;
+        private final int length;
+        private char[] chars;
+
+        PagedChars(Pages pages, int page, int offset, int length) {
+            this.pages = pages;
+            this.page = page;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (chars == null)
+                chars = pages.getPage(page);
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new PagedChars(pages, page, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            if (chars == null)
+                chars = pages.getPage(page);
+            return new String(chars, offset, length);
+        }
+    }
+
+    private static final class Branch extends Node {
+        final Node left;
+        final Node right;
+
+        Branch(Node left, Node right) {
+            super(left.length + right.length, Math.max(left.height, right.height) + 1, left.paged || right.paged);
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private static final class Cursor {
+        final Leaf leaf;
+        final int start;
+
+        /**
+         * 分页叶子所在的那一页，顺序读取时不用每个字符都查一次页缓存
+         */
+        final char[] chars;
+
+        Cursor(Leaf leaf, int start) {
+            this.leaf = leaf;
+            this.start = start;
+            this.chars = leaf.pages != null ? leaf.pages.getPage(leaf.page) : null;
+        }
+    }
+}
@@ -45,6 +45,8 @@ import android.text.style.URLSpan;
 import android.util.Log;
 
 import java.lang.reflect.Array;
+import java.nio.CharBuffer;
+import java.util.IdentityHashMap;
 
 /**
  * This is the class for text whose content and markup can both be changed.
@@ -66,16 +68,54 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     private static final int SPAN_END_AT_START = 0x4000;
     private static final int SPAN_END_AT_END = 0x8000;
     private static final int SPAN_START_END_MASK = 0xF000;
+    // Marks spans copied from the replacement text until the span watchers have been told
+    private static final int SPAN_ADDED = 0x800;
+    // jec+: 某种 span 不超过这么多个时，直接查它们的桶，不遍历整棵树
+    private static final int BUCKET_SCAN_LIMIT = 32;
+    // jec+: 记下这么多个变过的下标后不再逐个记录，整段整理
+    private static final int MAX_DIRTY_SPANS = 64;
+    private static final SpanBucket[] NO_BUCKETS = new SpanBucket[0];
     private InputFilter[] mFilters = NO_FILTERS;
     private char[] mText;
+    // jec+: 大文件的文本放在 rope 里，这时 mText 为 null，空隙只用来计算 span 的位置
+    private Rope mRope;
+    private int mCapacity;  // mText 的长度，rope 模式下是假想的数组长度
+    // jec+: 文本每改一次加一，快照记录自己对应的版本
+    private int mVersion;
+    private TextSnapshot mSnapshot;
+    // mText 被快照引用着，下次修改前要先复制一份
+    private boolean mTextShared;
+    // jec+: beginBatchEdit 的嵌套层数，批量修改时先记下改动的范围，结束时才通知 watcher
+    private int mBatchEditNesting;
+    private int mBatchEditId;
+    private int mBatchStart = -1;  // -1 表示这一批还没有改动
+    private int mBatchOldEnd;  // 改动范围在修改前文本中的结束位置
+    private int mBatchNewEnd;  // 改动范围在当前文本中的结束位置
     private int mGapStart;
     private int mGapLength;
     private Object[] mSpans;
     private int[] mSpanStarts;
     private int[] mSpanEnds;
+    private int[] mSpanMax;  // see calcMax() for an explanation of what this array stores
     private int[] mSpanFlags;
+    private int[] mSpanOrder;  // store the order of span insertion
+    private int mSpanInsertCount;  // counter for the span insertion
     private int mSpanCount;
-    private int mSpanCountBeforeAdd;
+    private IdentityHashMap<Object, Integer> mIndexOfSpan;
+    private int mLowWaterMark = Integer.MAX_VALUE;  // indices below this have not been touched
+    private int mHighWaterMark;  // jec+: indices at or above this have not been touched
+    // jec+: 上次整理后位置变过的下标，restoreInvariants 只重新排序它们、只重算它们到根的路径上的 mSpanMax
+    private int[] mDirtySpans = EmptyArray.INT;
+    private int mDirtyCount;
+    private boolean mDirtyRange;  // 下标太多没有记下来，整理 [mDirtyMin, mDirtyMax] 整段
+    private int mDirtyMin = Integer.MAX_VALUE;
+    private int mDirtyMax = -1;
+    private int mMaxRoot = -1;  // 上次计算 mSpanMax 时的 treeRoot()，树的形状变了要整个重新计算
+    // jec+: span 按具体的类分桶，mSpanSlots 是每个 span 在自己桶里的位置
+    private int[] mSpanSlots;
+    private IdentityHashMap<Class<?>, SpanBucket> mSpanBuckets;
+    // 每个类、父类和接口对应哪些桶，新建或者清空桶的时候更新，查询时只读
+    private IdentityHashMap<Class<?>, SpanBucket[]> mKindBuckets;
     private boolean isAutoIndent;
 
     /**
@@ -102,17 +142,27 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
         if (srclen < 0) throw new StringIndexOutOfBoundsException();
 
-        mText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(srclen));
+        if (text instanceof SpannableStringBuilder && ((SpannableStringBuilder) text).mRope != null) {
+            // jec+: rope 不可变，直接共用，复制整个文档也不用复制字符
+            mRope = ((SpannableStringBuilder) text).mRope.subSequence(start, end);
+            mCapacity = GrowingArrayUtils.growSize(srclen);
+        } else {
+            mText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(srclen));
+            mCapacity = mText.length;
+            TextUtils.getChars(text, start, end, mText, 0);
+        }
         mGapStart = srclen;
-        mGapLength = mText.length - srclen;
-
-        TextUtils.getChars(text, start, end, mText, 0);
+        mGapLength = mCapacity - srclen;
 
         mSpanCount = 0;
+        mSpanInsertCount = 0;
         mSpans = EmptyArray.OBJECT;
         mSpanStarts = EmptyArray.INT;
         mSpanEnds = EmptyArray.INT;
         mSpanFlags = EmptyArray.INT;
+        mSpanMax = EmptyArray.INT;
+        mSpanOrder = EmptyArray.INT;
+        mSpanSlots = EmptyArray.INT;
 
         if (text instanceof Spanned) {
             Spanned sp = (Spanned) text;
@@ -139,6 +189,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
                 setSpan(false, spans[i], st, en, fl);
             }
+            restoreInvariants();
         }
     }
 
@@ -146,6 +197,143 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         init(text, start, end);
     }
 
+    private SpannableStringBuilder(Rope rope) {
+        init(null, 0, rope.length());
+        mRope = rope;
+        mCapacity = GrowingArrayUtils.growSize(rope.length());
+        mGapLength = mCapacity - mGapStart;
+    }
+
+    /**
+     * jec+: 文本放在 {@link Rope} 里而不是一个带空隙的数组，用于很大的文件：相隔很远的两处编辑
+     * 不用移动中间的字符，文本变长时也不用复制整个数组。Latin-1 的部分每个字符只占一个字节。
+     * text 之后不能再修改
+     */
+    public static SpannableStringBuilder ropeOf(char[] text, int start, int end) {
+        return new SpannableStringBuilder(Rope.wrap(text, start, end));
+    }
+
+    /**
+     * jec+: 同 {@link #ropeOf(char[], int, int)}，复制 text 的字符，不复制 span
+     */
+    public static SpannableStringBuilder ropeOf(CharSequence text) {
+        return new SpannableStringBuilder(Rope.valueOf(text, 0, text.length()));
+    }
+
+    /**
+     * @return true if the text is kept in a {@link Rope}
+     */
+    public boolean isRope() {
+        return mRope != null;
+    }
+
+    /**
+     * jec+: 还有字符要从文件按页读取，这时不能原地改写那个文件
+     */
+    public boolean isPaged() {
+        return mRope != null && mRope.isPaged();
+    }
+
+    /**
+     * jec+: 文本当前版本的不可变视图，交给后台线程读取，不用复制整个文本
+     */
+    public TextSnapshot getSnapshot() {
+        if (mSnapshot != null && mSnapshot.getVersion() == mVersion)
+            return mSnapshot;
+        if (mRope != null) {
+            mSnapshot = new TextSnapshot(mVersion, mRope);
+        } else {
+            mTextShared = true;
+            mSnapshot = new TextSnapshot(mVersion, mText, mGapStart, mGapLength, length());
+        }
+        return mSnapshot;
+    }
+
+    /**
+     * @return a number that changes every time the text changes
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * jec+: 写 mText 之前调用，快照还在用的数组不能改
+     */
+    private void unshareText() {
+        if (mTextShared) {
+            mText = mText.clone();
+            mTextShared = false;
+        }
+    }
+
+    /**
+     * jec+: Start a batch of edits. Until the matching {@link #endBatchEdit()} the text and
+     * spans change as usual, but the TextWatchers and SpanWatchers are not told; the outermost
+     * endBatchEdit sends them one change that covers everything edited in between, so the
+     * layout reflows and the document is highlighted once for the whole batch.
+     * Calls may nest.
+     */
+    public void beginBatchEdit() {
+        if (mBatchEditNesting++ == 0) {
+            mBatchEditId++;
+            mBatchStart = -1;
+        }
+    }
+
+    /**
+     * jec+: End a batch started by {@link #beginBatchEdit()}. Note that the watchers get
+     * beforeTextChanged after the text has already changed.
+     */
+    public void endBatchEdit() {
+        if (mBatchEditNesting <= 0)
+            throw new IllegalStateException("endBatchEdit without beginBatchEdit");
+        if (--mBatchEditNesting > 0 || mBatchStart < 0)
+            return;
+
+        final int start = mBatchStart;
+        final int before = mBatchOldEnd - start;
+        final int after = mBatchNewEnd - start;
+        mBatchStart = -1;
+
+        TextWatcher[] textWatchers = getSpans(start, start + after, TextWatcher.class);
+        sendBeforeTextChanged(textWatchers, start, before, after);
+        sendTextChanged(textWatchers, start, before, after);
+        sendAfterTextChanged(textWatchers);
+        sendToSpanWatchers(start, mBatchOldEnd, after - before);
+    }
+
+    /**
+     * @return true between {@link #beginBatchEdit()} and the matching {@link #endBatchEdit()}
+     */
+    public boolean isInBatchEdit() {
+        return mBatchEditNesting > 0;
+    }
+
+    /**
+     * @return a number that is different for every batch of edits, so that an
+     * {@link InputFilter} can tell whether two edits belong to the same batch
+     */
+    public int getBatchEditId() {
+        return mBatchEditId;
+    }
+
+    /**
+     * 把 [start, end) 换成 newLen 个字符的改动并入这一批的范围，start、end 是当前文本的位置
+     */
+    private void addBatchChange(int start, int end, int newLen) {
+        if (mBatchStart < 0) {
+            mBatchStart = start;
+            mBatchOldEnd = end;
+            mBatchNewEnd = start + newLen;
+            return;
+        }
+        // 范围之后的位置在修改前的文本中要减去已经增加的字符数
+        if (end > mBatchNewEnd)
+            mBatchOldEnd += end - mBatchNewEnd;
+        mBatchNewEnd = Math.max(mBatchNewEnd, end) + newLen - (end - start);
+        mBatchStart = Math.min(mBatchStart, start);
+    }
+
     public static SpannableStringBuilder valueOf(CharSequence source) {
         if (source instanceof SpannableStringBuilder) {
             return (SpannableStringBuilder) source;
@@ -176,17 +364,21 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         int srclen = end - start;
 
         mText = text;
+        mCapacity = text == null ? srclen : text.length;
         mGapStart = srclen;
-        mGapLength = mText.length - srclen;
+        mGapLength = mCapacity - srclen;
 
 //        TextUtils.getChars(text, start, end, mText, 0);
 
         mSpanCount = 0;
+        mSpanInsertCount = 0;
         mSpans = EmptyArray.OBJECT;
         mSpanStarts = EmptyArray.INT;
         mSpanEnds = EmptyArray.INT;
         mSpanFlags = EmptyArray.INT;
-
+        mSpanMax = EmptyArray.INT;
+        mSpanOrder = EmptyArray.INT;
+        mSpanSlots = EmptyArray.INT;
     }
 
     /**
@@ -200,6 +392,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             throw new IndexOutOfBoundsException("charAt: " + where + " >= length " + len);
         }
 
+        if (mRope != null)
+            return mRope.charAt(where);
         if (where >= mGapStart)
             return mText[where + mGapLength];
         else
@@ -210,31 +404,46 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * Return the number of chars in the buffer.
      */
     public int length() {
-        return mText.length - mGapLength;
+        return mCapacity - mGapLength;
     }
 
     private void resizeFor(int size) {
-        final int oldLength = mText.length;
+        final int oldLength = mCapacity;
         if (size + 1 <= oldLength) {
             return;
         }
 
-        char[] newText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(size));
-        System.arraycopy(mText, 0, newText, 0, mGapStart);
-        final int newLength = newText.length;
+        final int newLength;
+        if (mRope != null) {
+            // jec+: 没有数组要复制，只是空隙变大
+            newLength = GrowingArrayUtils.growSize(size);
+        } else {
+            char[] newText = ArrayUtils.newUnpaddedCharArray(GrowingArrayUtils.growSize(size));
+            System.arraycopy(mText, 0, newText, 0, mGapStart);
+            newLength = newText.length;
+            final int after = oldLength - (mGapStart + mGapLength);
+            System.arraycopy(mText, oldLength - after, newText, newLength - after, after);
+            mText = newText;
+            mTextShared = false;
+        }
+        mCapacity = newLength;
         final int delta = newLength - oldLength;
-        final int after = oldLength - (mGapStart + mGapLength);
-        System.arraycopy(mText, oldLength - after, newText, newLength - after, after);
-        mText = newText;
 
         mGapLength += delta;
         if (mGapLength < 1)
             new Exception("mGapLength < 1").printStackTrace();
 
+        if (mSpanCount == 0)
+            return;
         for (int i = 0; i < mSpanCount; i++) {
             if (mSpanStarts[i] > mGapStart) mSpanStarts[i] += delta;
             if (mSpanEnds[i] > mGapStart) mSpanEnds[i] += delta;
         }
+        // jec+: 所有位置一起平移，最大值还是同一个 span 的结束位置，跟着平移就行
+        int maxCount = 2 * treeRoot() + 1;
+        for (int i = 0; i < maxCount; i++) {
+            if (mSpanMax[i] > mGapStart) mSpanMax[i] += delta;
+        }
     }
 
     private void moveGapTo(int where) {
@@ -243,10 +452,14 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
         boolean atEnd = (where == length());
 
-        if (where < mGapStart) {
+        if (mRope != null) {
+            // jec+: rope 里的字符不用移动
+        } else if (where < mGapStart) {
+            unshareText();
             int overlap = mGapStart - where;
             System.arraycopy(mText, where, mText, mGapStart + mGapLength - overlap, overlap);
         } else /* where > mGapStart */ {
+            unshareText();
             int overlap = where - mGapStart;
             System.arraycopy(mText, where + mGapLength - overlap, mText, mGapStart, overlap);
         }
@@ -280,7 +493,26 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
             mSpanStarts[i] = start;
             mSpanEnds[i] = end;
+            // jec+: 停在 where 前面的 MARK 和下面 mSpanMax 的平移规则不同，可能要换到 POINT 前面，
+            // 最大值也要重新算
+            if (start == where || end == where)
+                invalidateMax(i);
         }
+        // jec+: 其它位置都是保持顺序的平移，最大值还是同一个 span 的结束位置，跟着平移就行。
+        // where 上的最大值按 POINT 处理
+        int maxCount = mSpanCount == 0 ? 0 : 2 * treeRoot() + 1;
+        for (int i = 0; i < maxCount; i++) {
+            int max = mSpanMax[i];
+            if (max > mGapStart)
+                max -= mGapLength;
+            if (max >= where)
+                max += mGapLength;
+            mSpanMax[i] = max;
+        }
+        // A POINT and a MARK at where no longer share a position, keep them in order by
+        // position in the buffer so text inserted at the gap can't reorder them.
+        if (mSpanCount != 0)
+            restoreInvariants();
 
         mGapStart = where;
     }
@@ -312,27 +544,16 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
     // Documentation from interface
     public void clearSpans() {
-        for (int i = mSpanCount - 1; i >= 0; i--) {
-            Object what = mSpans[i];
-
-            //start jec+: 仅清除颜色的Span就行了，不然会导致无法输入文字等等问题，因为默认还有其它非颜色的span
-            if (!(what instanceof ForegroundColorSpan))
-                continue;
-            //end jec+
-
-            int ostart = mSpanStarts[i];
-            int oend = mSpanEnds[i];
-
-            if (ostart > mGapStart)
-                ostart -= mGapLength;
-            if (oend > mGapStart)
-                oend -= mGapLength;
-
-            mSpanCount = i;
-            mSpans[i] = null;
-
-            sendSpanRemoved(what, ostart, oend);
+        //start jec+: 仅清除颜色的Span就行了，不然会导致无法输入文字等等问题，因为默认还有其它非颜色的span
+        int[] indexes = EmptyArray.INT;
+        int n = 0;
+        for (int i = 0; i < mSpanCount; i++) {
+            if (mSpans[i] instanceof ForegroundColorSpan)
+                indexes = GrowingArrayUtils.append(indexes, n++, i);
         }
+        if (n > 0)
+            removeSpans(indexes, n);
+        //end jec+
     }
 
     // Documentation from interface
@@ -374,6 +595,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         final int replacementLength = csEnd - csStart;
         final int nbNewChars = replacementLength - replacedLength;
 
+        boolean changed = false;
         for (int i = mSpanCount - 1; i >= 0; i--) {
             int spanStart = mSpanStarts[i];
             if (spanStart > mGapStart)
@@ -400,8 +622,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                             break;
                 }
 
-                if (spanStart != ost || spanEnd != oen)
+                if (spanStart != ost || spanEnd != oen) {
                     setSpan(false, mSpans[i], spanStart, spanEnd, mSpanFlags[i]);
+                    changed = true;
+                }
             }
 
             int flags = 0;
@@ -411,35 +635,39 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             else if (spanEnd == end + nbNewChars) flags |= SPAN_END_AT_END;
             mSpanFlags[i] |= flags;
         }
+        if (changed) {
+            restoreInvariants();
+        }
 
         moveGapTo(end);
 
         if (nbNewChars >= mGapLength) {
-            resizeFor(mText.length + nbNewChars - mGapLength);
+            resizeFor(mCapacity + nbNewChars - mGapLength);
         }
 
         final boolean textIsRemoved = replacementLength == 0;
         // The removal pass needs to be done before the gap is updated in order to broadcast the
         // correct previous positions to the correct intersecting SpanWatchers
         if (replacedLength > 0) { // no need for span fixup on pure insertion
-            // A for loop will not work because the array is being modified
-            // Do not iterate in reverse to keep the SpanWatchers notified in ordering
-            // Also, a removed SpanWatcher should not get notified of removed spans located
-            // further in the span array.
-            int i = 0;
-            while (i < mSpanCount) {
+            // jec+: spans are sorted by start, so only those starting inside the replaced
+            // range are candidates. They are removed together and notified afterwards, in
+            // ordering, instead of shifting the arrays once per span.
+            int[] indexes = EmptyArray.INT;
+            int n = 0;
+            for (int i = firstSpanStartingAt(start); i < mSpanCount; i++) {
+                if (resolveGap(mSpanStarts[i]) > end)
+                    break;
                 if ((mSpanFlags[i] & Spanned.SPAN_EXCLUSIVE_EXCLUSIVE) ==
                         Spanned.SPAN_EXCLUSIVE_EXCLUSIVE &&
                         mSpanStarts[i] >= start && mSpanStarts[i] < mGapStart + mGapLength &&
                         mSpanEnds[i] >= start && mSpanEnds[i] < mGapStart + mGapLength &&
                         // This condition indicates that the span would become empty
                         (textIsRemoved || mSpanStarts[i] > start || mSpanEnds[i] < mGapStart)) {
-                    removeSpan(i);
-                    continue; // do not increment i, spans will be shifted left in the array
+                    indexes = GrowingArrayUtils.append(indexes, n++, i);
                 }
-
-                i++;
             }
+            if (n > 0)
+                removeSpans(indexes, n);
         }
 
         mGapStart += nbNewChars;
@@ -448,24 +676,37 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         if (mGapLength < 1)
             new Exception("mGapLength < 1").printStackTrace();
 
-        TextUtils.getChars(cs, csStart, csEnd, mText, start);
+        if (mRope != null) {
+            // jec+: 从另一个 rope 文本粘贴时共用它的块
+            CharSequence source = cs instanceof SpannableStringBuilder && ((SpannableStringBuilder) cs).mRope != null
+                    ? ((SpannableStringBuilder) cs).mRope : cs;
+            mRope = mRope.replace(start, end, source, csStart, csEnd);
+        } else if (replacementLength > 0) {
+            unshareText();
+            TextUtils.getChars(cs, csStart, csEnd, mText, start);
+        }
+        mVersion++;
 
         if (replacedLength > 0) { // no need for span fixup on pure insertion
-            final boolean atEnd = (mGapStart + mGapLength == mText.length);
+            final boolean atEnd = (mGapStart + mGapLength == mCapacity);
 
             for (int i = 0; i < mSpanCount; i++) {
                 final int startFlag = (mSpanFlags[i] & START_MASK) >> START_SHIFT;
-                mSpanStarts[i] = updatedIntervalBound(mSpanStarts[i], start, nbNewChars, startFlag,
+                final int spanStart = updatedIntervalBound(mSpanStarts[i], start, nbNewChars, startFlag,
                         atEnd, textIsRemoved);
 
                 final int endFlag = (mSpanFlags[i] & END_MASK);
-                mSpanEnds[i] = updatedIntervalBound(mSpanEnds[i], start, nbNewChars, endFlag,
+                final int spanEnd = updatedIntervalBound(mSpanEnds[i], start, nbNewChars, endFlag,
                         atEnd, textIsRemoved);
+                if (spanStart != mSpanStarts[i] || spanEnd != mSpanEnds[i]) {
+                    mSpanStarts[i] = spanStart;
+                    mSpanEnds[i] = spanEnd;
+                    invalidateMax(i);
+                }
             }
+            restoreInvariants();
         }
 
-        mSpanCountBeforeAdd = mSpanCount;
-
         if (cs instanceof Spanned) {
             Spanned sp = (Spanned) cs;
             Object[] spans = sp.getSpans(csStart, csEnd, Object.class);
@@ -480,9 +721,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 // Add span only if this object is not yet used as a span in this string
                 if (getSpanStart(spans[i]) < 0) {
                     setSpan(false, spans[i], st - csStart + start, en - csStart + start,
-                            sp.getSpanFlags(spans[i]));
+                            sp.getSpanFlags(spans[i]) | SPAN_ADDED);
                 }
             }
+            restoreInvariants();
         }
     }
 
@@ -527,19 +769,168 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         if (start > mGapStart) start -= mGapLength;
         if (end > mGapStart) end -= mGapLength;
 
+        removeFromBucket(i);
+
         int count = mSpanCount - (i + 1);
         System.arraycopy(mSpans, i + 1, mSpans, i, count);
         System.arraycopy(mSpanStarts, i + 1, mSpanStarts, i, count);
         System.arraycopy(mSpanEnds, i + 1, mSpanEnds, i, count);
         System.arraycopy(mSpanFlags, i + 1, mSpanFlags, i, count);
+        System.arraycopy(mSpanOrder, i + 1, mSpanOrder, i, count);
+        System.arraycopy(mSpanSlots, i + 1, mSpanSlots, i, count);
 
         mSpanCount--;
 
+        invalidateIndex(i);
+        invalidateMax(i, mSpanCount + 1);
         mSpans[mSpanCount] = null;
 
+        // Invariants must be restored before sending span removed notifications.
+        restoreInvariants();
+
         sendSpanRemoved(object, start, end);
     }
 
+    /**
+     * jec+: 一次去掉多个 span，数组只挪一遍、索引只整理一次，然后按顺序通知
+     *
+     * @param indexes 要去掉的 span 的下标，从小到大
+     */
+    private void removeSpans(int[] indexes, int n) {
+        Object[] removed = new Object[n];
+        int[] ranges = new int[2 * n];
+        for (int i = 0; i < n; i++) {
+            removeFromBucket(indexes[i]);
+        }
+        int first = indexes[0];
+        int w = first;
+        int next = 0;
+        for (int i = first; i < mSpanCount; i++) {
+            if (next < n && indexes[next] == i) {
+                removed[next] = mSpans[i];
+                ranges[2 * next] = resolveGap(mSpanStarts[i]);
+                ranges[2 * next + 1] = resolveGap(mSpanEnds[i]);
+                mIndexOfSpan.remove(mSpans[i]);
+                next++;
+                continue;
+            }
+            moveSpan(i, w++);
+        }
+        for (int i = w; i < mSpanCount; i++) {
+            mSpans[i] = null;
+        }
+        invalidateMax(first, mSpanCount);
+        mSpanCount = w;
+        invalidateIndex(first);
+
+        // Invariants must be restored before sending span removed notifications.
+        restoreInvariants();
+
+        for (int i = 0; i < n; i++) {
+            sendSpanRemoved(removed[i], ranges[2 * i], ranges[2 * i + 1]);
+        }
+    }
+
+    private void moveSpan(int from, int to) {
+        mSpans[to] = mSpans[from];
+        mSpanStarts[to] = mSpanStarts[from];
+        mSpanEnds[to] = mSpanEnds[from];
+        mSpanFlags[to] = mSpanFlags[from];
+        mSpanOrder[to] = mSpanOrder[from];
+        mSpanSlots[to] = mSpanSlots[from];
+    }
+
+    /**
+     * @return the slot of the new span in the bucket of its class
+     */
+    private int addToBucket(Object what) {
+        if (mSpanBuckets == null) {
+            mSpanBuckets = new IdentityHashMap<Class<?>, SpanBucket>();
+            mKindBuckets = new IdentityHashMap<Class<?>, SpanBucket[]>();
+        }
+        Class<?> type = what.getClass();
+        SpanBucket bucket = mSpanBuckets.get(type);
+        if (bucket == null) {
+            bucket = new SpanBucket(type);
+            mSpanBuckets.put(type, bucket);
+            addKind(type, bucket);
+        }
+        bucket.spans = GrowingArrayUtils.append(bucket.spans, bucket.count, what);
+        return bucket.count++;
+    }
+
+    /**
+     * Fills the slot of span i with the last span of the bucket. Needs mIndexOfSpan to find
+     * that span, so call it before the arrays are shifted.
+     */
+    private void removeFromBucket(int i) {
+        Object what = mSpans[i];
+        SpanBucket bucket = mSpanBuckets.get(what.getClass());
+        int slot = mSpanSlots[i];
+        int last = --bucket.count;
+        Object moved = bucket.spans[last];
+        bucket.spans[slot] = moved;
+        bucket.spans[last] = null;
+        if (moved != what) {
+            mSpanSlots[mIndexOfSpan.get(moved)] = slot;
+        }
+        if (bucket.count == 0) {
+            mSpanBuckets.remove(bucket.type);
+            removeKind(bucket.type, bucket);
+        }
+    }
+
+    /**
+     * Files the bucket under kind and every superclass and interface of it.
+     */
+    private void addKind(Class<?> kind, SpanBucket bucket) {
+        if (kind == null)
+            return;
+        SpanBucket[] buckets = mKindBuckets.get(kind);
+        // 接口可能从几条路径继承过来，已经登记过的类，它的父类也都登记过了
+        if (buckets != null && ArrayUtils.contains(buckets, bucket))
+            return;
+        mKindBuckets.put(kind, ArrayUtils.appendElement(SpanBucket.class, buckets, bucket));
+        addKind(kind.getSuperclass(), bucket);
+        for (Class<?> type : kind.getInterfaces()) {
+            addKind(type, bucket);
+        }
+    }
+
+    private void removeKind(Class<?> kind, SpanBucket bucket) {
+        if (kind == null)
+            return;
+        SpanBucket[] buckets = mKindBuckets.get(kind);
+        if (buckets == null || !ArrayUtils.contains(buckets, bucket))
+            return;
+        buckets = ArrayUtils.removeElement(SpanBucket.class, buckets, bucket);
+        if (buckets == null) {
+            mKindBuckets.remove(kind);
+        } else {
+            mKindBuckets.put(kind, buckets);
+        }
+        removeKind(kind.getSuperclass(), bucket);
+        for (Class<?> type : kind.getInterfaces()) {
+            removeKind(type, bucket);
+        }
+    }
+
+    /**
+     * @return the buckets of the classes that are a <code>kind</code>
+     */
+    private SpanBucket[] getBuckets(Class<?> kind) {
+        SpanBucket[] buckets = mKindBuckets == null ? null : mKindBuckets.get(kind);
+        return buckets == null ? NO_BUCKETS : buckets;
+    }
+
+    private static int countSpans(SpanBucket[] buckets) {
+        int count = 0;
+        for (SpanBucket bucket : buckets) {
+            count += bucket.count;
+        }
+        return count;
+    }
+
     // Documentation from interface
     public SpannableStringBuilder replace(int start, int end, CharSequence tb) {
         if (isAutoIndent && tb.length() == 1 && tb.charAt(0) == '\n') {
@@ -630,20 +1021,20 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     */
 
     private CharSequence autoIndent(int start) {
-        if (start < 0 || start >= mText.length)
+        if (start < 0 || start >= length())
             return "\n";
 
         char ch;
         //跳过\r
         for (; start >= 0; start--) {
-            ch = mText[start];
+            ch = charAt(start);
             if (ch != '\r')
                 break;
         }
 
         StringBuilder sb = new StringBuilder();
         for (int i = start; i >= 0; i--) {
-            ch = mText[i];
+            ch = charAt(i);
             if (ch == '\n' || ch == '\r') {
                 break;
             } else if (ch == ' ' || ch == '\t') {
@@ -682,8 +1073,15 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             return this;
         }
 
-        TextWatcher[] textWatchers = getSpans(start, start + origLen, TextWatcher.class);
-        sendBeforeTextChanged(textWatchers, start, origLen, newLen);
+        // jec+: 批量修改时只记下范围，endBatchEdit 再统一通知
+        final boolean batch = mBatchEditNesting > 0;
+        TextWatcher[] textWatchers = null;
+        if (batch) {
+            addBatchChange(start, end, newLen);
+        } else {
+            textWatchers = getSpans(start, start + origLen, TextWatcher.class);
+            sendBeforeTextChanged(textWatchers, start, origLen, newLen);
+        }
 
         // Try to keep the cursor / selection at the same relative position during
         // a text replacement. If replaced or replacement text length is zero, this
@@ -713,8 +1111,12 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 setSpan(false, Selection.SELECTION_END, selectionEnd, selectionEnd,
                         Spanned.SPAN_POINT_POINT);
             }
+            restoreInvariants();
         }
 
+        if (batch)
+            return this;
+
         sendTextChanged(textWatchers, start, origLen, newLen);
         sendAfterTextChanged(textWatchers);
 
@@ -725,12 +1127,15 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     }
 
     private void sendToSpanWatchers(int replaceStart, int replaceEnd, int nbNewChars) {
-        for (int i = 0; i < mSpanCountBeforeAdd; i++) {
+        for (int i = 0; i < mSpanCount; i++) {
+            int spanFlags = mSpanFlags[i];
+
+            // This loop handles only modified (not added) spans.
+            if ((spanFlags & SPAN_ADDED) != 0) continue;
             int spanStart = mSpanStarts[i];
             int spanEnd = mSpanEnds[i];
             if (spanStart > mGapStart) spanStart -= mGapLength;
             if (spanEnd > mGapStart) spanEnd -= mGapLength;
-            int spanFlags = mSpanFlags[i];
 
             int newReplaceEnd = replaceEnd + nbNewChars;
             boolean spanChanged = false;
@@ -777,13 +1182,17 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             mSpanFlags[i] &= ~SPAN_START_END_MASK;
         }
 
-        // The spans starting at mIntermediateSpanCount were added from the replacement text
-        for (int i = mSpanCountBeforeAdd; i < mSpanCount; i++) {
-            int spanStart = mSpanStarts[i];
-            int spanEnd = mSpanEnds[i];
-            if (spanStart > mGapStart) spanStart -= mGapLength;
-            if (spanEnd > mGapStart) spanEnd -= mGapLength;
-            sendSpanAdded(mSpans[i], spanStart, spanEnd);
+        // Handle added spans
+        for (int i = 0; i < mSpanCount; i++) {
+            int spanFlags = mSpanFlags[i];
+            if ((spanFlags & SPAN_ADDED) != 0) {
+                mSpanFlags[i] &= ~SPAN_ADDED;
+                int spanStart = mSpanStarts[i];
+                int spanEnd = mSpanEnds[i];
+                if (spanStart > mGapStart) spanStart -= mGapLength;
+                if (spanEnd > mGapStart) spanEnd -= mGapLength;
+                sendSpanAdded(mSpans[i], spanStart, spanEnd);
+            }
         }
     }
 
@@ -847,11 +1256,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 end += mGapLength;
         }
 
-        int count = mSpanCount;
-        Object[] spans = mSpans;
-
-        for (int i = 0; i < count; i++) {
-            if (spans[i] == what) {
+        if (mIndexOfSpan != null) {
+            Integer index = mIndexOfSpan.get(what);
+            if (index != null) {
+                int i = index;
                 int ostart = mSpanStarts[i];
                 int oend = mSpanEnds[i];
 
@@ -863,8 +1271,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 mSpanStarts[i] = start;
                 mSpanEnds[i] = end;
                 mSpanFlags[i] = flags;
+                invalidateMax(i);
 
-                if (send) sendSpanChanged(what, ostart, oend, nstart, nend);
+                if (send) {
+                    // jec+: 只有这个 span 变了，只更新它到根的路径（比如移动光标）
+                    restoreInvariants();
+                    sendSpanChanged(what, ostart, oend, nstart, nend);
+                }
 
                 return;
             }
@@ -874,43 +1287,53 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mSpanStarts = GrowingArrayUtils.append(mSpanStarts, mSpanCount, start);
         mSpanEnds = GrowingArrayUtils.append(mSpanEnds, mSpanCount, end);
         mSpanFlags = GrowingArrayUtils.append(mSpanFlags, mSpanCount, flags);
+        mSpanOrder = GrowingArrayUtils.append(mSpanOrder, mSpanCount, mSpanInsertCount);
+        mSpanSlots = GrowingArrayUtils.append(mSpanSlots, mSpanCount, addToBucket(what));
+        invalidateIndex(mSpanCount);
+        invalidateMax(mSpanCount);
         mSpanCount++;
+        mSpanInsertCount++;
+        // Make sure there is enough room for empty interior nodes.
+        // This magic formula computes the size of the smallest perfect binary
+        // tree no smaller than mSpanCount.
+        int sizeOfMax = 2 * treeRoot() + 1;
+        if (mSpanMax.length < sizeOfMax) {
+            mSpanMax = new int[sizeOfMax];
+        }
 
-        if (send) sendSpanAdded(what, nstart, nend);
+        if (send) {
+            // jec+: 按位置依次加到最后的 span 不用移动，树的形状不变时只更新它到根的路径
+            restoreInvariants();
+            sendSpanAdded(what, nstart, nend);
+        }
     }
 
     /**
      * Remove the specified markup object from the buffer.
      */
     public void removeSpan(Object what) {
-        for (int i = mSpanCount - 1; i >= 0; i--) {
-            if (mSpans[i] == what) {
-                removeSpan(i);
-                return;
-            }
+        if (mIndexOfSpan == null) return;
+        Integer i = mIndexOfSpan.remove(what);
+        if (i != null) {
+            removeSpan(i.intValue());
         }
     }
 
+    /**
+     * Return externally visible offset given offset into gapped buffer.
+     */
+    private int resolveGap(int i) {
+        return i > mGapStart ? i - mGapLength : i;
+    }
+
     /**
      * Return the buffer offset of the beginning of the specified
      * markup object, or -1 if it is not attached to this buffer.
      */
     public int getSpanStart(Object what) {
-        int count = mSpanCount;
-        Object[] spans = mSpans;
-
-        for (int i = count - 1; i >= 0; i--) {
-            if (spans[i] == what) {
-                int where = mSpanStarts[i];
-
-                if (where > mGapStart)
-                    where -= mGapLength;
-
-                return where;
-            }
-        }
-
-        return -1;
+        if (mIndexOfSpan == null) return -1;
+        Integer i = mIndexOfSpan.get(what);
+        return i == null ? -1 : resolveGap(mSpanStarts[i]);
     }
 
     /**
@@ -918,21 +1341,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * markup object, or -1 if it is not attached to this buffer.
      */
     public int getSpanEnd(Object what) {
-        int count = mSpanCount;
-        Object[] spans = mSpans;
-
-        for (int i = count - 1; i >= 0; i--) {
-            if (spans[i] == what) {
-                int where = mSpanEnds[i];
-
-                if (where > mGapStart)
-                    where -= mGapLength;
-
-                return where;
-            }
-        }
-
-        return -1;
+        if (mIndexOfSpan == null) return -1;
+        Integer i = mIndexOfSpan.get(what);
+        return i == null ? -1 : resolveGap(mSpanEnds[i]);
     }
 
     /**
@@ -940,16 +1351,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * markup object, or 0 if it is not attached to this buffer.
      */
     public int getSpanFlags(Object what) {
-        int count = mSpanCount;
-        Object[] spans = mSpans;
-
-        for (int i = count - 1; i >= 0; i--) {
-            if (spans[i] == what) {
-                return mSpanFlags[i];
-            }
-        }
-
-        return 0;
+        if (mIndexOfSpan == null) return 0;
+        Integer i = mIndexOfSpan.get(what);
+        return i == null ? 0 : mSpanFlags[i];
     }
 
     private boolean isInstance(Class kind, Object span) {
@@ -998,98 +1402,147 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     @SuppressWarnings("unchecked")
     public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
         if (kind == null) return ArrayUtils.emptyArray(kind);
+        if (mSpanCount == 0) return ArrayUtils.emptyArray(kind);
 
-        int spanCount = mSpanCount;
-        Object[] spans = mSpans;
-        int[] starts = mSpanStarts;
-        int[] ends = mSpanEnds;
-        int[] flags = mSpanFlags;
-        int gapstart = mGapStart;
-        int gaplen = mGapLength;
-
-        int count = 0;
-        T[] ret = null;
-        T ret1 = null;
-
-        for (int i = 0; i < spanCount; i++) {
-            int spanStart = starts[i];
-            if (spanStart > gapstart) {
-                spanStart -= gaplen;
-            }
-            if (spanStart > queryEnd) {
-                continue;
-            }
-
-            int spanEnd = ends[i];
-            if (spanEnd > gapstart) {
-                spanEnd -= gaplen;
-            }
-            if (spanEnd < queryStart) {
-                continue;
+        // jec+: 找到的下标放在这次调用自己的数组里，不跟别的调用共用
+        SpanIndexes found = new SpanIndexes();
+        if (kind == Object.class) {
+            getSpansRec(queryStart, queryEnd, null, treeRoot(), found);
+        } else {
+            // jec+: 没有这种 span 就不用找了，很少的话只看它们自己的桶
+            SpanBucket[] buckets = getBuckets(kind);
+            int total = countSpans(buckets);
+            if (total == 0) {
+                return ArrayUtils.emptyArray(kind);
+            } else if (total <= BUCKET_SCAN_LIMIT) {
+                getSpansInBuckets(queryStart, queryEnd, buckets, found);
+            } else {
+                getSpansRec(queryStart, queryEnd, total == mSpanCount ? null : kind, treeRoot(), found);
             }
+        }
+        int count = found.count;
+        if (count == 0) {
+            return ArrayUtils.emptyArray(kind);
+        }
 
-            if (spanStart != spanEnd && queryStart != queryEnd) {
-                if (spanStart == queryEnd)
-                    continue;
-                if (spanEnd == queryStart)
-                    continue;
-            }
+        int[] indexes = found.indexes;
+        if (count > 1) {
+            sortByInsertionOrder(indexes, count);
+        }
 
-            // Expensive test, should be performed after the previous tests
-//            if (!kind.isInstance(spans[i])) continue;
-            if (!isInstance(kind, spans[i])) continue;
+        // Safe conversion, but requires a suppressWarning
+        T[] ret = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            // Safe conversion thanks to the kind tests when searching
+            ret[i] = (T) mSpans[indexes[i]];
+        }
+        return ret;
+    }
 
-            if (count == 0) {
-                // Safe conversion thanks to the isInstance test above
-                ret1 = (T) spans[i];
-                count++;
-            } else {
-                if (count == 1) {
-                    // Safe conversion, but requires a suppressWarning
-                    ret = (T[]) Array.newInstance(kind, spanCount - i + 1);
-                    ret[0] = ret1;
+    private void getSpansInBuckets(int queryStart, int queryEnd, SpanBucket[] buckets, SpanIndexes found) {
+        for (SpanBucket bucket : buckets) {
+            for (int j = 0; j < bucket.count; j++) {
+                int i = mIndexOfSpan.get(bucket.spans[j]);
+                if (intersects(resolveGap(mSpanStarts[i]), resolveGap(mSpanEnds[i]), queryStart, queryEnd)) {
+                    found.add(i);
                 }
+            }
+        }
+    }
 
-                int prio = flags[i] & SPAN_PRIORITY;
-                if (prio != 0) {
-                    int j;
-
-                    for (j = 0; j < count; j++) {
-                        int p = getSpanFlags(ret[j]) & SPAN_PRIORITY;
-
-                        if (prio > p) {
-                            break;
-                        }
-                    }
+    private static boolean intersects(int spanStart, int spanEnd, int queryStart, int queryEnd) {
+        return spanStart <= queryEnd && spanEnd >= queryStart &&
+                (spanStart == spanEnd || queryStart == queryEnd ||
+                        (spanStart != queryEnd && spanEnd != queryStart));
+    }
 
-                    System.arraycopy(ret, j, ret, j + 1, count - j);
-                    // Safe conversion thanks to the isInstance test above
-                    ret[j] = (T) spans[i];
-                    count++;
-                } else {
-                    // Safe conversion thanks to the isInstance test above
-                    ret[count++] = (T) spans[i];
-                }
+    /**
+     * @param kind null to take every span
+     */
+    private void getSpansRec(int queryStart, int queryEnd, Class<?> kind, int i, SpanIndexes found) {
+        if ((i & 1) != 0) {
+            // internal tree node
+            int left = leftChild(i);
+            int spanMax = mSpanMax[left];
+            if (spanMax > mGapStart) {
+                spanMax -= mGapLength;
+            }
+            if (spanMax >= queryStart) {
+                getSpansRec(queryStart, queryEnd, kind, left, found);
+            }
+        }
+        if (i >= mSpanCount) return;
+        int spanStart = mSpanStarts[i];
+        if (spanStart > mGapStart) {
+            spanStart -= mGapLength;
+        }
+        if (spanStart <= queryEnd) {
+            int spanEnd = mSpanEnds[i];
+            if (spanEnd > mGapStart) {
+                spanEnd -= mGapLength;
+            }
+            if (intersects(spanStart, spanEnd, queryStart, queryEnd) &&
+                    // Expensive test, should be performed after the previous tests
+                    (kind == null || isInstance(kind, mSpans[i]))) {
+                found.add(i);
+            }
+            if ((i & 1) != 0) {
+                getSpansRec(queryStart, queryEnd, kind, rightChild(i), found);
             }
         }
+    }
 
-        if (count == 0) {
-            return ArrayUtils.emptyArray(kind);
+    /**
+     * The tree returns spans in start order, callers expect them by decreasing priority and
+     * then in the order they were added, as before.
+     */
+    private void sortByInsertionOrder(int[] indexes, int count) {
+        int i = 1;
+        while (i < count && compareSpans(indexes[i - 1], indexes[i]) < 0) {
+            i++;
+        }
+        if (i == count) {
+            // 按位置依次加入的 span 本来就是这个顺序
+            return;
         }
-        if (count == 1) {
-            // Safe conversion, but requires a suppressWarning
-            ret = (T[]) Array.newInstance(kind, 1);
-            ret[0] = ret1;
-            return ret;
+        // heap sort
+        for (i = count / 2 - 1; i >= 0; i--) {
+            siftDown(i, indexes, count);
         }
-        if (count == ret.length) {
-            return ret;
+        for (i = count - 1; i > 0; i--) {
+            int tmp = indexes[0];
+            indexes[0] = indexes[i];
+            indexes[i] = tmp;
+            siftDown(0, indexes, i);
         }
+    }
 
-        // Safe conversion, but requires a suppressWarning
-        T[] nret = (T[]) Array.newInstance(kind, count);
-        System.arraycopy(ret, 0, nret, 0, count);
-        return nret;
+    private void siftDown(int index, int[] indexes, int size) {
+        int value = indexes[index];
+        int child = 2 * index + 1;
+        while (child < size) {
+            if (child + 1 < size && compareSpans(indexes[child], indexes[child + 1]) < 0) {
+                child++;
+            }
+            if (compareSpans(value, indexes[child]) >= 0) {
+                break;
+            }
+            indexes[index] = indexes[child];
+            index = child;
+            child = 2 * index + 1;
+        }
+        indexes[index] = value;
+    }
+
+    private int compareSpans(int left, int right) {
+        int leftPriority = mSpanFlags[left] & SPAN_PRIORITY;
+        int rightPriority = mSpanFlags[right] & SPAN_PRIORITY;
+        if (leftPriority != rightPriority) {
+            return leftPriority > rightPriority ? -1 : 1;
+        }
+        int leftOrder = mSpanOrder[left];
+        int rightOrder = mSpanOrder[right];
+        return leftOrder < rightOrder ? -1 : (leftOrder == rightOrder ? 0 : 1);
     }
 
     /**
@@ -1098,32 +1551,52 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * begins or ends.
      */
     public int nextSpanTransition(int start, int limit, Class kind) {
-        int count = mSpanCount;
-        Object[] spans = mSpans;
-        int[] starts = mSpanStarts;
-        int[] ends = mSpanEnds;
-        int gapstart = mGapStart;
-        int gaplen = mGapLength;
-
-        if (kind == null) {
-            kind = Object.class;
+        if (mSpanCount == 0) return limit;
+        if (kind == null || kind == Object.class) {
+            return nextSpanTransitionRec(start, limit, null, treeRoot());
         }
+        SpanBucket[] buckets = getBuckets(kind);
+        int total = countSpans(buckets);
+        if (total == 0) {
+            return limit;
+        } else if (total <= BUCKET_SCAN_LIMIT) {
+            for (SpanBucket bucket : buckets) {
+                for (int j = 0; j < bucket.count; j++) {
+                    int i = mIndexOfSpan.get(bucket.spans[j]);
+                    int st = resolveGap(mSpanStarts[i]);
+                    int en = resolveGap(mSpanEnds[i]);
+                    if (st > start && st < limit)
+                        limit = st;
+                    if (en > start && en < limit)
+                        limit = en;
+                }
+            }
+            return limit;
+        }
+        return nextSpanTransitionRec(start, limit, total == mSpanCount ? null : kind, treeRoot());
+    }
 
-        for (int i = 0; i < count; i++) {
-            int st = starts[i];
-            int en = ends[i];
-
-            if (st > gapstart)
-                st -= gaplen;
-            if (en > gapstart)
-                en -= gaplen;
-
-//            if (st > start && st < limit && kind.isInstance(spans[i]))
-            if (st > start && st < limit && isInstance(kind, spans[i]))
+    /**
+     * @param kind null to take every span
+     */
+    private int nextSpanTransitionRec(int start, int limit, Class kind, int i) {
+        if ((i & 1) != 0) {
+            // internal tree node
+            int left = leftChild(i);
+            if (resolveGap(mSpanMax[left]) > start) {
+                limit = nextSpanTransitionRec(start, limit, kind, left);
+            }
+        }
+        if (i < mSpanCount) {
+            int st = resolveGap(mSpanStarts[i]);
+            int en = resolveGap(mSpanEnds[i]);
+            if (st > start && st < limit && (kind == null || isInstance(kind, mSpans[i])))
                 limit = st;
-//            if (en > start && en < limit && kind.isInstance(spans[i]))
-            if (en > start && en < limit && isInstance(kind, spans[i]))
+            if (en > start && en < limit && (kind == null || isInstance(kind, mSpans[i])))
                 limit = en;
+            if (st < limit && (i & 1) != 0) {
+                limit = nextSpanTransitionRec(start, limit, kind, rightChild(i));
+            }
         }
 
         return limit;
@@ -1144,7 +1617,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     public void getChars(int start, int end, char[] dest, int destoff) {
         checkRange("getChars", start, end);
 
-        if (end <= mGapStart) {
+        if (mRope != null) {
+            mRope.getChars(start, end, dest, destoff);
+        } else if (end <= mGapStart) {
             System.arraycopy(mText, start, dest, destoff, end - start);
         } else if (start >= mGapStart) {
             System.arraycopy(mText, start + mGapLength, dest, destoff, end - start);
@@ -1259,9 +1734,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     public void drawText(Canvas c, int start, int end, float x, float y, Paint p) {
         checkRange("drawText", start, end);
 
-        if (end <= mGapStart) {
+        if (mRope == null && end <= mGapStart) {
             c.drawText(mText, start, end - start, x, y, p);
-        } else if (start >= mGapStart) {
+        } else if (mRope == null && start >= mGapStart) {
             c.drawText(mText, start + mGapLength, end - start, x, y, p);
         } else {
             char[] buf = TextUtils.obtain(end - start);
@@ -1304,10 +1779,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
         int contextLen = contextEnd - contextStart;
         int len = end - start;
-        if (contextEnd <= mGapStart) {
+        if (mRope == null && contextEnd <= mGapStart) {
 //            c.drawTextRun(mText, start, len, contextStart, contextLen, x, y, isRtl, p);
             CanvasCompat.drawTextRun(c, mText, start, len, contextStart, contextLen, x, y, isRtl, p);
-        } else if (contextStart >= mGapStart) {
+        } else if (mRope == null && contextStart >= mGapStart) {
 //            c.drawTextRun(mText, start + mGapLength, len, contextStart + mGapLength,
 //                    contextLen, x, y, isRtl, p);
             CanvasCompat.drawTextRun(c, mText, start + mGapLength, len, contextStart + mGapLength,
@@ -1330,9 +1805,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
         float ret;
 
-        if (end <= mGapStart) {
+        if (mRope == null && end <= mGapStart) {
             ret = p.measureText(mText, start, end - start);
-        } else if (start >= mGapStart) {
+        } else if (mRope == null && start >= mGapStart) {
             ret = p.measureText(mText, start + mGapLength, end - start);
         } else {
             char[] buf = TextUtils.obtain(end - start);
@@ -1354,9 +1829,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
 
         int ret;
 
-        if (end <= mGapStart) {
+        if (mRope == null && end <= mGapStart) {
             ret = p.getTextWidths(mText, start, end - start, widths);
-        } else if (start >= mGapStart) {
+        } else if (mRope == null && start >= mGapStart) {
             ret = p.getTextWidths(mText, start + mGapLength, end - start, widths);
         } else {
             char[] buf = TextUtils.obtain(end - start);
@@ -1496,9 +1971,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             Spanned other = (Spanned) o;
             // Check span data
             Object[] otherSpans = other.getSpans(0, other.length(), Object.class);
-            if (mSpanCount == otherSpans.length) {
-                for (int i = 0; i < mSpanCount; ++i) {
-                    Object thisSpan = mSpans[i];
+            Object[] thisSpans = getSpans(0, length(), Object.class);
+            if (thisSpans.length == otherSpans.length) {
+                for (int i = 0; i < thisSpans.length; ++i) {
+                    Object thisSpan = thisSpans[i];
                     Object otherSpan = otherSpans[i];
                     if (thisSpan == this) {
                         if (other != otherSpan ||
@@ -1525,8 +2001,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     public int hashCode() {
         int hash = toString().hashCode();
         hash = hash * 31 + mSpanCount;
-        for (int i = 0; i < mSpanCount; ++i) {
-            Object span = mSpans[i];
+        Object[] spans = getSpans(0, length(), Object.class);
+        for (int i = 0; i < spans.length; ++i) {
+            Object span = spans[i];
             if (span != this) {
                 hash = hash * 31 + span.hashCode();
             }
@@ -1537,6 +2014,321 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         return hash;
     }
 
+    // Primitives for treating span list as binary tree
+
+    // The spans (along with start and end offsets and flags) are stored in linear arrays sorted
+    // by start offset. For fast searching, there is a binary search structure imposed over these
+    // arrays. This structure is inorder traversal of a perfect binary tree, a slightly unusual
+    // but advantageous approach.
+
+    // The value-containing nodes are indexed 0 <= i < n (where n = mSpanCount), thus preserving
+    // logic that accesses the values as a contiguous array. Other balanced binary tree approaches
+    // (such as a complete binary tree) would require some shuffling of node indices.
+
+    // Basic properties of this structure: For a perfect binary tree of height m:
+    // The tree has 2^(m+1) - 1 total nodes.
+    // The root of the tree has index 2^m - 1.
+    // All leaf nodes have even index, all interior nodes odd.
+    // The height of a node of index i is the number of trailing ones in i's binary representation.
+    // The left child of a node i of height h is i - 2^(h - 1).
+    // The right child of a node i of height h is i + 2^(h - 1).
+
+    // Note that for arbitrary n, interior nodes of this tree may be >= n. Thus, the general
+    // structure of a recursive traversal of node i is:
+    // * traverse left child if i is an interior node
+    // * process i if i < n
+    // * traverse right child if i is an interior node and i < n
+
+    private int treeRoot() {
+        return Integer.highestOneBit(mSpanCount) - 1;
+    }
+
+    // (i+1) & ~i is equal to 2^(the number of trailing ones in i)
+    private static int leftChild(int i) {
+        return i - (((i + 1) & ~i) >> 1);
+    }
+
+    private static int rightChild(int i) {
+        return i + (((i + 1) & ~i) >> 1);
+    }
+
+    // jec+: the parent is one step of twice the size away, on the side given by the bit above
+    private static int parent(int i) {
+        int step = (i + 1) & ~i;
+        return (i & (step << 1)) == 0 ? i + step : i - step;
+    }
+
+    // The span arrays are also augmented by an mSpanMax[] array that represents an interval tree
+    // over the binary tree structure described above. For each node, the mSpanMax[] array contains
+    // the maximum value of mSpanEnds of that node and its descendants. Thus, traversals can
+    // easily reject subtrees that contain no spans overlapping the area of interest.
+
+    // Note that mSpanMax[] also has a valid valuefor interior nodes of index >= n, but which have
+    // descendants of index < n. In these cases, it simply represents the maximum span end of its
+    // descendants. This is a consequence of the perfect binary tree structure.
+    private int calcMax(int i) {
+        int max = 0;
+        if ((i & 1) != 0) {
+            // internal tree node
+            max = calcMax(leftChild(i));
+        }
+        if (i < mSpanCount) {
+            max = Math.max(max, mSpanEnds[i]);
+            if ((i & 1) != 0) {
+                max = Math.max(max, calcMax(rightChild(i)));
+            }
+        }
+        mSpanMax[i] = max;
+        return max;
+    }
+
+    /**
+     * jec+: recompute mSpanMax[] of node i and its ancestors from their children, for a change
+     * that keeps the tree shape and the start order. The right subtree of the last span holds
+     * no spans, its stale values must not be read.
+     */
+    private void updateMax(int i) {
+        int root = treeRoot();
+        while (true) {
+            int max = 0;
+            if ((i & 1) != 0) {
+                max = mSpanMax[leftChild(i)];
+            }
+            if (i < mSpanCount) {
+                max = Math.max(max, mSpanEnds[i]);
+                if ((i & 1) != 0 && i + 1 < mSpanCount) {
+                    max = Math.max(max, mSpanMax[rightChild(i)]);
+                }
+            }
+            mSpanMax[i] = max;
+            if (i == root)
+                return;
+            i = parent(i);
+        }
+    }
+
+    /**
+     * jec+: recompute mSpanMax[] of the nodes lo..hi and of every node above them, one level of
+     * the tree at a time, so each node is computed once and after its children.
+     */
+    private void updateMax(int lo, int hi) {
+        int root = treeRoot();
+        int lastNode = 2 * root;
+        for (int level = 0; ; level++) {
+            // the nodes of this level are half + k * step, each covering [i - half, i + half]
+            int half = (1 << level) - 1;
+            int step = 2 << level;
+            int k = lo - 2 * half <= 0 ? 0 : (lo - 2 * half + step - 1) / step;
+            for (int i = half + k * step; i <= hi + half && i <= lastNode; i += step) {
+                int max = 0;
+                if (level > 0) {
+                    max = mSpanMax[leftChild(i)];
+                }
+                if (i < mSpanCount) {
+                    max = Math.max(max, mSpanEnds[i]);
+                    if (level > 0 && i + 1 < mSpanCount) {
+                        max = Math.max(max, mSpanMax[rightChild(i)]);
+                    }
+                }
+                mSpanMax[i] = max;
+            }
+            if (half == root)
+                return;
+        }
+    }
+
+    // restores binary interval tree invariants after any mutation of span structure
+    // jec+: only the spans marked by invalidateMax() are sorted and have their path to the root
+    // recomputed; the whole tree is rebuilt only when its shape changes
+    private void restoreInvariants() {
+        if (mSpanCount == 0) {
+            clearDirty();
+            mMaxRoot = -1;
+            mLowWaterMark = Integer.MAX_VALUE;
+            mHighWaterMark = 0;
+            return;
+        }
+        int root = treeRoot();
+        boolean rebuild = root != mMaxRoot;
+
+        // invariant 1: span starts are nondecreasing
+
+        // This is a simple insertion sort because we expect it to be mostly sorted.
+        // jec+: spans before the first changed one are still sorted, and once past the last
+        // changed one the rest is sorted as soon as one is in order
+        int first = rebuild ? 1 : Math.max(1, mDirtyMin);
+        int last = rebuild ? mSpanCount : mDirtyMax + 1;
+        for (int i = first; i < mSpanCount; i++) {
+            int start = mSpanStarts[i];
+            int prev = mSpanStarts[i - 1];
+            if (start < prev && i + 1 < mSpanCount && mSpanStarts[i + 1] < prev) {
+                // 前一个比后面两个都大，是它往后移了：把它整个挪到后面，中间的整段往前移
+                int p = i + 1;
+                while (p < mSpanCount && mSpanStarts[p] < prev) {
+                    p++;
+                }
+                moveSpanBack(i - 1, p - 1);
+                invalidateIndex(i - 1, p);
+                invalidateMax(i - 1, p);
+                last = Math.max(last, p);
+                // 从挪过来的第一个接着检查，它前面的都是有序的；第一个 span 挪走时从 1 开始
+                i = Math.max(0, i - 2);
+            } else if (start < prev) {
+                // 在前面已经有序的部分里二分查找位置，整段挪动
+                int j = upperBound(start, i - 1);
+                moveSpanFront(i, j);
+                invalidateIndex(j, i + 1);
+                invalidateMax(j, i + 1);
+            } else if (i >= last) {
+                break;
+            }
+        }
+
+        // invariant 2: max is max span end for each node and its descendants
+        if (rebuild) {
+            calcMax(root);
+        } else if (!mDirtyRange && mDirtyCount * (32 - Integer.numberOfLeadingZeros(root)) <= mDirtyMax - mDirtyMin) {
+            // 分散的几个下标，各自更新到根的路径
+            for (int i = 0; i < mDirtyCount; i++) {
+                updateMax(mDirtySpans[i]);
+            }
+        } else if (mDirtyMax >= 0) {
+            updateMax(mDirtyMin, mDirtyMax);
+        }
+        mMaxRoot = root;
+        clearDirty();
+
+        // invariant 3: mIndexOfSpan maps spans back to indices
+        if (mIndexOfSpan == null) {
+            mIndexOfSpan = new IdentityHashMap<Object, Integer>();
+        }
+        int high = Math.min(mHighWaterMark, mSpanCount);
+        for (int i = mLowWaterMark; i < high; i++) {
+            Integer existing = mIndexOfSpan.get(mSpans[i]);
+            if (existing == null || existing != i) {
+                mIndexOfSpan.put(mSpans[i], i);
+            }
+        }
+        mLowWaterMark = Integer.MAX_VALUE;
+        mHighWaterMark = 0;
+    }
+
+    // jec+: move the span at from to to (to < from), shifting the spans between them up by one
+    private void moveSpanFront(int from, int to) {
+        Object span = mSpans[from];
+        int start = mSpanStarts[from];
+        int end = mSpanEnds[from];
+        int flags = mSpanFlags[from];
+        int insertionOrder = mSpanOrder[from];
+        int slot = mSpanSlots[from];
+        int count = from - to;
+        System.arraycopy(mSpans, to, mSpans, to + 1, count);
+        System.arraycopy(mSpanStarts, to, mSpanStarts, to + 1, count);
+        System.arraycopy(mSpanEnds, to, mSpanEnds, to + 1, count);
+        System.arraycopy(mSpanFlags, to, mSpanFlags, to + 1, count);
+        System.arraycopy(mSpanOrder, to, mSpanOrder, to + 1, count);
+        System.arraycopy(mSpanSlots, to, mSpanSlots, to + 1, count);
+        mSpans[to] = span;
+        mSpanStarts[to] = start;
+        mSpanEnds[to] = end;
+        mSpanFlags[to] = flags;
+        mSpanOrder[to] = insertionOrder;
+        mSpanSlots[to] = slot;
+    }
+
+    // jec+: move the span at from to to (to > from), shifting the spans between them down by one
+    private void moveSpanBack(int from, int to) {
+        Object span = mSpans[from];
+        int start = mSpanStarts[from];
+        int end = mSpanEnds[from];
+        int flags = mSpanFlags[from];
+        int insertionOrder = mSpanOrder[from];
+        int slot = mSpanSlots[from];
+        int count = to - from;
+        System.arraycopy(mSpans, from + 1, mSpans, from, count);
+        System.arraycopy(mSpanStarts, from + 1, mSpanStarts, from, count);
+        System.arraycopy(mSpanEnds, from + 1, mSpanEnds, from, count);
+        System.arraycopy(mSpanFlags, from + 1, mSpanFlags, from, count);
+        System.arraycopy(mSpanOrder, from + 1, mSpanOrder, from, count);
+        System.arraycopy(mSpanSlots, from + 1, mSpanSlots, from, count);
+        mSpans[to] = span;
+        mSpanStarts[to] = start;
+        mSpanEnds[to] = end;
+        mSpanFlags[to] = flags;
+        mSpanOrder[to] = insertionOrder;
+        mSpanSlots[to] = slot;
+    }
+
+    // jec+: index of the first span in [0, limit) whose start is after start, by binary search
+    private int upperBound(int start, int limit) {
+        int low = 0;
+        int high = limit;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mSpanStarts[mid] <= start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // jec+: the span at index i changed its position or was replaced by another one
+    private void invalidateMax(int i) {
+        invalidateMax(i, i + 1);
+    }
+
+    private void invalidateMax(int from, int to) {
+        if (from >= to)
+            return;
+        mDirtyMin = Math.min(mDirtyMin, from);
+        mDirtyMax = Math.max(mDirtyMax, to - 1);
+        if (mDirtyRange)
+            return;
+        if (mDirtyCount + to - from > MAX_DIRTY_SPANS) {
+            mDirtyRange = true;
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            mDirtySpans = GrowingArrayUtils.append(mDirtySpans, mDirtyCount++, i);
+        }
+    }
+
+    private void clearDirty() {
+        mDirtyCount = 0;
+        mDirtyRange = false;
+        mDirtyMin = Integer.MAX_VALUE;
+        mDirtyMax = -1;
+    }
+
+    // jec+: index of the first span whose start is at or after where, by binary search
+    private int firstSpanStartingAt(int where) {
+        int low = 0;
+        int high = mSpanCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (resolveGap(mSpanStarts[mid]) < where) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Call this on any update to mSpans[], so that mIndexOfSpan can be updated
+    private void invalidateIndex(int i) {
+        mLowWaterMark = Math.min(i, mLowWaterMark);
+        mHighWaterMark = Integer.MAX_VALUE;
+    }
+
+    // jec+: only the spans in [from, to) moved, the ones after them kept their indices
+    private void invalidateIndex(int from, int to) {
+        mLowWaterMark = Math.min(from, mLowWaterMark);
+        mHighWaterMark = Math.max(to, mHighWaterMark);
+    }
+
     /**
      * 注意不能直接返回mText,因为会涉及到字符改变后会移动,比如"abc"删除了b后,可能变成了"acb"
      *
@@ -1550,7 +2342,44 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         return buf;
     }
 
+    /**
+     * jec+: 不复制文本，返回空隙前后两段连续的字符，保存文件时直接交给编码器。
+     * 返回的缓冲区引用内部数组，文本被修改后就失效了
+     */
+    public CharBuffer[] getCharBuffers() {
+        if (mRope != null)
+            return mRope.getCharBuffers();
+        int after = mText.length - (mGapStart + mGapLength);
+        return new CharBuffer[]{
+                CharBuffer.wrap(mText, 0, mGapStart),
+                CharBuffer.wrap(mText, mGapStart + mGapLength, after)
+        };
+    }
+
     public void setAutoIndent(boolean autoIndent) {
         isAutoIndent = autoIndent;
     }
+
+    /**
+     * jec+: the spans of one class, in no particular order
+     */
+    // jec+: getSpans 一次调用找到的下标
+    private static class SpanIndexes {
+        int[] indexes = EmptyArray.INT;
+        int count;
+
+        void add(int i) {
+            indexes = GrowingArrayUtils.append(indexes, count++, i);
+        }
+    }
+
+    private static class SpanBucket {
+        final Class<?> type;
+        Object[] spans = EmptyArray.OBJECT;
+        int count;
+
+        SpanBucket(Class<?> type) {
+            this.type = type;
+        }
+    }
 }
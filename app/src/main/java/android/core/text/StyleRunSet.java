@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+/**
+ * The {@link StyleRuns} of one line, the counterpart of {@link SpanSet} for color runs.
+ * Runs are stored as (start, end, color) triples sorted by offset and don't overlap.
+ */
+public class StyleRunSet {
+    int numberOfRuns;
+    int[] runs = new int[3 * 16];
+
+    void init(StyleRuns source, int start, int limit) {
+        numberOfRuns = 0;
+        if (source != null && start < limit)
+            source.getRuns(start, limit, this);
+    }
+
+    void clear() {
+        numberOfRuns = 0;
+    }
+
+    public void add(int start, int end, int color) {
+        if (start >= end)
+            return;
+        int i = numberOfRuns * 3;
+        if (i + 3 > runs.length) {
+            int[] newRuns = new int[runs.length * 2];
+            System.arraycopy(runs, 0, newRuns, 0, i);
+            runs = newRuns;
+        }
+        runs[i] = start;
+        runs[i + 1] = end;
+        runs[i + 2] = color;
+        numberOfRuns++;
+    }
+
+    /**
+     * Similar to {@link SpanSet#getNextTransition(int, int)}
+     */
+    int getNextTransition(int start, int limit) {
+        for (int i = 0, n = numberOfRuns * 3; i < n; i += 3) {
+            final int runStart = runs[i];
+            if (runStart >= limit)
+                break;
+            if (runStart > start)
+                return runStart;
+            final int runEnd = runs[i + 1];
+            if (runEnd > start)
+                return Math.min(runEnd, limit);
+        }
+        return limit;
+    }
+
+    /**
+     * @return index of the run covering <code>offset</code>, -1 if there is none
+     */
+    int findRun(int offset) {
+        for (int i = 0, n = numberOfRuns * 3; i < n; i += 3) {
+            if (runs[i] > offset)
+                break;
+            if (runs[i + 1] > offset)
+                return i / 3;
+        }
+        return -1;
+    }
+
+    int getColor(int run) {
+        return runs[run * 3 + 2];
+    }
+}
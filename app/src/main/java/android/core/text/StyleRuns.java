@@ -16,19 +16,17 @@
  * limitations under the License.
  */
 
-package com.jecelyin.editor.v2.highlight;
+package android.core.text;
 
 /**
- * @author Jecelyin Peng <jecelyin@gmail.com>
+ * Foreground colors of the text kept outside of the text as plain runs, for syntax highlighting
+ * without one span object per token. {@link TextLine} reads them when drawing through
+ * {@link LayoutContext#styleRuns}; spans still draw over them.
  */
-public class HighlightInfo {
-    public int startOffset;
-    public int endOffset;
-    public int color;
-
-    public HighlightInfo(int startOffset, int endOffset, int color) {
-        this.startOffset = startOffset;
-        this.endOffset = endOffset;
-        this.color = color;
-    }
+public interface StyleRuns {
+    /**
+     * Add the runs intersecting <code>[start, limit)</code> to <code>out</code> in order of
+     * offset, clipped to the range.
+     */
+    void getRuns(int start, int limit, StyleRunSet out);
 }
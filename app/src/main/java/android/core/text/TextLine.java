@@ -66,6 +66,8 @@ class TextLine {
             new SpanSet<CharacterStyle>(CharacterStyle.class);
     private final SpanSet<ReplacementSpan> mReplacementSpanSpanSet =
             new SpanSet<ReplacementSpan>(ReplacementSpan.class);
+    // jec+: 语法高亮的颜色不用 span，绘制时直接读取
+    private final StyleRunSet mStyleRunSet = new StyleRunSet();
     private TextPaint mPaint;
     private CharSequence mText;
     private int mStart;
@@ -122,6 +124,7 @@ class TextLine {
         tl.mMetricAffectingSpanSpanSet.recycle();
         tl.mCharacterStyleSpanSet.recycle();
         tl.mReplacementSpanSpanSet.recycle();
+        tl.mStyleRunSet.clear();
 
         synchronized (sCached) {
             for (int i = 0; i < sCached.length; ++i) {
@@ -198,6 +201,7 @@ class TextLine {
         }
         mHasTabs = hasTabs;
         mSpanned = null;
+        mStyleRunSet.clear();
 
         boolean hasReplacement = false;
         if (text instanceof Spanned) {
@@ -245,6 +249,9 @@ class TextLine {
      * @param bottom the bottom of the line
      */
     void draw(Canvas c, float x, int top, int y, int bottom) {
+        // jec+: 只在绘制时取，测量不需要颜色
+        mStyleRunSet.init(layoutContext == null ? null : layoutContext.styleRuns, mStart, mStart + mLen);
+
         if (!mHasTabs) {
             if (mDirections == Layout.DIRS_ALL_LEFT_TO_RIGHT) {
                 drawRun(c, 0, mLen, false, x, top, y, bottom, false);
@@ -957,6 +964,8 @@ class TextLine {
 
         mMetricAffectingSpanSpanSet.init(mSpanned, mStart + start, mStart + limit);
         mCharacterStyleSpanSet.init(mSpanned, mStart + start, mStart + limit);
+        // jec+: 只有绘制时才有颜色
+        final boolean hasStyleRuns = c != null && mStyleRunSet.numberOfRuns > 0;
 
         // Shaping needs to take into account context up to metric boundaries,
         // but rendering needs to take into account character style boundaries.
@@ -1000,6 +1009,13 @@ class TextLine {
                         mStart;
 
                 wp.set(mPaint);
+                if (hasStyleRuns) {
+                    // jec+: 在颜色变化的地方也要断开，span 画在高亮颜色上面
+                    jnext = mStyleRunSet.getNextTransition(mStart + j, mStart + jnext) - mStart;
+                    int run = mStyleRunSet.findRun(mStart + j);
+                    if (run >= 0)
+                        wp.setColor(mStyleRunSet.getColor(run));
+                }
                 for (int k = 0; k < mCharacterStyleSpanSet.numberOfSpans; k++) {
                     // Intentionally using >= and <= as explained above
                     if ((mCharacterStyleSpanSet.spanStarts[k] >= mStart + jnext) ||
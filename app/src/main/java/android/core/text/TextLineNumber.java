@@ -18,35 +18,58 @@
 
 package android.core.text;
 
-import java.util.ArrayList;
-import java.util.List;
+import android.core.util.GrowingArrayUtils;
 
 /**
+ * 当前绘制的可见行的行号和位置。每帧重复使用同样的数组，行号在绘制时才写成数字，
+ * 滚动时不产生垃圾
+ *
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
 
 public class TextLineNumber {
-    private List<LineInfo> lineInfoList = new ArrayList<>();
+    private int[] lines = new int[64];
+    private int[] ys = new int[64];
+    private int count;
+    /**
+     * 行号的数字从后往前写在这里
+     */
+    private final char[] digits = new char[10];
 
     public void clear() {
-        lineInfoList.clear();
+        count = 0;
+    }
+
+    public void addLine(int line, int y) {
+        lines = GrowingArrayUtils.append(lines, count, line);
+        ys = GrowingArrayUtils.append(ys, count, y);
+        count++;
     }
 
-    public void addLine(String text, int y) {
-        lineInfoList.add(new LineInfo(text, y));
+    public int size() {
+        return count;
     }
 
-    public List<LineInfo> getLines() {
-        return lineInfoList;
+    public int getY(int index) {
+        return ys[index];
     }
 
-    public static class LineInfo {
-        public String text;
-        public int y;
+    /**
+     * Write the line number at <code>index</code> into {@link #getDigits()}.
+     *
+     * @return the offset of the first digit, the last one is at the end of the array
+     */
+    public int formatLine(int index) {
+        int line = lines[index];
+        int start = digits.length;
+        do {
+            digits[--start] = (char) ('0' + line % 10);
+            line /= 10;
+        } while (line > 0);
+        return start;
+    }
 
-        public LineInfo(String text, int y) {
-            this.text = text;
-            this.y = y;
-        }
+    public char[] getDigits() {
+        return digits;
     }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.core.text;
+
+import android.text.GetChars;
+
+import java.nio.CharBuffer;
+
+/**
+ * The chars of a {@link SpannableStringBuilder} as they were at one version, safe to read from
+ * any thread while the text keeps changing.
+ * <p>
+ * Taking a snapshot costs O(1): a {@link Rope} is immutable and simply shared, a gap buffer is
+ * shared until the next edit, which copies the array before writing to it.
+ */
+public final class TextSnapshot implements CharSequence, GetChars {
+    private final int version;
+    private final Rope rope;
+    private final char[] text;
+    private final int gapStart;
+    private final int gapLength;
+    private final int length;
+
+    TextSnapshot(int version, Rope rope) {
+        this.version = version;
+        this.rope = rope;
+        this.text = null;
+        this.gapStart = 0;
+        this.gapLength = 0;
+        this.length = rope.length();
+    }
+
+    TextSnapshot(int version, char[] text, int gapStart, int gapLength, int length) {
+        this.version = version;
+        this.rope = null;
+        this.text = text;
+        this.gapStart = gapStart;
+        this.gapLength = gapLength;
+        this.length = length;
+    }
+
+    /**
+     * @return the {@link SpannableStringBuilder#getVersion()} this snapshot was taken at
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (rope != null)
+            return rope.charAt(index);
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("charAt: " + index + " length " + length);
+        return index >= gapStart ? text[index + gapLength] : text[index];
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        if (rope != null) {
+            rope.getChars(start, end, dest, destoff);
+            return;
+        }
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("getChars: " + start + " ... " + end + " length " + length);
+        if (end <= gapStart) {
+            System.arraycopy(text, start, dest, destoff, end - start);
+        } else if (start >= gapStart) {
+            System.arraycopy(text, start + gapLength, dest, destoff, end - start);
+        } else {
+            System.arraycopy(text, start, dest, destoff, gapStart - start);
+            System.arraycopy(text, gapStart + gapLength, dest, destoff + (gapStart - start), end - gapStart);
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (rope != null)
+            return rope.subSequence(start, end);
+        char[] buf = new char[end - start];
+        getChars(start, end, buf, 0);
+        return new String(buf);
+    }
+
+    /**
+     * @return true if some chars are still read from a file, see {@link Rope#paged(Rope.Pages)}
+     */
+    public boolean isPaged() {
+        return rope != null && rope.isPaged();
+    }
+
+    /**
+     * The text in order as a few buffers over the shared storage, for writing it out without
+     * copying.
+     */
+    public CharBuffer[] getCharBuffers() {
+        if (rope != null)
+            return rope.getCharBuffers();
+        return new CharBuffer[]{
+                CharBuffer.wrap(text, 0, gapStart),
+                CharBuffer.wrap(text, gapStart + gapLength, length - gapStart)
+        };
+    }
+
+    @Override
+    public String toString() {
+        char[] buf = new char[length];
+        getChars(0, length, buf, 0);
+        return new String(buf);
+    }
+}
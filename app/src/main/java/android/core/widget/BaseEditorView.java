@@ -33,6 +33,7 @@ import android.core.text.MetaKeyKeyListenerCompat;
 import android.core.text.Selection;
 import android.core.text.SpannableStringBuilder;
 import android.core.text.StaticLayout;
+import android.core.text.StyleRuns;
 import android.core.text.TextDirectionHeuristic;
 import android.core.text.TextDirectionHeuristics;
 import android.core.text.TextLineNumber;
@@ -125,7 +126,6 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Locale;
 
 /**
@@ -7111,6 +7111,14 @@ public class BaseEditorView extends View implements ViewTreeObserver.OnPreDrawLi
         Layout.TAB_INCREMENT = (int) tabWidth;
     }
 
+    /**
+     * 设置语法高亮的颜色，高亮更新后要 {@link #invalidate()}
+     */
+    public void setStyleRuns(StyleRuns styleRuns) {
+        layoutContext.styleRuns = styleRuns;
+        invalidate();
+    }
+
     public void setLineNumber(int lineNumber) {
         layoutContext.lineNumber = lineNumber;
 
@@ -7121,10 +7129,17 @@ public class BaseEditorView extends View implements ViewTreeObserver.OnPreDrawLi
         }
 
         int gutterPadding = SysUtils.dpAsPixels(getContext(), 8);
-        //预留2位空间，避免过多设置padding导致卡
-        layoutContext.gutterWidth = (int) layoutContext.lineNumberPaint.measureText(Integer.toString(lineNumber * 10));
-        layoutContext.gutterWidth += gutterPadding;
-        layoutContext.lineNumberX = layoutContext.gutterWidth - SysUtils.dpAsPixels(getContext(), 4);
+        int digits = 1;
+        for (int n = lineNumber; n >= 10; n /= 10) {
+            digits++;
+        }
+        if (digits != layoutContext.gutterDigits) {
+            //预留2位空间，避免过多设置padding导致卡
+            layoutContext.gutterWidth = (int) layoutContext.lineNumberPaint.measureText(Integer.toString(lineNumber * 10));
+            layoutContext.gutterWidth += gutterPadding;
+            layoutContext.lineNumberX = layoutContext.gutterWidth - SysUtils.dpAsPixels(getContext(), 4);
+            layoutContext.gutterDigits = digits;
+        }
         if (getPaddingLeft() != layoutContext.gutterWidth + gutterPadding) {
             setPaddingRelative(layoutContext.gutterWidth + gutterPadding, getPaddingTop(), getPaddingEnd(), getPaddingBottom());
         }
@@ -7138,11 +7153,14 @@ public class BaseEditorView extends View implements ViewTreeObserver.OnPreDrawLi
         canvas.drawRect(getScrollX(), getScrollY(), width, height, layoutContext.gutterBackgroundPaint);
         canvas.drawLine(width, getScrollY(), width, height, layoutContext.linePaint);
 
-        List<TextLineNumber.LineInfo> lines = layoutContext.textLineNumber.getLines();
-        for (TextLineNumber.LineInfo line : lines) {
+        TextLineNumber lineNumbers = layoutContext.textLineNumber;
+        char[] digits = lineNumbers.getDigits();
+        int x = layoutContext.lineNumberX + layoutContext.scrollX;
+        for (int i = 0, count = lineNumbers.size(); i < count; i++) {
 //            canvas.restore();
 //            canvas.translate(layoutContext.scrollX, 0);
-            canvas.drawText(line.text, layoutContext.lineNumberX + layoutContext.scrollX, line.y, layoutContext.lineNumberPaint);
+            int start = lineNumbers.formatLine(i);
+            canvas.drawText(digits, start, digits.length - start, x, lineNumbers.getY(i), layoutContext.lineNumberPaint);
 //            canvas.translate(-layoutContext.scrollX, 0);
 //            canvas.save();
 //            canvas.translate(layoutContext.translateX, layoutContext.translateY);
@@ -20,6 +20,7 @@ package android.core.widget;
 
 import android.content.Context;
 import android.core.content.UndoManager;
+import android.core.text.SpannableStringBuilder;
 import android.core.text.Selection;
 import android.core.text.method.ArrowKeyMovementMethod;
 import android.core.text.method.MovementMethod;
@@ -27,10 +28,13 @@ import android.core.view.InputMethodManagerCompat;
 import android.graphics.Canvas;
 import android.text.Editable;
 import android.text.InputFilter;
+import android.text.Spanned;
+import android.text.TextUtils;
 import android.text.method.KeyListener;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.TypedValue;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.VelocityTracker;
@@ -42,6 +46,8 @@ import com.jecelyin.common.utils.LimitedQueue;
 import com.jecelyin.editor.v2.Pref;
 import com.jecelyin.editor.v2.ui.widget.editor.FastScroller;
 
+import java.util.Collections;
+
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
@@ -114,6 +120,7 @@ public class EditAreaView extends BaseEditorView {
     private OnEditorSizeChangedListener onEditorSizeChangedListener;
     private UndoManager undoManager;
     private EditorHelper editorHelper;
+    private String lineComment;
     private ScaleGestureDetector mScaleDetector;
     private LimitedQueue<Integer> mPositionHistoryList = new LimitedQueue<>(30);
     private int currentLocation = -1;
@@ -317,6 +324,35 @@ public class EditAreaView extends BaseEditorView {
                 getEditableText().setFilters(nf);
             }
         }
+        setFilters(new InputFilter[]{new LineEndingFilter()});
+    }
+
+    /**
+     * 渐进加载时追加文本，跳过输入过滤器，不产生撤销记录
+     */
+    public void appendLoadedText(CharSequence text) {
+        Editable editable = getText();
+        replaceLoadedText(editable.length(), editable.length(), text);
+    }
+
+    /**
+     * 把磁盘上变化的部分替换进来。旧的撤销记录的位置已经对不上了，一并清除
+     */
+    public void reloadText(int start, int end, CharSequence text) {
+        replaceLoadedText(start, end, text);
+        undoManager.forgetUndos(null, -1);
+        undoManager.forgetRedos(null, -1);
+    }
+
+    private void replaceLoadedText(int start, int end, CharSequence text) {
+        Editable editable = getText();
+        InputFilter[] filters = editable.getFilters();
+        editable.setFilters(new InputFilter[0]);
+        try {
+            editable.replace(start, end, text);
+        } finally {
+            editable.setFilters(filters);
+        }
     }
 
     public void redo() {
@@ -351,8 +387,57 @@ public class EditAreaView extends BaseEditorView {
         editorHelper.duplication();
     }
 
-    public void convertWrapCharTo(String chars) {
-        editorHelper.convertWrapCharTo(chars);
+    /**
+     * 选中的行增加或减少一级缩进，按设置用 \t 或空格
+     */
+    public void shiftIndent(boolean outdent) {
+        int tabSize = pref.getTabSize();
+        String indent = pref.isInsertSpaceForTab() ? TextUtils.join("", Collections.nCopies(tabSize, " ")) : "\t";
+        editorHelper.shiftIndent(outdent, indent, tabSize);
+    }
+
+    /**
+     * 注释或取消注释选中的行，lineComment 为 null 的语言（没有行注释）什么都不做
+     */
+    public void toggleComment() {
+        if (lineComment != null)
+            editorHelper.toggleComment(lineComment);
+    }
+
+    /**
+     * @param lineComment the line comment of the current language, e.g. //
+     */
+    public void setLineComment(String lineComment) {
+        this.lineComment = TextUtils.isEmpty(lineComment) ? null : lineComment;
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        // 选中多行时 Tab 增加这些行的缩进，Shift+Tab 总是减少当前行的缩进
+        if (keyCode == KeyEvent.KEYCODE_TAB && getKeyListener() != null) {
+            if (event.hasModifiers(KeyEvent.META_SHIFT_ON)) {
+                shiftIndent(true);
+                return true;
+            }
+            int start = Math.min(getSelectionStart(), getSelectionEnd());
+            int end = Math.max(getSelectionStart(), getSelectionEnd());
+            if (event.hasNoModifiers() && start >= 0 && TextUtils.indexOf(getText(), '\n', start, end) >= 0) {
+                shiftIndent(false);
+                return true;
+            }
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public boolean onKeyShortcut(int keyCode, KeyEvent event) {
+        // Ctrl+/ 注释或取消注释
+        if (keyCode == KeyEvent.KEYCODE_SLASH && getKeyListener() != null && lineComment != null
+                && KeyEvent.metaStateHasNoModifiers(event.getMetaState() & ~KeyEvent.META_CTRL_MASK)) {
+            toggleComment();
+            return true;
+        }
+        return super.onKeyShortcut(keyCode, event);
     }
 
     public void gotoTop() {
@@ -781,4 +866,25 @@ public class EditAreaView extends BaseEditorView {
             return true;
         }
     }
+
+    /**
+     * 文档里只保存 \n，输入或粘贴的 \r\n 和 \r 在这里转换，原来的换行符在保存时再写回去
+     */
+    private static class LineEndingFilter implements InputFilter {
+        @Override
+        public CharSequence filter(CharSequence source, int start, int end, Spanned dest, int dstart, int dend) {
+            if (TextUtils.indexOf(source, '\r', start, end) < 0)
+                return null;
+            SpannableStringBuilder text = new SpannableStringBuilder(source, start, end);
+            for (int i = text.length() - 1; i >= 0; i--) {
+                if (text.charAt(i) != '\r')
+                    continue;
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                    text.delete(i, i + 1);
+                else
+                    text.replace(i, i + 1, "\n");
+            }
+            return text;
+        }
+    }
 }
@@ -31,6 +31,7 @@ import android.core.text.Layout;
 import android.core.text.MetaKeyKeyListenerCompat;
 import android.core.text.Selection;
 import android.core.text.SpannableStringBuilder;
+import android.core.text.TextSnapshot;
 import android.core.text.TextUtils;
 import android.core.text.method.MovementMethod;
 import android.core.text.method.WordIterator;
@@ -1957,6 +1958,9 @@ public class Editor {
 
     public static class UndoInputFilter implements InputFilter {
         final WeakReference<Editor> mEditor;
+        // jec+: 一批修改合成一个撤销操作
+        private TextModifyOperation mBatchOp;
+        private int mBatchEditId;
 
         public UndoInputFilter(Editor editor) {
             mEditor = new WeakReference<>(editor);
@@ -1979,6 +1983,15 @@ public class Editor {
                 return null;
             }
 
+            if (dest instanceof SpannableStringBuilder && ((SpannableStringBuilder) dest).isInBatchEdit()) {
+                addBatchEdit(editor, (SpannableStringBuilder) dest, end - start, dstart, dend);
+                return null;
+            }
+            if (mBatchOp != null) {
+                mBatchOp.resolveBatchText();
+                mBatchOp = null;
+            }
+
             um.beginUpdate("Edit text");
             TextModifyOperation op = um.getLastOperation(
                     TextModifyOperation.class, editor.mUndoOwner, UndoManager.MERGE_MODE_UNIQUE);
@@ -2041,6 +2054,37 @@ public class Editor {
             um.endUpdate();
             return null;
         }
+
+        /**
+         * jec+: 同一批的修改都并入一个操作，旧文本先用快照记着，撤销时才取出来
+         */
+        private void addBatchEdit(Editor editor, SpannableStringBuilder dest, int length, int dstart, int dend) {
+            TextModifyOperation op = mBatchOp;
+            if (op == null || mBatchEditId != dest.getBatchEditId()) {
+                if (op != null)
+                    op.resolveBatchText();
+                op = new TextModifyOperation(editor.mUndoOwner);
+                op.mBatch = true;
+                op.mBatchText = dest.getSnapshot();
+                op.mRangeStart = dstart;
+                op.mRangeEnd = dstart + length;
+                op.mBatchOldEnd = dend;
+
+                // 不并入上一个操作，自成一个撤销状态
+                final UndoManager um = editor.mUndoManager;
+                um.beginUpdate("Edit text");
+                um.addOperation(op, UndoManager.MERGE_MODE_NONE);
+                um.endUpdate();
+                mBatchOp = op;
+                mBatchEditId = dest.getBatchEditId();
+                return;
+            }
+            // 范围之后的位置在修改前的文本中要减去已经增加的字符数
+            if (dend > op.mRangeEnd)
+                op.mBatchOldEnd += dend - op.mRangeEnd;
+            op.mRangeEnd = Math.max(op.mRangeEnd, dend) + length - (dend - dstart);
+            op.mRangeStart = Math.min(op.mRangeStart, dstart);
+        }
     }
 
     public static class TextModifyOperation extends UndoOperation<BaseEditorView> {
@@ -2060,6 +2104,10 @@ public class Editor {
         };
         int mRangeStart, mRangeEnd;
         CharSequence mOldText;
+        // jec+: 批量修改前的文本和范围在其中的结束位置，需要时再取出 mOldText
+        boolean mBatch;
+        TextSnapshot mBatchText;
+        int mBatchOldEnd;
 
         public TextModifyOperation(UndoOwner owner) {
             super(owner);
@@ -2076,6 +2124,19 @@ public class Editor {
         public void commit() {
         }
 
+        @Override
+        public boolean allowMerge() {
+            // 批量修改的操作不和之后的输入合并
+            return !mBatch;
+        }
+
+        void resolveBatchText() {
+            if (mBatchText == null)
+                return;
+            mOldText = mRangeStart < mBatchOldEnd ? mBatchText.subSequence(mRangeStart, mBatchOldEnd) : null;
+            mBatchText = null;
+        }
+
         @Override
         public void undo() {
             swapText();
@@ -2089,6 +2150,7 @@ public class Editor {
         private void swapText() {
             // Both undo and redo involves swapping the contents of the range
             // in the text view with our local text.
+            resolveBatchText();
             BaseEditorView tv = getOwnerData();
             Editable editable = (Editable) tv.getText();
             CharSequence curText;
@@ -2119,6 +2181,7 @@ public class Editor {
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
+            resolveBatchText();
             dest.writeInt(mRangeStart);
             dest.writeInt(mRangeEnd);
             TextUtils.writeToParcel(mOldText, dest, flags);
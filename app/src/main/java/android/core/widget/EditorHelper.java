@@ -21,6 +21,10 @@ package android.core.widget;
 import android.core.text.SpannableStringBuilder;
 import android.text.Editable;
 
+import org.gjt.sp.jedit.util.IntegerArray;
+
+import java.util.Arrays;
+
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
@@ -58,21 +62,147 @@ class EditorHelper {
         mText.replace(offset, offset, text, 0, text.length());
     }
 
-    public void convertWrapCharTo(String chars) {
-        Editable text = editAreaView.getText();
-        int offset = text.length(), len = chars.length();
-        while (--offset >= 0) {
-            if (text.charAt(offset) == '\n') {
-                //\r\n
-                if (offset > 0 && text.charAt(offset - 1) == '\r') {
-                    text.replace(offset - 1, offset + 1, chars, 0, len);
-                    offset--;
+    /**
+     * 选中的每一行增加或减少一级缩进；没有选中时只处理光标所在的行。
+     * 所有行合成一次修改：只重新排版、高亮一次，撤销一次就能全部恢复
+     *
+     * @param indent 增加的一级缩进，\t 或者若干空格
+     * @param tabSize 减少缩进时最多去掉的空格数
+     */
+    public void shiftIndent(boolean outdent, String indent, int tabSize) {
+        Editable mText = editAreaView.getEditableText();
+        int[] lines = getSelectedLines(mText);
+        int end = lines[1];
+        beginBatchEdit(mText);
+        try {
+            for (int i = lines.length - 1; i >= 2; i--) {
+                int start = lines[i];
+                if (!outdent) {
+                    //空行不加缩进
+                    if (isLineEnd(mText, start))
+                        continue;
+                    mText.insert(start, indent);
+                    end += indent.length();
+                    continue;
+                }
+                // 去掉一个 \t，或者最多 tabSize 个空格
+                int e = start;
+                if (e < mText.length() && mText.charAt(e) == '\t') {
+                    e++;
                 } else {
-                    text.replace(offset, offset + 1, chars, 0, len);
+                    while (e < mText.length() && e - start < tabSize && mText.charAt(e) == ' ')
+                        e++;
+                }
+                mText.delete(start, e);
+                end -= e - start;
+            }
+        } finally {
+            endBatchEdit(mText);
+        }
+        editAreaView.setSelection(lines[0], end);
+    }
+
+    /**
+     * 选中的行都已经注释掉时去掉行注释，否则在每个非空行的开头加上行注释，合成一次修改
+     *
+     * @param lineComment 当前语言的行注释，如 //
+     */
+    public void toggleComment(String lineComment) {
+        Editable mText = editAreaView.getEditableText();
+        int[] lines = getSelectedLines(mText);
+        int end = lines[1];
+
+        boolean commented = true;
+        boolean empty = true;
+        for (int i = 2; i < lines.length && commented; i++) {
+            int start = skipIndent(mText, lines[i]);
+            if (isLineEnd(mText, start))
+                continue;
+            empty = false;
+            commented = startsWith(mText, start, lineComment);
+        }
+        if (empty)
+            return;
+
+        beginBatchEdit(mText);
+        try {
+            for (int i = lines.length - 1; i >= 2; i--) {
+                int start = lines[i];
+                if (commented) {
+                    start = skipIndent(mText, start);
+                    if (!startsWith(mText, start, lineComment))
+                        continue;
+                    mText.delete(start, start + lineComment.length());
+                    end -= lineComment.length();
+                } else if (!isLineEnd(mText, skipIndent(mText, start))) {
+                    mText.insert(start, lineComment);
+                    end += lineComment.length();
                 }
-            } else if (text.charAt(offset) == '\r') {
-                text.replace(offset, offset + 1, chars, 0, len);
             }
+        } finally {
+            endBatchEdit(mText);
+        }
+        editAreaView.setSelection(lines[0], end);
+    }
+
+    /**
+     * @return 第一行的开头、最后一行的结尾，之后是每一行的开头
+     */
+    private int[] getSelectedLines(Editable mText) {
+        int start = editAreaView.getSelectionStart();
+        int end = editAreaView.getSelectionEnd();
+        if (start > end) {
+            int t = start;
+            start = end;
+            end = t;
+        }
+        //选到下一行的开头时不算那一行
+        if (end > start && mText.charAt(end - 1) == '\n')
+            end--;
+        while (start > 0 && mText.charAt(start - 1) != '\n')
+            start--;
+        while (end < mText.length() && mText.charAt(end) != '\n')
+            end++;
+
+        IntegerArray starts = new IntegerArray();
+        starts.add(start);
+        starts.add(end);
+        starts.add(start);
+        for (int i = start; i < end; i++) {
+            if (mText.charAt(i) == '\n')
+                starts.add(i + 1);
+        }
+        return Arrays.copyOf(starts.getArray(), starts.getSize());
+    }
+
+    private static int skipIndent(Editable mText, int offset) {
+        while (offset < mText.length() && (mText.charAt(offset) == ' ' || mText.charAt(offset) == '\t'))
+            offset++;
+        return offset;
+    }
+
+    private static boolean isLineEnd(Editable mText, int offset) {
+        return offset >= mText.length() || mText.charAt(offset) == '\n';
+    }
+
+    private static boolean startsWith(Editable mText, int offset, String prefix) {
+        if (offset + prefix.length() > mText.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (mText.charAt(offset + i) != prefix.charAt(i))
+                return false;
         }
+        return true;
+    }
+
+    private static void beginBatchEdit(Editable mText) {
+        if (mText instanceof SpannableStringBuilder)
+            ((SpannableStringBuilder) mText).beginBatchEdit();
+    }
+
+    private static void endBatchEdit(Editable mText) {
+        if (mText instanceof SpannableStringBuilder)
+            ((SpannableStringBuilder) mText).endBatchEdit();
     }
+
 }
@@ -54,6 +54,7 @@ public class Pref implements SharedPreferences.OnSharedPreferenceChangeListener
     public static final String KEY_AUTO_CAPITALIZE = "pref_auto_capitalize";
     public static final String KEY_ENABLE_HIGHLIGHT = "pref_enable_highlight";
     public static final String KEY_HIGHLIGHT_FILE_SIZE_LIMIT = "pref_highlight_file_size_limit";
+    public static final String KEY_FOLLOW_MAX_SIZE = "pref_follow_max_size";
     public static final String KEY_THEME = "pref_current_theme";
     public static final String KEY_AUTO_SAVE = "pref_auto_save";
     public static final String KEY_REMEMBER_LAST_OPENED_FILES = "pref_remember_last_opened_files";
@@ -138,6 +139,7 @@ public class Pref implements SharedPreferences.OnSharedPreferenceChangeListener
         map.put(KEY_AUTO_CAPITALIZE, true);
         map.put(KEY_ENABLE_HIGHLIGHT, true);
         map.put(KEY_HIGHLIGHT_FILE_SIZE_LIMIT, 500);
+        map.put(KEY_FOLLOW_MAX_SIZE, 16);
         map.put(KEY_THEME, 0);
         map.put(KEY_AUTO_SAVE, false);
         map.put(KEY_ENABLE_ROOT, true);
@@ -260,6 +262,13 @@ public class Pref implements SharedPreferences.OnSharedPreferenceChangeListener
         return 1024 * (int) map.get(KEY_HIGHLIGHT_FILE_SIZE_LIMIT);
     }
 
+    /**
+     * @return max number of chars kept in follow mode
+     */
+    public int getFollowMaxSize() {
+        return 1024 * 1024 * Math.max(1, (int) map.get(KEY_FOLLOW_MAX_SIZE));
+    }
+
     public boolean isAutoSave() {
         return (boolean) map.get(KEY_AUTO_SAVE);
     }
@@ -325,6 +334,10 @@ public class Pref implements SharedPreferences.OnSharedPreferenceChangeListener
         return (boolean) map.get(KEY_AUTO_INDENT);
     }
 
+    public boolean isInsertSpaceForTab() {
+        return (boolean) map.get(KEY_INSERT_SPACE_FOR_TAB);
+    }
+
     public boolean isWordWrap() {
         return (boolean) map.get(KEY_WORD_WRAP);
     }
@@ -58,6 +58,7 @@ public class Command {
         HIGHLIGHT,
         INSERT_TEXT,
         RELOAD_WITH_ENCODING,
+        FOLLOW_MODE,
         FULL_SCREEN,
         THEME,
     }
@@ -30,4 +30,17 @@ public interface ReadFileListener {
     SpannableStringBuilder onAsyncReaded(FileReader fileReader, boolean ok);
 
     void onDone(SpannableStringBuilder spannableStringBuilder, boolean ok);
+
+    /**
+     * 渐进加载时在后台线程中调用，<code>buf</code> 在返回后会被复用
+     */
+    void onAsyncChunkReaded(char[] buf, int len);
+
+    /**
+     * 渐进加载时在 UI 线程中调用，收到一段已解码的文本
+     *
+     * @param first    true for the first screen of text
+     * @param progress 0-100
+     */
+    void onChunk(CharSequence text, boolean first, int progress);
 }
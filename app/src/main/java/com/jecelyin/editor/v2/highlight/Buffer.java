@@ -292,16 +292,25 @@ public class Buffer {
 
         integerArray.clear();
 
-        char c;
+        //文档里的换行符统一是 \n，见 LineEnding
         for (int i = 0; i < len; i++) {
-            c = seq.charAt(i);
-            if (c == '\r' || c == '\n')
+            if (seq.charAt(i) == '\n')
                 integerArray.add(i + 1);
         }
 
         contentInserted(offset, len, integerArray);
     }
 
+    /**
+     * Replaces the whole line index with a table built while the file was decoded,
+     * so the loaded text does not have to be scanned again.
+     *
+     * @param endOffsets The end offset of every line, the last one is the text length + 1
+     */
+    public void setLineEndOffsets(IntegerArray endOffsets) {
+        lineMgr._contentInserted(endOffsets);
+    }
+
     /**
      * Removes the specified rang efrom the buffer.
      *
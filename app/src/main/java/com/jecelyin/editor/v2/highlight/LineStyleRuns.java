@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.highlight;
+
+import android.core.text.StyleRunSet;
+import android.core.text.StyleRuns;
+
+import org.gjt.sp.jedit.LineManager;
+
+import java.util.Arrays;
+
+/**
+ * Syntax colors of every line, packed as (offset in line, length, color) int triples.
+ * <p>
+ * Offsets are relative to the start of their line, so an edit only moves the lines after it in
+ * the table and doesn't touch their runs. Adjacent tokens of the same color are merged.
+ */
+public class LineStyleRuns implements StyleRuns {
+    private final Buffer buffer;
+    private int[][] lines = new int[64][];
+    private int lineCount;
+    /**
+     * 正在高亮的那一行的 run，完成后复制成刚好大小的数组
+     */
+    private int[] pending = new int[3 * 32];
+    private int pendingCount;
+
+    public LineStyleRuns(Buffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public void clear() {
+        Arrays.fill(lines, 0, lineCount, null);
+        lineCount = 0;
+    }
+
+    /**
+     * Lines after <code>line</code> moved by <code>delta</code> lines, the runs of the lines
+     * that changed are set again after this.
+     */
+    public void linesChanged(int line, int delta) {
+        int tail = lineCount - (line + 1);
+        if (delta == 0 || tail <= 0)
+            return;
+        if (delta > 0) {
+            ensureCapacity(lineCount + delta);
+            System.arraycopy(lines, line + 1, lines, line + 1 + delta, tail);
+            Arrays.fill(lines, line + 1, line + 1 + delta, null);
+            lineCount += delta;
+        } else {
+            int removed = Math.min(-delta, tail);
+            System.arraycopy(lines, line + 1 + removed, lines, line + 1, tail - removed);
+            Arrays.fill(lines, lineCount - removed, lineCount, null);
+            lineCount -= removed;
+        }
+    }
+
+    public void startLine() {
+        pendingCount = 0;
+    }
+
+    /**
+     * @param offset offset of the token in its line
+     */
+    public void addRun(int offset, int length, int color) {
+        if (length <= 0)
+            return;
+        int i = pendingCount * 3;
+        if (i > 0 && pending[i - 1] == color && pending[i - 3] + pending[i - 2] == offset) {
+            pending[i - 2] += length;
+            return;
+        }
+        if (i + 3 > pending.length)
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        pending[i] = offset;
+        pending[i + 1] = length;
+        pending[i + 2] = color;
+        pendingCount++;
+    }
+
+    public void endLine(int line) {
+        ensureCapacity(line + 1);
+        if (line >= lineCount)
+            lineCount = line + 1;
+        lines[line] = pendingCount == 0 ? null : Arrays.copyOf(pending, pendingCount * 3);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > lines.length)
+            lines = Arrays.copyOf(lines, Math.max(size, lines.length * 2));
+    }
+
+    @Override
+    public void getRuns(int start, int limit, StyleRunSet out) {
+        LineManager lineManager = buffer.getLineManager();
+        int count = Math.min(lineCount, lineManager.getLineCount());
+        for (int line = lineManager.getLineOfOffset(start); line < count; line++) {
+            int lineStart = lineManager.getLineStartOffset(line);
+            if (lineStart >= limit)
+                break;
+            int[] runs = lines[line];
+            if (runs == null)
+                continue;
+            for (int i = 0; i < runs.length; i += 3) {
+                int runStart = lineStart + runs[i];
+                int runEnd = runStart + runs[i + 1];
+                if (runEnd <= start)
+                    continue;
+                if (runStart >= limit)
+                    break;
+                out.add(Math.max(runStart, start), Math.min(runEnd, limit), runs[i + 2]);
+            }
+        }
+    }
+}
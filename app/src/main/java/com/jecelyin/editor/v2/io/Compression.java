@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * How the bytes of a file are compressed: not at all, gzip, or a zip archive holding a single
+ * file.
+ * <p>
+ * The format is recognised by its magic bytes and the (de)compressor is stacked directly on
+ * the byte stream, so text is inflated into the decoder and deflated out of the encoder
+ * without a temporary file. Anything under the decompressor (root pipes, the
+ * {@link SourceBytes} cache, progress counting) keeps working on the compressed bytes.
+ */
+public class Compression {
+    public final static Compression NONE = new Compression(Type.NONE, null);
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    public enum Type {
+        NONE, GZIP, ZIP
+    }
+
+    private final Type type;
+    /**
+     * zip 里唯一的文件名，保存时用同样的名字
+     */
+    private final String entryName;
+
+    public Compression(Type type, String entryName) {
+        this.type = type;
+        this.entryName = entryName;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isCompressed() {
+        return type != Type.NONE;
+    }
+
+    /**
+     * @return name of the file inside the zip, null for other types
+     */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /**
+     * Read the magic bytes of a file.
+     */
+    public static Type detect(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[4];
+            int n = FileEncodingDetector.readSample(in, magic);
+            return detect(magic, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Type detect(byte[] magic, int length) {
+        if (length >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B)
+            return Type.GZIP;
+        if (length >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4)
+            return Type.ZIP;
+        return Type.NONE;
+    }
+
+    /**
+     * Guess the compression a new file should get from its name, for "save as".
+     */
+    public static Compression forFileName(String name) {
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".gz"))
+            return new Compression(Type.GZIP, null);
+        if (lower.endsWith(".zip") && name.length() > 4)
+            return new Compression(Type.ZIP, name.substring(0, name.length() - 4));
+        return NONE;
+    }
+
+    /**
+     * Look at the first bytes of <code>in</code> and stack a decompressor on it if needed.
+     */
+    public static Decompressed open(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, 4);
+        byte[] magic = new byte[4];
+        int n = FileEncodingDetector.readSample(pin, magic);
+        pin.unread(magic, 0, n);
+        switch (detect(magic, n)) {
+            case GZIP:
+                return new Decompressed(new GZIPInputStream(pin, BUFFER_SIZE), new Compression(Type.GZIP, null));
+            case ZIP:
+                ZipInputStream zin = new ZipInputStream(pin);
+                ZipEntry entry;
+                while ((entry = zin.getNextEntry()) != null && entry.isDirectory()) {
+                    //跳过目录
+                }
+                if (entry == null)
+                    throw new IOException("Zip file has no file entry");
+                return new Decompressed(new SingleEntryInputStream(zin), new Compression(Type.ZIP, entry.getName()));
+            default:
+                return new Decompressed(pin, NONE);
+        }
+    }
+
+    /**
+     * Check in the central directory of a local zip file that it holds a single file, so a zip
+     * that can't be saved back is refused before any of it is decoded.
+     */
+    public static void checkSingleEntry(File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            int files = 0;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && ++files > 1)
+                    throw new IOException("Zip file has more than one file: " + entry.getName());
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Stack a compressor on <code>out</code>. Closing the returned stream writes the trailer
+     * and frees the compressor but leaves <code>out</code> open, so a file can still be synced.
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        out = new KeepOpenOutputStream(out);
+        switch (type) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case ZIP:
+                ZipOutputStream zout = new ZipOutputStream(out);
+                zout.putNextEntry(new ZipEntry(entryName));
+                return zout;
+            default:
+                return out;
+        }
+    }
+
+    public static class Decompressed {
+        public final InputStream stream;
+        public final Compression compression;
+
+        Decompressed(InputStream stream, Compression compression) {
+            this.stream = stream;
+            this.compression = compression;
+        }
+    }
+
+    /**
+     * 读到第一个文件的结尾时检查后面没有别的文件，有的话保存会丢掉它们，不能打开。
+     * 本地文件在解码前已经用 {@link #checkSingleEntry} 查过了，这里只是 root 管道读取时的保底
+     */
+    private static class SingleEntryInputStream extends FilterInputStream {
+        private boolean checked;
+
+        SingleEntryInputStream(ZipInputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                checkLastEntry();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1)
+                checkLastEntry();
+            return n;
+        }
+
+        private void checkLastEntry() throws IOException {
+            if (checked)
+                return;
+            checked = true;
+            ZipEntry entry;
+            while ((entry = ((ZipInputStream) in).getNextEntry()) != null) {
+                if (!entry.isDirectory())
+                    throw new IOException("Zip file has more than one file: " + entry.getName());
+            }
+        }
+    }
+
+    private static class KeepOpenOutputStream extends FilterOutputStream {
+        KeepOpenOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+
+/**
+ * Notices when a file is modified by someone else.
+ * <p>
+ * The parent directory is watched with {@link FileObserver}, so saves that write a temp file
+ * and rename it over the original are seen too. inotify events are not delivered on every
+ * file system (e.g. some FUSE mounted sdcards), so the modification time and size are also
+ * polled every {@link #POLL_INTERVAL} ms (see {@link #setPollInterval(int)}). The listener is
+ * called on the main thread.
+ */
+public class FileChangeMonitor {
+    public final static int POLL_INTERVAL = 5000;
+    /**
+     * 一次保存会产生好几个事件，合并成一次检查；持续写入时最多每隔这么久检查一次
+     */
+    private final static int EVENT_DELAY = 300;
+    private final static int EVENTS = FileObserver.MODIFY | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.CREATE | FileObserver.DELETE;
+
+    private final File file;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private FileObserver observer;
+    private long lastModified;
+    private long lastLength;
+    private boolean running;
+    private volatile boolean checkPending;
+    private int pollInterval = POLL_INTERVAL;
+
+    public interface Listener {
+        void onFileChanged(File file);
+    }
+
+    private final Runnable checkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkPending = false;
+            check();
+        }
+    };
+
+    private final Runnable pollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            check();
+            if (running)
+                handler.postDelayed(this, pollInterval);
+        }
+    };
+
+    public FileChangeMonitor(File file, Listener listener) {
+        this.file = file;
+        this.listener = listener;
+        markSynced();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The document now matches the file on disk, e.g. after it was loaded or saved.
+     */
+    public void markSynced() {
+        lastModified = file.lastModified();
+        lastLength = file.length();
+    }
+
+    public void setPollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+        if (running) {
+            handler.removeCallbacks(pollRunnable);
+            handler.postDelayed(pollRunnable, pollInterval);
+        }
+    }
+
+    public void start() {
+        if (running)
+            return;
+        running = true;
+        File dir = file.getParentFile();
+        if (dir != null) {
+            final String name = file.getName();
+            observer = new FileObserver(dir.getPath(), EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (!name.equals(path) || checkPending)
+                        return;
+                    checkPending = true;
+                    handler.postDelayed(checkRunnable, EVENT_DELAY);
+                }
+            };
+            observer.startWatching();
+        }
+        // 停止期间文件可能已经改变
+        handler.post(pollRunnable);
+    }
+
+    public void stop() {
+        running = false;
+        checkPending = false;
+        handler.removeCallbacks(checkRunnable);
+        handler.removeCallbacks(pollRunnable);
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+    }
+
+    private void check() {
+        if (!running)
+            return;
+        long modified = file.lastModified();
+        long length = file.length();
+        // 文件被删除时不提示，等它重新出现
+        if (modified == 0 || (modified == lastModified && length == lastLength))
+            return;
+        lastModified = modified;
+        lastLength = length;
+        listener.onFileChanged(file);
+    }
+}
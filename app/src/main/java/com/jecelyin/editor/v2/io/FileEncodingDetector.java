@@ -23,9 +23,12 @@ import android.text.TextUtils;
 
 import com.jecelyin.common.utils.DLog;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
@@ -33,24 +36,32 @@ import java.io.FileInputStream;
 
 public class FileEncodingDetector {
     public final static String DEFAULT_ENCODING = "UTF-8";
+    /**
+     * 只取文件开头的一段字节来判断编码，不再扫描整个文件
+     */
+    public final static int SAMPLE_SIZE = 64 * 1024;
+    /**
+     * 开头全是 ASCII 时样本最多读到这么大，再决定不了就用 {@link #DEFAULT_ENCODING}，
+     * 纯 ASCII 按 UTF-8 解码结果一样
+     */
+    public final static int MAX_SAMPLE_SIZE = 4 * 1024 * 1024;
 
     public static String detectEncoding(File file) {
-//        CharsetDetector detector = new CharsetDetector();
-//        try {
-//            detector.setText(new BufferedInputStream(new FileInputStream(file)));
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        }
-//        CharsetMatch detect = detector.detect();
-//        if(detect == null)
-//            return DEFAULT_ENCODING;
-//        String encoding = detect.getName();
         String encoding = null;
         try {
-            BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(file));
-            encoding = CharsetDetector.detect(bufferedInputStream);
-            bufferedInputStream.close();
-
+            FileInputStream in = new FileInputStream(file);
+            try {
+                byte[] sample = new byte[SAMPLE_SIZE];
+                int len = readSample(in, sample);
+                encoding = detectEncoding(sample, len, len < sample.length);
+                while (encoding == null && sample.length < MAX_SAMPLE_SIZE) {
+                    sample = Arrays.copyOf(sample, Math.min(sample.length * 2, MAX_SAMPLE_SIZE));
+                    len = readSample(in, sample, len);
+                    encoding = detectEncoding(sample, len, len < sample.length);
+                }
+            } finally {
+                in.close();
+            }
         } catch (Exception e) {
             DLog.e(e);
         }
@@ -60,4 +71,124 @@ public class FileEncodingDetector {
 
         return encoding;
     }
+
+    /**
+     * Fill <code>sample</code> from the stream, the caller keeps the bytes and hands them to the decoder.
+     *
+     * @return the number of bytes read, less than <code>sample.length</code> only at end of stream
+     */
+    public static int readSample(InputStream in, byte[] sample) throws IOException {
+        return readSample(in, sample, 0);
+    }
+
+    /**
+     * Like {@link #readSample(InputStream, byte[])}, keeping the first <code>offset</code> bytes
+     * already in <code>sample</code>.
+     *
+     * @return the number of valid bytes in <code>sample</code>
+     */
+    public static int readSample(InputStream in, byte[] sample, int offset) throws IOException {
+        int total = offset;
+        int len;
+        while (total < sample.length && (len = in.read(sample, total, sample.length - total)) != -1) {
+            total += len;
+        }
+        return total;
+    }
+
+    /**
+     * @return true if the charset can be decoded starting at any character boundary; stateful
+     * encodings (ISO-2022-*) and ones whose byte order comes from a BOM can't
+     */
+    public static boolean isRestartable(Charset charset) {
+        String name = charset.name().toUpperCase();
+        return !name.startsWith("ISO-2022") && !name.startsWith("UTF-7")
+                && !name.equals("UTF-16") && !name.equals("UTF-32");
+    }
+
+    /**
+     * @param data     the first bytes of the file
+     * @param length   number of valid bytes in <code>data</code>
+     * @param complete true if <code>data</code> holds the whole file
+     * @return null if <code>data</code> is only ASCII and more of the file follows, the bytes
+     * that tell the encoding are further on; read a larger sample or use {@link #DEFAULT_ENCODING}
+     */
+    public static String detectEncoding(byte[] data, int length, boolean complete) {
+        String encoding = detectBOM(data, length);
+        if (encoding != null)
+            return encoding;
+
+        int utf8 = checkUTF8(data, length, complete);
+        if (utf8 > 0 || (utf8 == 0 && complete)) {
+            // 严格合法的 UTF-8，或者整个文件都是 ASCII
+            return DEFAULT_ENCODING;
+        }
+        if (utf8 == 0)
+            return null;
+
+        encoding = CharsetDetector.detect(data, length);
+        return TextUtils.isEmpty(encoding) ? DEFAULT_ENCODING : encoding;
+    }
+
+    private static String detectBOM(byte[] b, int len) {
+        if (len >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF)
+            return "UTF-8";
+        if (len >= 4 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE && b[2] == 0 && b[3] == 0)
+            return "UTF-32LE";
+        if (len >= 4 && b[0] == 0 && b[1] == 0 && (b[2] & 0xFF) == 0xFE && (b[3] & 0xFF) == 0xFF)
+            return "UTF-32BE";
+        if (len >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE)
+            return "UTF-16";
+        if (len >= 2 && (b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF)
+            return "UTF-16";
+        return null;
+    }
+
+    /**
+     * Strict UTF-8 validation (no overlongs, no surrogates, nothing above U+10FFFF).
+     * A sequence cut off at the end of an incomplete sample is accepted.
+     *
+     * @return the number of non-ASCII characters, or -1 if the data is not UTF-8
+     */
+    static int checkUTF8(byte[] b, int len, boolean complete) {
+        int nonAscii = 0;
+        int i = 0;
+        while (i < len) {
+            int c = b[i] & 0xFF;
+            if (c < 0x80) {
+                i++;
+                continue;
+            }
+            int need;
+            int min;
+            if (c >= 0xC2 && c <= 0xDF) {
+                need = 1;
+                min = 0x80;
+            } else if (c >= 0xE0 && c <= 0xEF) {
+                need = 2;
+                min = 0x800;
+            } else if (c >= 0xF0 && c <= 0xF4) {
+                need = 3;
+                min = 0x10000;
+            } else {
+                return -1;
+            }
+            int cp = c & (0x3F >> need);
+            for (int j = 1; j <= need; j++) {
+                if (i + j >= len) {
+                    // 样本在字符中间被截断
+                    return complete ? -1 : nonAscii;
+                }
+                int cc = b[i + j] & 0xFF;
+                if ((cc & 0xC0) != 0x80)
+                    return -1;
+                cp = (cp << 6) | (cc & 0x3F);
+            }
+            if (cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF))
+                return -1;
+            nonAscii++;
+            i += need + 1;
+        }
+        return nonAscii;
+    }
 }
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of every {@link #BLOCK_SIZE} bytes of a file, once with blocks aligned to the start
+ * and once aligned to the end. Comparing the fingerprint of the loaded version with the one of
+ * the version now on disk gives the unchanged head and tail. Appending to a file leaves every
+ * head block but the last one intact.
+ * <p>
+ * The fingerprint of the loaded version also records how many document chars come before each
+ * block boundary, so a reload decodes only the changed bytes between the head and the tail,
+ * plus one block on each side to find where they line up.
+ */
+public class FileFingerprint {
+    private final static int BLOCK_SIZE = 64 * 1024;
+    /**
+     * 替换前用来核对边界的字符数
+     */
+    private final static int CHECK_CHARS = 64;
+
+    private final long length;
+    private final long[] head;
+    private final long[] tail;
+    /**
+     * 每个块边界之前的字符数，没有按编码解码过时是 null
+     */
+    private final Marks marks;
+
+    private FileFingerprint(long length, long[] head, long[] tail, Marks marks) {
+        this.length = length;
+        this.head = head;
+        this.tail = tail;
+        this.marks = marks;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @param encoding the encoding the document was read with; the chars before every block
+     *                 boundary are counted with it so {@link #diff} can skip the unchanged head
+     *                 and tail without decoding them
+     */
+    public static FileFingerprint compute(File file, String encoding) throws IOException {
+        Charset charset = encoding == null ? null : Charset.forName(encoding);
+        if (charset != null && !FileEncodingDetector.isRestartable(charset))
+            charset = null;
+        InputStream in = new FileInputStream(file);
+        try {
+            return compute(in, file.length(), charset);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static FileFingerprint compute(InputStream in, long length, Charset charset) throws IOException {
+        int blocks = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long[] head = new long[blocks];
+        long[] tail = new long[blocks];
+        // 尾部对齐的第一块可能不完整
+        long tailOffset = length % BLOCK_SIZE;
+        CRC32 headCrc = new CRC32();
+        CRC32 tailCrc = new CRC32();
+        int headIndex = 0, tailIndex = 0;
+        Marks marks = charset == null ? null : new Marks(blocks * 2 + 1);
+        Decoder decoder = charset == null ? null : new Decoder(charset, false);
+        if (marks != null)
+            marks.add(0, 0, 0, false);
+
+        byte[] buf = new byte[BLOCK_SIZE];
+        long pos = 0;
+        int len;
+        while (pos < length && (len = in.read(buf, 0, (int) Math.min(buf.length, length - pos))) != -1) {
+            int off = 0;
+            while (off < len) {
+                long headEnd = (pos / BLOCK_SIZE + 1) * BLOCK_SIZE;
+                long tailEnd = pos < tailOffset ? tailOffset
+                        : tailOffset + ((pos - tailOffset) / BLOCK_SIZE + 1) * BLOCK_SIZE;
+                int n = (int) Math.min(len - off, Math.min(headEnd, tailEnd) - pos);
+                headCrc.update(buf, off, n);
+                tailCrc.update(buf, off, n);
+                if (decoder != null)
+                    decoder.decode(buf, off, n, pos + n == length, null);
+                off += n;
+                pos += n;
+                if (pos == headEnd || pos == length) {
+                    head[headIndex++] = headCrc.getValue();
+                    headCrc.reset();
+                }
+                if (pos == tailEnd || pos == length) {
+                    if (tailIndex < blocks)
+                        tail[tailIndex++] = tailCrc.getValue();
+                    tailCrc.reset();
+                }
+                // 边界上被切开的字符从它的第一个字节重新开始解码
+                if (marks != null && pos < length && (pos == headEnd || pos == tailEnd))
+                    marks.add(pos, pos - decoder.pending(), decoder.count, decoder.lastCR);
+            }
+        }
+        if (pos != length)
+            throw new IOException("File changed while reading");
+        if (marks != null)
+            marks.totalChars = decoder.count;
+        return new FileFingerprint(length, head, tail, marks);
+    }
+
+    /**
+     * Find the region of <code>file</code> that differs from the version this fingerprint was
+     * taken of, and decode it.
+     *
+     * @return null if the region can't be located reliably and the file should be reread
+     */
+    public Patch diff(File file, String encoding) throws IOException {
+        Charset charset = Charset.forName(encoding);
+        if (marks == null || !FileEncodingDetector.isRestartable(charset))
+            return null;
+
+        FileFingerprint current;
+        InputStream in = new FileInputStream(file);
+        try {
+            current = compute(in, file.length(), null);
+        } finally {
+            in.close();
+        }
+        if (current.length != file.length())
+            return null;
+        if (length == current.length && Arrays.equals(head, current.head))
+            return new Patch(marks.totalChars, 0, "", "", "", true);
+
+        long common = Math.min(length, current.length);
+        // 只比较完整的块
+        int fullHead = (int) (common / BLOCK_SIZE);
+        int i = 0;
+        while (i < fullHead && head[i] == current.head[i])
+            i++;
+        int prefixMark = marks.indexOf((long) i * BLOCK_SIZE);
+        // 边界前一块只用来取核对用的字符
+        int beforeMark = i > 0 ? marks.indexOf((long) (i - 1) * BLOCK_SIZE) : prefixMark;
+        long prefix = marks.restarts[prefixMark];
+
+        int oldFullTail = (int) (length / BLOCK_SIZE);
+        int newFullTail = (int) (current.length / BLOCK_SIZE);
+        int k = 0;
+        while (k < oldFullTail && k < newFullTail
+                && tail[tail.length - 1 - k] == current.tail[current.tail.length - 1 - k])
+            k++;
+        // 尾部少用一块：边界上被切开的字符从边界前几个字节开始，那几个字节也要没变过
+        int suffixMark = -1;
+        for (k--; k > 0; k--) {
+            int mark = marks.indexOf(length - (long) k * BLOCK_SIZE);
+            long restart = marks.restarts[mark];
+            if (restart >= prefix && current.length - (length - restart) >= prefix) {
+                suffixMark = mark;
+                break;
+            }
+        }
+        long suffix = suffixMark < 0 ? 0 : length - marks.restarts[suffixMark];
+
+        return decode(file, charset, current.length, prefixMark, beforeMark, suffixMark, current.length - suffix);
+    }
+
+    /**
+     * Decode the block before the unchanged head for checking, the changed bytes up to
+     * <code>to</code> and the first chars of the unchanged tail for checking. Line terminators
+     * are normalized as {@link FileReader} does, so the counts are in document chars.
+     */
+    private Patch decode(File file, Charset charset, long fileLength, int prefixMark, int beforeMark,
+                         int suffixMark, long to) throws IOException {
+        long from = marks.restarts[beforeMark];
+        long prefix = marks.restarts[prefixMark];
+        Decoder decoder = new Decoder(charset, marks.afterCR[beforeMark]);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(from);
+            byte[] buf = new byte[BLOCK_SIZE];
+            StringBuilder before = new StringBuilder();
+            StringBuilder middle = new StringBuilder();
+            StringBuilder after = new StringBuilder();
+
+            read(in, buf, decoder, prefix - from, false, before);
+            if (decoder.pending() != 0 || decoder.count != marks.chars[prefixMark] - marks.chars[beforeMark])
+                return null;
+            if (before.length() > CHECK_CHARS)
+                before.delete(0, before.length() - CHECK_CHARS);
+
+            int suffixChars = 0;
+            read(in, buf, decoder, to - prefix, suffixMark < 0, middle);
+            if (suffixMark >= 0) {
+                // 新文件在尾部开始的地方也要正好是字符边界，前面是不是 \r 也要一样
+                if (decoder.pending() != 0 || decoder.lastCR != marks.afterCR[suffixMark])
+                    return null;
+                suffixChars = marks.totalChars - marks.chars[suffixMark];
+                read(in, buf, decoder, Math.min(CHECK_CHARS * 4, fileLength - to), false, after);
+                if (after.length() > CHECK_CHARS)
+                    after.setLength(CHECK_CHARS);
+            }
+            return new Patch(marks.chars[prefixMark], suffixChars, middle.toString(),
+                    before.toString(), after.toString(), false);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void read(InputStream in, byte[] buf, Decoder decoder, long count, boolean end,
+                             StringBuilder out) throws IOException {
+        do {
+            int n = (int) Math.min(buf.length, count);
+            if (n > 0)
+                n = readFully(in, buf, n);
+            count -= n;
+            decoder.decode(buf, 0, n, end && count == 0, out);
+        } while (count > 0);
+    }
+
+    private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buf, total, len - total);
+            if (n == -1)
+                throw new IOException("File changed while reading");
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Where decoding can start again at each block boundary of the file.
+     */
+    private static class Marks {
+        private long[] bytes;
+        /**
+         * 边界上或之前第一个完整字符开始的位置
+         */
+        private long[] restarts;
+        /**
+         * restarts 之前的字符数
+         */
+        private int[] chars;
+        /**
+         * restarts 之前的字符是 \r，后面的 \n 属于它
+         */
+        private boolean[] afterCR;
+        private int size;
+        private int totalChars;
+
+        Marks(int capacity) {
+            bytes = new long[capacity];
+            restarts = new long[capacity];
+            chars = new int[capacity];
+            afterCR = new boolean[capacity];
+        }
+
+        void add(long boundary, long restart, int count, boolean cr) {
+            bytes[size] = boundary;
+            restarts[size] = restart;
+            chars[size] = count;
+            afterCR[size] = cr;
+            size++;
+        }
+
+        int indexOf(long boundary) {
+            int index = Arrays.binarySearch(bytes, 0, size, boundary);
+            if (index < 0)
+                throw new IllegalArgumentException("Not a block boundary: " + boundary);
+            return index;
+        }
+    }
+
+    /**
+     * Decodes the bytes handed to it one piece after the other and normalizes line terminators.
+     */
+    private static class Decoder {
+        private final CharsetDecoder decoder;
+        private final LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        /**
+         * 不完整的字符留在这里，和下一段字节一起解码
+         */
+        private final ByteBuffer bytes = ByteBuffer.allocate(BLOCK_SIZE + 16);
+        private final CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE);
+        /**
+         * 换行符处理之后的字符数
+         */
+        private int count;
+        private boolean lastCR;
+
+        Decoder(Charset charset, boolean afterCR) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            if (afterCR) {
+                lineEndings.continueAfterCR();
+                lastCR = true;
+            }
+        }
+
+        void decode(byte[] buf, int off, int len, boolean end, StringBuilder out) {
+            bytes.put(buf, off, len);
+            bytes.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(bytes, chars, end);
+                if (end && !result.isOverflow())
+                    result = decoder.flush(chars);
+                int n = chars.position();
+                if (n > 0) {
+                    lastCR = chars.get(n - 1) == '\r';
+                    n = lineEndings.normalize(chars.array(), 0, n);
+                    count += n;
+                    if (out != null)
+                        out.append(chars.array(), 0, n);
+                }
+                chars.clear();
+            } while (result.isOverflow());
+            bytes.compact();
+        }
+
+        /**
+         * @return the number of bytes of an incomplete char still waiting for the next piece
+         */
+        int pending() {
+            return bytes.position();
+        }
+    }
+
+    /**
+     * The changed region, in chars: the document keeps its first <code>prefixChars</code> and
+     * last <code>suffixChars</code> chars and everything in between becomes <code>text</code>.
+     */
+    public static class Patch {
+        public final int prefixChars;
+        public final int suffixChars;
+        public final String text;
+        /**
+         * 边界两侧的字符，替换前和文档核对，不一致就整个重新读取
+         */
+        private final String before;
+        private final String after;
+        private final boolean unchanged;
+
+        Patch(int prefixChars, int suffixChars, String text, String before, String after, boolean unchanged) {
+            this.prefixChars = prefixChars;
+            this.suffixChars = suffixChars;
+            this.text = text;
+            this.before = before;
+            this.after = after;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * @return true if the file content didn't change at all
+         */
+        public boolean isEmpty() {
+            return unchanged;
+        }
+
+        /**
+         * @return true if the unchanged head and tail line up with <code>doc</code>
+         */
+        public boolean matches(CharSequence doc) {
+            int end = doc.length() - suffixChars;
+            if (end < prefixChars)
+                return false;
+            if (!regionEquals(doc, prefixChars - before.length(), before))
+                return false;
+            return regionEquals(doc, end, after);
+        }
+
+        private static boolean regionEquals(CharSequence doc, int start, String s) {
+            if (start < 0 || start + s.length() > doc.length())
+                return false;
+            for (int i = 0; i < s.length(); i++) {
+                if (doc.charAt(start + i) != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
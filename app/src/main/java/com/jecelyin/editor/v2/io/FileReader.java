@@ -24,9 +24,20 @@ import android.text.TextUtils;
 
 import com.jecelyin.common.utils.DLog;
 
+import org.gjt.sp.jedit.util.IntegerArray;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
@@ -36,8 +47,54 @@ public class FileReader {
     private File file;
     private String encoding;
     private int lineNumber;
+    private long byteLength;
 //    private int BUFFER_SIZE = 8192;
     private final static int BUFFER_SIZE = 16*1024;
+    /**
+     * 超过这个大小的本地文件映射到内存后用 {@link ParallelDecoder} 多核解码
+     */
+    private final static long PARALLEL_READ_THRESHOLD = 4 * 1024 * 1024;
+    /**
+     * 超过这个大小的本地文件不整个解码到内存里，通过 {@link PagedTextStore} 按页读取
+     */
+    public final static long PAGED_READ_THRESHOLD = 8 * 1024 * 1024;
+    /**
+     * 编辑时预留的空隙
+     */
+    private final static int EDIT_GAP = 16 * 1024;
+    /**
+     * 超过这么多字符的文本放进 rope，远处的编辑不用移动中间的字符，变长时也不用复制整个数组，
+     * ASCII 为主的文本内存减半
+     */
+    public final static int ROPE_THRESHOLD = 4 * 1024 * 1024;
+
+    private ChunkListener chunkListener;
+    private IntegerArray lineEndOffsets;
+    /**
+     * 通过 root shell 的管道读取，没有读权限的文件不用先复制出来
+     */
+    private boolean root;
+    private SourceBytes sourceBytes;
+    /**
+     * gzip 和 zip 在读取时直接解压，不经过临时文件
+     */
+    private Compression compression = Compression.NONE;
+    /**
+     * 读入的文本统一换成 \n，原来的换行符记在这里
+     */
+    private LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+
+    /**
+     * 渐进加载：解码出的文本不再合并成一个缓冲区，而是分段交给监听器
+     */
+    public interface ChunkListener {
+        /**
+         * Called on the reading thread. <code>buf</code> is reused after the call returns.
+         *
+         * @param progress 0-100
+         */
+        void onChunkRead(char[] buf, int len, int progress) throws IOException;
+    }
 
     public FileReader(File file, String encodingName) {
         this.file = file;
@@ -45,12 +102,85 @@ public class FileReader {
     }
 
     public boolean read() {
+        InputStream in = null;
         try {
-            if(TextUtils.isEmpty(encoding))
-                encoding = FileEncodingDetector.detectEncoding(file);
+            long fileLength;
+            boolean cached = sourceBytes != null && sourceBytes.isValid();
+            if (cached) {
+                //换编码重新打开时直接解码内存里的字节
+                fileLength = sourceBytes.length();
+                in = sourceBytes.openStream();
+            } else {
+                // root 文件的大小可能拿不到（-1），只影响进度和预分配
+                fileLength = root ? RootStreams.length(file) : file.length();
+                in = root ? RootStreams.openInputStream(file) : new FileInputStream(file);
+                if (sourceBytes != null)
+                    in = sourceBytes.capture(in, fileLength);
+            }
+            // 计数放在解压之前，进度按文件的字节计算
+            CountingInputStream counter = new CountingInputStream(in);
+            Compression.Decompressed decompressed = Compression.open(counter);
+            in = decompressed.stream;
+            compression = decompressed.compression;
+            // 多个文件的 zip 在显示任何内容之前就拒绝，root 文件只能读到结尾时再检查
+            if (compression.getType() == Compression.Type.ZIP && !root)
+                Compression.checkSingleEntry(file);
+            // 解压后的长度不知道
+            long textLength = compression.isCompressed() ? -1 : fileLength;
+            if(TextUtils.isEmpty(encoding)) {
+                // 检测用过的字节直接交给解码器，文件只读一遍
+                byte[] sample = new byte[(int) (textLength < 0 ? FileEncodingDetector.SAMPLE_SIZE : Math.min(textLength, FileEncodingDetector.SAMPLE_SIZE))];
+                int sampleLength = FileEncodingDetector.readSample(in, sample);
+                boolean complete = textLength < 0 ? sampleLength < sample.length : sampleLength >= textLength;
+                encoding = FileEncodingDetector.detectEncoding(sample, sampleLength, complete);
+                while (encoding == null && sample.length < FileEncodingDetector.MAX_SAMPLE_SIZE) {
+                    // 读到的全是 ASCII，决定编码的字节在后面，样本加倍再检测
+                    long size = Math.min(sample.length * 2L, FileEncodingDetector.MAX_SAMPLE_SIZE);
+                    if (textLength >= 0)
+                        size = Math.min(size, textLength);
+                    if (size <= sample.length)
+                        break;
+                    sample = Arrays.copyOf(sample, (int) size);
+                    sampleLength = FileEncodingDetector.readSample(in, sample, sampleLength);
+                    complete = textLength < 0 ? sampleLength < sample.length : sampleLength >= textLength;
+                    encoding = FileEncodingDetector.detectEncoding(sample, sampleLength, complete);
+                }
+                if (encoding == null) {
+                    // 样本到上限还全是 ASCII：不再把整个文件读一遍，纯 ASCII 按 UTF-8 解码结果一样
+                    encoding = FileEncodingDetector.DEFAULT_ENCODING;
+                }
+                in = new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleLength), in);
+            }
 
             DLog.d(file.getPath()+" encoding is "+encoding);
-            LineNumberReader reader = new LineNumberReader(new InputStreamReader(new FileInputStream(file), encoding));
+            if (!root && !cached && !compression.isCompressed() && fileLength > PAGED_READ_THRESHOLD
+                    && FileEncodingDetector.isRestartable(Charset.forName(encoding))) {
+                // 文本留在文件里，编辑器用到哪页才解码哪页，堆上只有最近用过的几页和改过的部分
+                in.close();
+                readPaged();
+                if (sourceBytes != null)
+                    sourceBytes.finish();
+                return true;
+            }
+            if (!root && !cached && !compression.isCompressed() && fileLength > PARALLEL_READ_THRESHOLD
+                    && ParallelDecoder.isSupported(Charset.forName(encoding))) {
+                // 渐进加载时各块并行解码，按顺序交给监听器，第一屏不用等整个文件
+                if (chunkListener != null) {
+                    in.close();
+                    readParallelChunks(Charset.forName(encoding));
+                    if (sourceBytes != null)
+                        captureAll(fileLength);
+                    return true;
+                }
+                if (readParallel(Charset.forName(encoding))) {
+                    in.close();
+                    if (sourceBytes != null)
+                        captureAll(fileLength);
+                    return true;
+                }
+            }
+
+            LineNumberReader reader = new LineNumberReader(new InputStreamReader(in, encoding));
 //            String line, firstLine = null;
 //            while ((line = reader.readLine()) != null) {
 //                if (firstLine == null && !line.trim().isEmpty())
@@ -64,21 +194,185 @@ public class FileReader {
 //            }
             char[] buf = new char[BUFFER_SIZE];
             int len;
-            CharArrayBuffer arrayBuffer = new CharArrayBuffer(GrowingArrayUtils.growSize((int)file.length()));
+            if (chunkListener != null) {
+                long total = Math.max(1, fileLength);
+                while ((len = reader.read(buf, 0, BUFFER_SIZE)) != -1) {
+                    len = lineEndings.normalize(buf, 0, len);
+                    chunkListener.onChunkRead(buf, len, (int) Math.min(100, counter.getCount() * 100 / total));
+                }
+                lineNumber = lineEndings.getLineEndCount() + 1;
+                byteLength = counter.getCount();
+                reader.close();
+                if (sourceBytes != null && !cached)
+                    sourceBytes.finish();
+                return true;
+            }
+            CharArrayBuffer arrayBuffer = new CharArrayBuffer(GrowingArrayUtils.growSize((int) Math.max(0, fileLength)));
+            IntegerArray offsets = new IntegerArray();
             while ((len = reader.read(buf, 0, BUFFER_SIZE)) != -1) {
+                len = lineEndings.normalize(buf, 0, len);
+                collectLineEnds(buf, len, arrayBuffer.length(), offsets);
                 arrayBuffer.append(buf, 0, len);
             }
+            offsets.add(arrayBuffer.length() + 1);
+            lineEndOffsets = offsets;
 
-            lineNumber = reader.getLineNumber() + 1;
+            lineNumber = lineEndings.getLineEndCount() + 1;
+            byteLength = counter.getCount();
             reader.close();
+            if (sourceBytes != null && !cached)
+                sourceBytes.finish();
 
-            ssb = new SpannableStringBuilder(arrayBuffer.buffer(), 0, arrayBuffer.length());
+            ssb = newBuffer(arrayBuffer.buffer(), arrayBuffer.length());
 
             return true;
         } catch (Exception e) {
             DLog.e(e);
+            // root 管道不关闭的话另一端的 cat 会一直阻塞 shell
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 并行解码没有经过流，文件不超过缓存预算时再顺序读一遍（此时已经在页缓存里）
+     */
+    private void captureAll(long fileLength) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            sourceBytes.captureAll(in, fileLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 多核并行解码整个映射的文件，同时建好行索引
+     *
+     * @return false if the file should be decoded sequentially instead
+     */
+    private boolean readParallel(Charset charset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ParallelDecoder.Result result;
+        long size;
+        try {
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            // 字符数不会超过字节数
+            ensureMemory((size + EDIT_GAP) * 2);
+            result = ParallelDecoder.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                    charset, EDIT_GAP, true);
+        } finally {
+            raf.close();
+        }
+        if (result == null) {
+            DLog.d(file.getPath() + " isn't valid " + charset.name() + ", decode it sequentially");
             return false;
         }
+        byteLength = size;
+        lineEndings = result.lineEndings;
+        lineNumber = lineEndings.getLineEndCount() + 1;
+        IntegerArray offsets = result.lineEnds;
+        offsets.add(result.length + 1);
+        lineEndOffsets = offsets;
+        ssb = newBuffer(result.text, result.length);
+        return true;
+    }
+
+    /**
+     * 只建页索引和行索引，文本放进由 {@link PagedTextStore} 的页组成的 rope
+     */
+    private void readPaged() throws IOException {
+        PagedTextStore store = new PagedTextStore(file, encoding);
+        byteLength = store.getByteLength();
+        lineEndings = store.getLineEndings();
+        lineNumber = lineEndings.getLineEndCount() + 1;
+        lineEndOffsets = store.getLineEndOffsets();
+        ssb = SpannableStringBuilder.ropeOf(store.getText());
+    }
+
+    /**
+     * 多核并行解码映射的文件，按顺序分块交给 {@link #chunkListener}
+     */
+    private void readParallelChunks(Charset charset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            lineEndings = ParallelDecoder.decodeInOrder(channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                    charset, chunkListener);
+            byteLength = size;
+        } finally {
+            raf.close();
+        }
+        lineNumber = lineEndings.getLineEndCount() + 1;
+    }
+
+    private static SpannableStringBuilder newBuffer(char[] text, int length) {
+        if (length > ROPE_THRESHOLD)
+            return SpannableStringBuilder.ropeOf(text, 0, length);
+        return new SpannableStringBuilder(text, 0, length);
+    }
+
+    private void ensureMemory(long required) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (required > available) {
+            throw new IOException("File too large to edit: " + file.getPath()
+                    + " needs " + required + " bytes, " + available + " available");
+        }
+    }
+
+    /**
+     * 记录每个 \n 之后的位置，与 {@link com.jecelyin.editor.v2.highlight.Buffer#insert} 的规则一致，
+     * 这样 LineManager 可以直接使用这张表而不用再扫描一遍文本。文本已经由 {@link LineEnding.Normalizer} 处理过
+     *
+     * @param base offset of <code>text[0]</code> in the document
+     * @return the number of line ends found
+     */
+    private static int collectLineEnds(char[] text, int length, int base, IntegerArray offsets) {
+        return collectLineEnds(text, 0, length, base, offsets);
+    }
+
+    /**
+     * Scan <code>text[start, start + count)</code>; <code>offsets</code> may be null to only
+     * count the lines.
+     *
+     * @param base offset of <code>text[start]</code> in the document
+     */
+    static int collectLineEnds(char[] text, int start, int count, int base, IntegerArray offsets) {
+        int lines = 0;
+        int end = start + count;
+        base -= start;
+        for (int i = start; i < end; i++) {
+            if (text[i] == '\n') {
+                if (offsets != null)
+                    offsets.add(base + i + 1);
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * If <code>bytes</code> still holds the file as it is on disk, decode them instead of
+     * reading the file; otherwise fill it with the bytes read.
+     */
+    public void setSourceBytes(SourceBytes bytes) {
+        this.sourceBytes = bytes;
+    }
+
+    public void setRoot(boolean root) {
+        this.root = root;
+    }
+
+    public void setChunkListener(ChunkListener chunkListener) {
+        this.chunkListener = chunkListener;
     }
 
     public String getEncoding() {
@@ -89,8 +383,73 @@ public class FileReader {
         return lineNumber;
     }
 
+    /**
+     * @return the line terminator most of the file used, the text itself only has \n
+     */
+    public LineEnding getLineEnding() {
+        return lineEndings.getLineEnding();
+    }
+
+    /**
+     * @return true if the file mixed different line terminators
+     */
+    public boolean hasMixedLineEndings() {
+        return lineEndings.isMixed();
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return number of bytes which were read from the file, before decompression
+     */
+    public long getByteLength() {
+        return byteLength;
+    }
+
+    /**
+     * @return the end offset of every line as {@link org.gjt.sp.jedit.LineManager} stores them,
+     * or null if the file was delivered through a {@link ChunkListener}
+     */
+    public IntegerArray getLineEndOffsets() {
+        return lineEndOffsets;
+    }
+
+    /**
+     * @return null if the file was delivered through a {@link ChunkListener}; files read through
+     * a {@link PagedTextStore} aren't, they are returned here even when a listener is set
+     */
     public SpannableStringBuilder getBuffer() {
         return ssb;
     }
 
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes only the bytes appended to a file since the previous {@link #read()}.
+ * <p>
+ * The byte position and the decoder, together with the bytes of a char that was only partly
+ * written, are kept between calls, so a growing log file is never decoded twice. Line
+ * terminators are normalized to \n like {@link FileReader} does. One call reads at most
+ * <code>maxBytes</code>, a file that grew by more is read in several calls.
+ */
+public class FileTailReader {
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final int maxBytes;
+    private final CharsetDecoder decoder;
+    /**
+     * 上次没解码完的字节留在这里（compact 状态）
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    /**
+     * 上次结尾的 \r 和这次开头的 \n 是同一个换行
+     */
+    private final LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+    private long position;
+    /**
+     * 第一次读取前要看已经读过的部分是不是以 \r 结尾
+     */
+    private boolean started;
+
+    /**
+     * @param position byte offset up to which the file has already been decoded; a \r just
+     *                 before it and a \n right after it are one line end
+     * @param maxBytes the most bytes one {@link #read()} decodes
+     */
+    public FileTailReader(File file, String encoding, long position, int maxBytes) {
+        this.file = file;
+        this.position = position;
+        this.maxBytes = Math.max(1, maxBytes);
+        this.decoder = Charset.forName(encoding).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the text appended since the last call, at most <code>maxBytes</code> of it, empty if
+     * there is none, or null if the file became shorter (truncated or replaced) and has to be read
+     * again from the start; the rest follows while {@link #getPosition()} is behind the file size
+     */
+    public synchronized String read() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < position)
+                return null;
+
+            if (!started) {
+                started = true;
+                if (endsWithCR(channel))
+                    lineEndings.continueAfterCR();
+            }
+
+            // 一次增长很多时分批读，每批的字符数不超过跟踪模式保留的大小
+            long end = Math.min(size, position + maxBytes);
+            StringBuilder sb = new StringBuilder((int) (end - position));
+            while (position < end) {
+                bytes.limit((int) Math.min(bytes.capacity(), bytes.position() + end - position));
+                int n = channel.read(bytes, position);
+                if (n <= 0)
+                    break;
+                position += n;
+                bytes.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, false);
+                    chars.flip();
+                    sb.append(chars.array(), 0, lineEndings.normalize(chars.array(), 0, chars.limit()));
+                    chars.clear();
+                } while (result.isOverflow());
+                // 写了一半的字符留到下次
+                bytes.compact();
+            }
+            return sb.toString();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return true if the bytes right before the start position decode to a single \r
+     */
+    private boolean endsWithCR(FileChannel channel) throws IOException {
+        CharsetDecoder crDecoder = decoder.charset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // \r 在单字节和 UTF-8 里占一个字节，UTF-16 两个，UTF-32 四个
+        for (int n = 1; n <= 4 && n <= position; n++) {
+            ByteBuffer tail = ByteBuffer.allocate(n);
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, position - n + tail.position()) <= 0)
+                    return false;
+            }
+            tail.flip();
+            try {
+                if ("\r".equals(crDecoder.reset().decode(tail).toString()))
+                    return true;
+            } catch (CharacterCodingException e) {
+                // 不是完整的字符，多取一个字节再试
+            }
+        }
+        return false;
+    }
+}
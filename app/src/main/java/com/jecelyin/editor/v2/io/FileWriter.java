@@ -18,28 +18,36 @@
 
 package com.jecelyin.editor.v2.io;
 
+import android.annotation.TargetApi;
+import android.core.text.SpannableStringBuilder;
+import android.core.text.TextSnapshot;
 import android.os.AsyncTask;
-import android.text.Editable;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 
-import com.jecelyin.android.file_explorer.io.RootFile;
+import com.jecelyin.common.utils.DLog;
 import com.jecelyin.common.utils.IOUtils;
-import com.stericson.RootTools.RootTools;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
-public class FileWriter extends AsyncTask<Editable, Void, Exception> {
+public class FileWriter extends AsyncTask<CharSequence, Void, Exception> {
+    private final static String SELINUX_XATTR = "security.selinux";
     private final String encoding;
+    private final LineEnding lineEnding;
+    private final Compression compression;
     private final File file;
-    private final static int BUFFER_SIZE = 16*1024;
-    private final File backupFile;
-    private final File orgiFile;
+    private final boolean root;
     private final boolean keepBackupFile;
     private FileWriteListener fileWriteListener;
 
@@ -48,15 +56,25 @@ public class FileWriter extends AsyncTask<Editable, Void, Exception> {
         public void onError(Exception e);
     }
 
-    public FileWriter(File file, File orgiFile, String encoding, boolean keepBackupFile) {
+    /**
+     * @param root write through the root shell, the file isn't writable by the app
+     * @param lineEnding written for every \n of the text
+     * @param compression the encoded bytes are compressed on the way to the file
+     */
+    public FileWriter(File file, boolean root, String encoding, LineEnding lineEnding, Compression compression, boolean keepBackupFile) {
         this.file = file;
-        this.orgiFile = orgiFile;
-        this.backupFile = makeBackupFile(file);
+        this.root = root;
         this.encoding = encoding;
+        this.lineEnding = lineEnding;
+        this.compression = compression;
         this.keepBackupFile = keepBackupFile;
     }
 
-    public void write(Editable text) {
+    /**
+     * @param text read on a background thread, so it must not change any more, e.g. a
+     *             {@link android.core.text.TextSnapshot}
+     */
+    public void write(CharSequence text) {
         execute(text);
     }
 
@@ -65,57 +83,205 @@ public class FileWriter extends AsyncTask<Editable, Void, Exception> {
     }
 
     @Override
-    protected Exception doInBackground(Editable... params) {
-
-//        if(backupFile.exists()) {
-//            if(!backupFile.delete()) {
-//                return new IOException("Couldn't remove old backup file " + backupFile);
-//            }
-//        }
-
-        if(file.isFile() && (orgiFile == null
-                ? !IOUtils.copyFile(file, backupFile)
-                : !RootTools.copyFile(file.getPath(), backupFile.getPath(), true, true))) {
-            return new IOException("Couldn't copy file " + file
-                    + " to backup file " + backupFile);
+    protected Exception doInBackground(CharSequence... params) {
+        CharSequence text = params[0];
+        try {
+            if (root) {
+                saveRoot(text);
+            } else {
+                saveAtomically(text);
+            }
+        } catch (Exception e) {
+            return e;
+        }
+        return null;
+    }
+
+    /**
+     * 先写到同目录下的临时文件并 fsync，再用 rename 覆盖目标文件，
+     * 目标文件任何时候都不会只写了一半；备份通过硬链接或 rename 完成，不再复制内容
+     */
+    private void saveAtomically(CharSequence text) throws IOException {
+        // 注意路径可能是 symbolic links，要替换的是链接指向的文件
+        File target = file.exists() ? file.getCanonicalFile() : file;
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (dir == null || !dir.canWrite()) {
+            // 目录不可写时只能原地改写
+            saveInPlace(target, text);
+            return;
         }
 
-        Editable text = params[0];
+        File tempFile = makeTempFile(target);
         try {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), encoding), BUFFER_SIZE);
-            char[] buffer = new char[BUFFER_SIZE]; //16kb
-            int size = text.length();
-            if (size > 0) {
-                int start = 0, end = BUFFER_SIZE;
-                for (;;) {
-                    end = Math.min(end, size);
-                    text.getChars(start, end, buffer, 0);
-
-                    bw.write(buffer, 0, end - start);
-                    start = end;
-
-                    if (end >= size)
-                        break;
-
-                    end += BUFFER_SIZE;
+            if (target.exists()) {
+                new FileOutputStream(tempFile).close();
+                if (!copyAttributes(target, tempFile)) {
+                    // 新文件做不到和原文件一样的权限、属主或 SELinux 标签，rename 会改掉它们
+                    tempFile.delete();
+                    saveInPlace(target, text);
+                    return;
                 }
             }
+            writeText(tempFile, text);
 
-            bw.close();
-        } catch (Exception e) {
-            return e;
+            File backup = makeBackupFile(target);
+            if (backup.exists() && !backup.delete())
+                throw new IOException("Couldn't remove old backup file " + backup);
+
+            boolean movedToBackup = false;
+            if (keepBackupFile && target.isFile() && !linkFile(target, backup)) {
+                if (!target.renameTo(backup))
+                    throw new IOException("Couldn't move file " + target + " to backup file " + backup);
+                movedToBackup = true;
+            }
+
+            if (!tempFile.renameTo(target)) {
+                // 原文件已经移成了备份，放回原处，目标文件不能就这样消失
+                if (movedToBackup && !backup.renameTo(target))
+                    throw new IOException("Couldn't rename " + tempFile + " to " + target
+                            + ", the old content is in " + backup);
+                throw new IOException("Couldn't rename " + tempFile + " to " + target);
+            }
+        } finally {
+            if (tempFile.exists())
+                tempFile.delete();
+        }
+    }
+
+    /**
+     * Give <code>dest</code> the permissions, owner and SELinux label of <code>src</code>.
+     *
+     * @return false if <code>dest</code> still differs afterwards, or <code>src</code> has other
+     * hard links which a rename would leave pointing at the old content
+     */
+    private static boolean copyAttributes(File src, File dest) {
+        String srcPath = src.getPath();
+        String destPath = dest.getPath();
+        try {
+            StructStat stat = Os.stat(srcPath);
+            if (stat.st_nlink > 1)
+                return false;
+            // 有的文件系统（如 sdcardfs、vfat）的权限由挂载决定，改不了也不需要改，最后比较结果就行
+            try {
+                Os.chmod(destPath, stat.st_mode & 07777);
+            } catch (ErrnoException e) {
+                DLog.d("Can't chmod " + destPath + ": " + e.getMessage());
+            }
+            StructStat destStat = Os.stat(destPath);
+            if (destStat.st_uid != stat.st_uid || destStat.st_gid != stat.st_gid) {
+                try {
+                    Os.chown(destPath, stat.st_uid, stat.st_gid);
+                } catch (ErrnoException e) {
+                    DLog.d("Can't chown " + destPath + ": " + e.getMessage());
+                }
+                destStat = Os.stat(destPath);
+            }
+            if (destStat.st_uid != stat.st_uid || destStat.st_gid != stat.st_gid
+                    || (destStat.st_mode & 07777) != (stat.st_mode & 07777))
+                return false;
+        } catch (ErrnoException e) {
+            DLog.d("Can't stat " + srcPath + ": " + e.getMessage());
+            return false;
+        }
+        // 8.0 以下读不到 xattr，新文件用目录默认的标签
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return true;
+        byte[] label = getSELinuxLabel(srcPath);
+        if (label == null)
+            return true;
+        try {
+            Os.setxattr(destPath, SELINUX_XATTR, label, 0);
+        } catch (ErrnoException e) {
+            DLog.d("Can't set the SELinux label of " + destPath + ": " + e.getMessage());
         }
+        return Arrays.equals(label, getSELinuxLabel(destPath));
+    }
+
+    /**
+     * @return null if the file system has no labels
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private static byte[] getSELinuxLabel(String path) {
+        try {
+            return Os.getxattr(path, SELINUX_XATTR);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private void saveInPlace(File target, CharSequence text) throws IOException {
+        checkNotPaged(text);
+        File backup = makeBackupFile(target);
+        if (keepBackupFile && target.isFile() && !IOUtils.copyFile(target, backup)) {
+            throw new IOException("Couldn't copy file " + target
+                    + " to backup file " + backup);
+        }
+        writeText(target, text);
+    }
+
+    /**
+     * 通过 root shell 的管道原地改写，备份也在 shell 里复制，内容不经过应用
+     */
+    private void saveRoot(CharSequence text) throws IOException {
+        checkNotPaged(text);
+        File backup = makeBackupFile(file);
+        if (keepBackupFile && !RootStreams.copy(file, backup)) {
+            throw new IOException("Couldn't copy file " + file
+                    + " to backup file " + backup);
+        }
+
+        OutputStream out = RootStreams.openOutputStream(file);
+        try {
+            OutputStream compressed = compression.wrap(out);
+            TextChannelEncoder.write(text, encoding, lineEnding, Channels.newChannel(compressed));
+            compressed.close();
+        } finally {
+            // 关闭时等待 dd 写完并检查退出码
+            out.close();
+        }
+    }
 
-        // 注意路径可能是 symbolic links
-        if (orgiFile != null && !RootTools.copyFile(file.getAbsolutePath() , (new RootFile(orgiFile.getPath())).getAbsolutePath(), true, false)) {
-            return new IOException("Can't copy " + file.getPath() + " content to " + orgiFile.getPath());
+    /**
+     * 按页从文件读取的文本写回同一个文件时，后面的页会读到刚写进去的内容
+     */
+    private static void checkNotPaged(CharSequence text) throws IOException {
+        if (text instanceof TextSnapshot && ((TextSnapshot) text).isPaged()
+                || text instanceof SpannableStringBuilder && ((SpannableStringBuilder) text).isPaged()) {
+            throw new IOException("Can't overwrite a file in place while its text is still read from it");
         }
-        if(file.exists()) {
-            if(!keepBackupFile && backupFile.exists() && !backupFile.delete()) {
-                return new IOException("Couldn't remove backup file " + backupFile);
+    }
+
+    private void writeText(File dest, CharSequence text) throws IOException {
+        FileOutputStream fos = new FileOutputStream(dest);
+        try {
+            FileChannel channel = fos.getChannel();
+            if (compression.isCompressed()) {
+                // 编码出的字节直接压缩写入
+                OutputStream compressed = compression.wrap(fos);
+                TextChannelEncoder.write(text, encoding, lineEnding, Channels.newChannel(compressed));
+                compressed.close();
+            } else {
+                // 直接从 gap buffer 编码到文件，不经过 Writer 的中间缓冲
+                TextChannelEncoder.write(text, encoding, lineEnding, channel);
             }
+            // rename 之前确保数据已经落盘
+            channel.force(true);
+        } finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * 硬链接让备份文件直接引用旧内容，有的文件系统（如 sdcardfs、vfat）不支持
+     */
+    private static boolean linkFile(File src, File dest) {
+        try {
+            Os.link(src.getPath(), dest.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            DLog.d("Can't link " + src + " to " + dest + ": " + e.getMessage());
+            return false;
         }
-        return null;
     }
 
     @Override
@@ -132,4 +298,8 @@ public class FileWriter extends AsyncTask<Editable, Void, Exception> {
         return new File(file.getParent(), ".920bak." + file.getName());
     }
 
+    private static File makeTempFile(File file) {
+        return new File(file.getParent(), ".920tmp." + file.getName());
+    }
+
 }
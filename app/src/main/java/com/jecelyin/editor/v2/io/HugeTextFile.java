@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Read-only, line oriented access to a file too big to be loaded into an editor.
+ * <p>
+ * One pass over the bytes records where every {@code interval}-th line starts. Reading a line
+ * then seeks to the checkpoint before it and skips at most {@code interval - 1} lines, so the
+ * cost doesn't depend on the file size. The checkpoint table is capped at
+ * {@link #MAX_CHECKPOINTS} entries (every other entry is dropped and the interval doubled when
+ * it fills up) and lines are cut at {@link #MAX_LINE_CHARS}, so the heap used is bounded no
+ * matter how big the file is.
+ * <p>
+ * Lines are found by looking for the '\n' byte, which only works for encodings where that
+ * byte never appears inside another character, see {@link #isSupported(Charset)}.
+ */
+public class HugeTextFile {
+    private final static int CHECKPOINT_LINES = 256;
+    private final static int MAX_CHECKPOINTS = 64 * 1024;
+    public final static int MAX_LINE_CHARS = 4 * 1024;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] lineBytes = new byte[MAX_LINE_CHARS * 4];
+    private final CharBuffer lineChars = CharBuffer.allocate(MAX_LINE_CHARS * 2);
+    private long[] checkpoints = new long[1024];
+    private int checkpointCount;
+    private int interval = CHECKPOINT_LINES;
+    private int lineCount;
+
+    public interface ProgressListener {
+        /**
+         * @param progress 0-100
+         * @return false to stop indexing
+         */
+        boolean onIndexProgress(int progress);
+    }
+
+    public HugeTextFile(File file, String encoding) {
+        this.file = file;
+        this.charset = Charset.forName(encoding);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @return true if '\n' is encoded as the single byte 0x0A and that byte can't be part of
+     * another character
+     */
+    public static boolean isSupported(Charset charset) {
+        if (!FileEncodingDetector.isRestartable(charset) || !charset.canEncode())
+            return false;
+        try {
+            ByteBuffer nl = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+            String name = charset.name().toUpperCase();
+            return nl.remaining() == 1 && nl.get(0) == '\n' && !name.startsWith("UTF-16") && !name.startsWith("UTF-32");
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getEncoding() {
+        return charset.name();
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Scan the whole file once and build the checkpoint table.
+     *
+     * @return false if the listener stopped it
+     */
+    public synchronized boolean buildIndex(ProgressListener listener) throws IOException {
+        checkpointCount = 0;
+        interval = CHECKPOINT_LINES;
+        addCheckpoint(0, 0);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long pos = 0;
+            int lines = 0;
+            int lastProgress = -1;
+            byte[] array = buffer.array();
+            while (pos < size) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0)
+                    break;
+                for (int i = 0; i < n; i++) {
+                    if (array[i] == '\n') {
+                        lines++;
+                        if (lines % interval == 0)
+                            addCheckpoint(lines, pos + i + 1);
+                    }
+                }
+                pos += n;
+                int progress = (int) (pos * 100 / size);
+                if (listener != null && progress != lastProgress) {
+                    lastProgress = progress;
+                    if (!listener.onIndexProgress(progress))
+                        return false;
+                }
+            }
+            //最后一个换行符后面还有一行（可能是空行），与编辑器的行数一致
+            lineCount = lines + 1;
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void addCheckpoint(int line, long offset) {
+        if (checkpointCount == checkpoints.length) {
+            if (checkpointCount >= MAX_CHECKPOINTS) {
+                // 只保留偶数项，间隔加倍
+                for (int i = 0; i < checkpointCount; i += 2)
+                    checkpoints[i / 2] = checkpoints[i];
+                checkpointCount = (checkpointCount + 1) / 2;
+                interval *= 2;
+                if (line % interval != 0)
+                    return;
+            } else {
+                long[] newArray = new long[checkpoints.length * 2];
+                System.arraycopy(checkpoints, 0, newArray, 0, checkpointCount);
+                checkpoints = newArray;
+            }
+        }
+        checkpoints[checkpointCount++] = offset;
+    }
+
+    /**
+     * Decode <code>count</code> lines starting with line <code>first</code> (0-based). Line
+     * terminators are stripped and lines longer than {@link #MAX_LINE_CHARS} are cut.
+     *
+     * @return number of lines stored into <code>dest</code>
+     */
+    public synchronized int readLines(int first, int count, String[] dest) throws IOException {
+        if (first < 0 || first >= lineCount || count <= 0)
+            return 0;
+        int k = Math.min(first / interval, checkpointCount - 1);
+        long pos = checkpoints[k];
+        int skip = first - k * interval;
+        int lines = 0;
+        int lineLength = 0;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            byte[] array = buffer.array();
+            boolean eof = false;
+            while (lines < count && !eof) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0) {
+                    eof = true;
+                    n = 0;
+                }
+                pos += n;
+                int i = 0;
+                // 跳过检查点到目标行之间的行
+                while (skip > 0 && i < n) {
+                    if (array[i++] == '\n')
+                        skip--;
+                }
+                for (; i < n && lines < count; i++) {
+                    byte b = array[i];
+                    if (b == '\n') {
+                        dest[lines++] = decodeLine(lineLength);
+                        lineLength = 0;
+                    } else if (lineLength < lineBytes.length) {
+                        lineBytes[lineLength++] = b;
+                    }
+                }
+            }
+            // 文件的最后一行没有换行符
+            if (lines < count && first + lines < lineCount)
+                dest[lines++] = decodeLine(lineLength);
+        } finally {
+            raf.close();
+        }
+        if (first == 0 && lines > 0 && dest[0].startsWith("\uFEFF"))
+            dest[0] = dest[0].substring(1);
+        return lines;
+    }
+
+    private String decodeLine(int length) {
+        if (length > 0 && lineBytes[length - 1] == '\r')
+            length--;
+        decoder.reset();
+        lineChars.clear();
+        decoder.decode(ByteBuffer.wrap(lineBytes, 0, length), lineChars, true);
+        decoder.flush(lineChars);
+        lineChars.flip();
+        int len = Math.min(lineChars.remaining(), MAX_LINE_CHARS);
+        return lineChars.subSequence(0, len).toString();
+    }
+}
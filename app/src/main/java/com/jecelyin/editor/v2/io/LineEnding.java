@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+/**
+ * Line terminator of a file.
+ * <p>
+ * Documents only ever contain '\n'. The terminator a file was read with is kept as document
+ * metadata and written back by {@link TextChannelEncoder}, so converting between them doesn't
+ * touch the text.
+ */
+public enum LineEnding {
+    LF("\n"), CRLF("\r\n"), CR("\r");
+
+    private final String chars;
+
+    LineEnding(String chars) {
+        this.chars = chars;
+    }
+
+    public String getChars() {
+        return chars;
+    }
+
+    /**
+     * @return null if <code>chars</code> isn't a line terminator
+     */
+    public static LineEnding fromChars(String chars) {
+        for (LineEnding lineEnding : values()) {
+            if (lineEnding.chars.equals(chars))
+                return lineEnding;
+        }
+        return null;
+    }
+
+    /**
+     * Rewrites \r\n and single \r to \n in place as text goes by, and counts the terminators of
+     * each kind. A \r at the end of one call followed by \n at the start of the next one is
+     * a single \r\n.
+     */
+    public static class Normalizer {
+        private boolean lastWasCR;
+        /**
+         * 还没处理过任何字符，合并时不能用它的 lastWasCR 盖掉前面的
+         */
+        private boolean empty = true;
+        private int lf, crlf, cr;
+
+        /**
+         * @return the new number of chars in <code>text[start, start + count)</code>
+         */
+        public int normalize(char[] text, int start, int count) {
+            int end = start + count;
+            int w = start;
+            if (count > 0)
+                empty = false;
+            for (int r = start; r < end; r++) {
+                char ch = text[r];
+                if (ch == '\r') {
+                    cr++;
+                    lastWasCR = true;
+                    text[w++] = '\n';
+                } else if (ch == '\n') {
+                    if (lastWasCR) {
+                        // 前面的 \r 已经换成了 \n
+                        cr--;
+                        crlf++;
+                    } else {
+                        lf++;
+                        text[w++] = ch;
+                    }
+                    lastWasCR = false;
+                } else {
+                    lastWasCR = false;
+                    text[w++] = ch;
+                }
+            }
+            return w - start;
+        }
+
+        /**
+         * Start after text that ended with a \r (already written as \n), so a \n at the start of
+         * the next call belongs to it. The \r is counted as one terminator.
+         */
+        public void continueAfterCR() {
+            cr++;
+            lastWasCR = true;
+            empty = false;
+        }
+
+        /**
+         * Add the counts of a normalizer that ran over the text right after this one's.
+         */
+        public void add(Normalizer other) {
+            lf += other.lf;
+            crlf += other.crlf;
+            cr += other.cr;
+            if (!other.empty) {
+                lastWasCR = other.lastWasCR;
+                empty = false;
+            }
+        }
+
+        /**
+         * @return the number of line terminators, the same as the number of '\n' written
+         */
+        public int getLineEndCount() {
+            return lf + crlf + cr;
+        }
+
+        /**
+         * @return the most used terminator, {@link #LF} if there is none
+         */
+        public LineEnding getLineEnding() {
+            if (crlf > lf && crlf >= cr)
+                return CRLF;
+            if (cr > lf && cr > crlf)
+                return CR;
+            return LF;
+        }
+
+        /**
+         * @return true if more than one kind of terminator was found
+         */
+        public boolean isMixed() {
+            int kinds = (lf > 0 ? 1 : 0) + (crlf > 0 ? 1 : 0) + (cr > 0 ? 1 : 0);
+            return kinds > 1;
+        }
+
+        @Override
+        public String toString() {
+            return "LF=" + lf + " CRLF=" + crlf + " CR=" + cr;
+        }
+    }
+}
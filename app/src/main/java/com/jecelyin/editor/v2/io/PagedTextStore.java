@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.core.text.Rope;
+
+import org.gjt.sp.jedit.util.IntegerArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The text of a file, decoded a page at a time when it is read.
+ * <p>
+ * One indexing pass over the mapped file records the byte and char offset where each page of at
+ * most {@link #PAGE_CHARS} chars starts, the line ends and the line terminators. After that a page
+ * is decoded again only when it is read, and at most {@code maxCachedPages} decoded pages are kept
+ * on the heap (LRU). The pages have their line terminators replaced by \n like every other text
+ * the editor reads.
+ * <p>
+ * The file stays open as long as the store is reachable, so a save which renames a new file over
+ * the path doesn't change what the pages read. Writing into the file itself does, see
+ * {@link FileWriter}. Stateful encodings can't be decoded from the middle of the file, check
+ * {@link FileEncodingDetector#isRestartable(Charset)} first.
+ */
+public class PagedTextStore implements Rope.Pages {
+    public final static int PAGE_CHARS = 64 * 1024;
+    /**
+     * 一次映射的最大字节数，避免超过 MappedByteBuffer 的 int 寻址范围
+     */
+    private final static long MAP_WINDOW = 64L * 1024 * 1024;
+    private final static int DEFAULT_CACHED_PAGES = 16;
+
+    private final File file;
+    private final Charset charset;
+    private final FileChannel channel;
+    private final long byteLength;
+    private final LinkedHashMap<Integer, char[]> pages;
+    private final LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+    private final IntegerArray lineEndOffsets = new IntegerArray();
+    private long[] pageByteStarts;
+    /**
+     * 换行符处理之后的字符位置
+     */
+    private int[] pageCharStarts;
+    /**
+     * 前一页的最后一个字符是 \r，这一页开头的 \n 属于它
+     */
+    private boolean[] pageAfterCR;
+    private int pageCount;
+    private CharsetDecoder decoder;
+    private ByteBuffer pageBytes;
+    private CharBuffer pageChars;
+    /**
+     * 建索引时刚结束的一页最后一个字符是 \r
+     */
+    private boolean endsWithCR;
+
+    public PagedTextStore(File file, String encoding) throws IOException {
+        this(file, encoding, DEFAULT_CACHED_PAGES);
+    }
+
+    public PagedTextStore(File file, String encoding, final int maxCachedPages) throws IOException {
+        this.file = file;
+        this.charset = Charset.forName(encoding);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.pages = new LinkedHashMap<Integer, char[]>(maxCachedPages, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+                return size() > maxCachedPages;
+            }
+        };
+        try {
+            this.byteLength = channel.size();
+            buildIndex();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Decode the whole file once, without keeping the chars, and remember where every page starts.
+     */
+    private void buildIndex() throws IOException {
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 2, byteLength / PAGE_CHARS + 2);
+        pageByteStarts = new long[capacity];
+        pageCharStarts = new int[capacity];
+        pageAfterCR = new boolean[capacity];
+
+        decoder = newDecoder();
+        pageChars = CharBuffer.allocate(PAGE_CHARS);
+
+        long chars = 0;
+        long pos = 0;
+        addPage(0, 0, false);
+        while (pos < byteLength) {
+            long size = Math.min(MAP_WINDOW, byteLength - pos);
+            boolean last = pos + size == byteLength;
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+            for (;;) {
+                CoderResult result = decoder.decode(window, pageChars, last);
+                if (!result.isOverflow())
+                    break;
+                // 页已满，解码器停在一个完整字符的边界上
+                chars += endPage((int) chars);
+                addPage(pos + window.position(), chars, endsWithCR);
+            }
+            // 窗口末尾不完整的字符留到下一个窗口重新映射
+            pos += last ? size : window.position();
+        }
+        decoder.flush(pageChars);
+        chars += endPage((int) chars);
+        // 哨兵页：记录文件末尾，方便计算最后一页的范围
+        addPage(byteLength, chars, false);
+        pageCount--;
+        // 最后一行的结尾，和 FileReader 一样
+        lineEndOffsets.add((int) chars + 1);
+        pageBytes = ByteBuffer.allocate((int) Math.min(byteLength, PAGE_CHARS * 4L));
+    }
+
+    /**
+     * Normalize the page decoded into {@link #pageChars} and collect its line ends.
+     *
+     * @return the number of chars the page has after normalizing
+     */
+    private int endPage(int charStart) throws IOException {
+        int end = pageChars.position();
+        endsWithCR = end > 0 && pageChars.get(end - 1) == '\r';
+        int length = lineEndings.normalize(pageChars.array(), 0, pageChars.position());
+        FileReader.collectLineEnds(pageChars.array(), 0, length, charStart, lineEndOffsets);
+        pageChars.clear();
+        if (charStart + (long) length > Integer.MAX_VALUE - PAGE_CHARS)
+            throw new IOException("File too large to edit: " + file.getPath());
+        return length;
+    }
+
+    private void addPage(long byteStart, long charStart, boolean afterCR) {
+        if (pageCount + 1 >= pageByteStarts.length) {
+            int n = pageByteStarts.length * 2;
+            pageByteStarts = Arrays.copyOf(pageByteStarts, n);
+            pageCharStarts = Arrays.copyOf(pageCharStarts, n);
+            pageAfterCR = Arrays.copyOf(pageAfterCR, n);
+        }
+        pageByteStarts[pageCount] = byteStart;
+        pageCharStarts[pageCount] = (int) charStart;
+        pageAfterCR[pageCount] = afterCR;
+        pageCount++;
+    }
+
+    @Override
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    @Override
+    public int getPageLength(int page) {
+        return pageCharStarts[page + 1] - pageCharStarts[page];
+    }
+
+    @Override
+    public synchronized char[] getPage(int page) {
+        char[] chars = pages.get(page);
+        if (chars != null)
+            return chars;
+
+        long start = pageByteStarts[page];
+        long end = pageByteStarts[page + 1];
+        if (end - start > pageBytes.capacity())
+            pageBytes = ByteBuffer.allocate((int) (end - start));
+        pageBytes.clear();
+        pageBytes.limit((int) (end - start));
+        pageChars.clear();
+        try {
+            // 按位置读而不映射：文件被别的程序截短时读到的少，不会因为访问映射出错
+            int n = 0;
+            while (pageBytes.hasRemaining() && n >= 0) {
+                n = channel.read(pageBytes, start + pageBytes.position());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read " + file.getPath() + " at " + start, e);
+        }
+        pageBytes.flip();
+        boolean last = page == pageCount - 1;
+        decoder.reset();
+        decoder.decode(pageBytes, pageChars, last);
+        if (last)
+            decoder.flush(pageChars);
+
+        LineEnding.Normalizer normalizer = new LineEnding.Normalizer();
+        if (pageAfterCR[page])
+            normalizer.continueAfterCR();
+        int length = normalizer.normalize(pageChars.array(), 0, pageChars.position());
+        // 文件在打开后被改过的话长度可能不一样，保持建索引时的长度，重新加载时会读到新内容
+        chars = Arrays.copyOf(pageChars.array(), getPageLength(page));
+        if (length < chars.length)
+            Arrays.fill(chars, length, chars.length, '\uFFFD');
+        pages.put(page, chars);
+        return chars;
+    }
+
+    /**
+     * @return the text, sharing the pages of this store
+     */
+    public Rope getText() {
+        return Rope.paged(this);
+    }
+
+    /**
+     * @return the end offset of every line as {@link org.gjt.sp.jedit.LineManager} stores them
+     */
+    public IntegerArray getLineEndOffsets() {
+        return lineEndOffsets;
+    }
+
+    /**
+     * @return the line terminators the file had, the pages only have \n
+     */
+    public LineEnding.Normalizer getLineEndings() {
+        return lineEndings;
+    }
+
+    public int length() {
+        return pageCharStarts[pageCount];
+    }
+
+    public long getByteLength() {
+        return byteLength;
+    }
+
+    public String getEncoding() {
+        return charset.name();
+    }
+}
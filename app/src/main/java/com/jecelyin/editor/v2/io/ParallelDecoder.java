@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import org.gjt.sp.jedit.util.IntegerArray;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes a UTF-8 or single-byte encoded buffer on all cores.
+ * <p>
+ * The bytes are cut into chunks at character starts (never between \r and \n). For UTF-8 the
+ * chars of each chunk are counted by looking at the lead bytes only, single-byte charsets
+ * have one char per byte. With the counts known, every chunk is decoded straight into its own
+ * range of one char array, its line terminators are normalized to \n (see
+ * {@link LineEnding.Normalizer}) and its line ends are collected, so no chunk waits for another.
+ * Chunks that got shorter by dropping \r are moved together afterwards. Malformed input can make a chunk decode to a different number of chars
+ * than counted; {@link #decode} then returns null and the caller falls back to a sequential
+ * decoder.
+ * <p>
+ * For progressive loading, {@link #decodeInOrder} decodes the chunks into arrays of their own
+ * instead and hands each one to a {@link FileReader.ChunkListener} in file order as soon as it
+ * and the chunks before it are done. The first chunk is small so the first screen doesn't wait
+ * for a whole share of the file, and only a few chunks are decoded ahead of the listener.
+ */
+public class ParallelDecoder {
+    private final static int MIN_CHUNK_BYTES = 512 * 1024;
+    /**
+     * 渐进加载时第一块的大小，够显示第一屏
+     */
+    private final static int FIRST_CHUNK_BYTES = 64 * 1024;
+    private static ForkJoinPool pool;
+
+    private final ByteBuffer bytes;
+    private final Charset charset;
+    private final boolean utf8;
+    private final boolean collectLineEnds;
+    private int[] byteStarts;
+    private int[] charStarts;
+    private IntegerArray[] chunkLineEnds;
+    private LineEnding.Normalizer[] chunkLineEndings;
+    /**
+     * 每块换行符统一后的字符数
+     */
+    private int[] chunkLengths;
+    private char[] text;
+    private volatile boolean mismatch;
+
+    public static class Result {
+        /**
+         * The decoded text, followed by <code>extraCapacity</code> unused chars
+         */
+        public final char[] text;
+        public final int length;
+        /**
+         * The line terminators the text had before they were all replaced by \n
+         */
+        public final LineEnding.Normalizer lineEndings;
+        /**
+         * See {@link FileReader#collectLineEnds}; null if they weren't asked for
+         */
+        public final IntegerArray lineEnds;
+
+        Result(char[] text, int length, LineEnding.Normalizer lineEndings, IntegerArray lineEnds) {
+            this.text = text;
+            this.length = length;
+            this.lineEndings = lineEndings;
+            this.lineEnds = lineEnds;
+        }
+    }
+
+    private ParallelDecoder(ByteBuffer bytes, Charset charset, boolean collectLineEnds) {
+        this.bytes = bytes;
+        this.charset = charset;
+        this.utf8 = "UTF-8".equals(charset.name());
+        this.collectLineEnds = collectLineEnds;
+    }
+
+    /**
+     * @return true for UTF-8 and charsets with one char per byte
+     */
+    public static boolean isSupported(Charset charset) {
+        if ("UTF-8".equals(charset.name()))
+            return true;
+        try {
+            return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1f
+                    && charset.newDecoder().maxCharsPerByte() == 1f;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
+    /**
+     * @param bytes           the whole input, from position to limit
+     * @param extraCapacity   unused chars to leave at the end of the text array (the editor's gap)
+     * @param collectLineEnds also build the line end table
+     * @return null if the input isn't valid in this charset
+     */
+    public static Result decode(ByteBuffer bytes, Charset charset, int extraCapacity, boolean collectLineEnds) {
+        return new ParallelDecoder(bytes.slice(), charset, collectLineEnds).decode(extraCapacity);
+    }
+
+    /**
+     * Decode the whole input and pass it to <code>listener</code> chunk by chunk, in order, on the
+     * calling thread. Malformed input is replaced like a sequential decoder does.
+     *
+     * @return the line terminators the text had before they were all replaced by \n
+     */
+    public static LineEnding.Normalizer decodeInOrder(ByteBuffer bytes, Charset charset,
+                                                      FileReader.ChunkListener listener) throws IOException {
+        return new ParallelDecoder(bytes.slice(), charset, false).decodeInOrder(listener);
+    }
+
+    private LineEnding.Normalizer decodeInOrder(FileReader.ChunkListener listener) throws IOException {
+        ForkJoinPool pool = getPool();
+        split(pool.getParallelism(), FIRST_CHUNK_BYTES);
+        int chunks = byteStarts.length - 1;
+        long size = Math.max(1, bytes.remaining());
+        // 解码在监听器前面最多这么多块，内存里的文本有上限
+        int window = pool.getParallelism() * 2;
+        ArrayDeque<Future<Chunk>> running = new ArrayDeque<>();
+        LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        int next = 0;
+        try {
+            for (int i = 0; i < chunks; i++) {
+                while (next < chunks && next < i + window) {
+                    running.add(pool.submit(new ChunkDecoder(next++)));
+                }
+                Chunk chunk = running.poll().get();
+                lineEndings.add(chunk.lineEndings);
+                listener.onChunkRead(chunk.text, chunk.length, (int) (byteStarts[i + 1] * 100L / size));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Chunk> future : running) {
+                future.cancel(true);
+            }
+        }
+        return lineEndings;
+    }
+
+    private Result decode(int extraCapacity) {
+        ForkJoinPool pool = getPool();
+        split(pool.getParallelism(), 0);
+        int chunks = byteStarts.length - 1;
+        charStarts = new int[chunks + 1];
+        chunkLengths = new int[chunks];
+        chunkLineEndings = new LineEnding.Normalizer[chunks];
+        if (collectLineEnds)
+            chunkLineEnds = new IntegerArray[chunks];
+
+        pool.invoke(new ChunkTask(0, chunks, ChunkTask.COUNT));
+        // 每块的字符数转成起始位置
+        long length = 0;
+        for (int i = 0; i < chunks; i++) {
+            int count = charStarts[i];
+            charStarts[i] = (int) length;
+            length += count;
+        }
+        if (length + extraCapacity > Integer.MAX_VALUE - 8)
+            return null;
+        charStarts[chunks] = (int) length;
+
+        text = new char[(int) length + extraCapacity];
+        pool.invoke(new ChunkTask(0, chunks, ChunkTask.DECODE));
+        if (mismatch)
+            return null;
+
+        // 去掉 \r 后块之间留下的空隙合并掉，行尾位置加上块的新起点
+        LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        IntegerArray lineEnds = null;
+        if (collectLineEnds) {
+            int total = 0;
+            for (IntegerArray a : chunkLineEnds)
+                total += a.getSize();
+            // 多留一个位置给调用者加上结尾
+            lineEnds = new IntegerArray(total + 1);
+        }
+        int dest = 0;
+        for (int i = 0; i < chunks; i++) {
+            int n = chunkLengths[i];
+            if (dest != charStarts[i])
+                System.arraycopy(text, charStarts[i], text, dest, n);
+            lineEndings.add(chunkLineEndings[i]);
+            if (lineEnds != null) {
+                IntegerArray a = chunkLineEnds[i];
+                int[] src = a.getArray();
+                for (int k = 0, size = a.getSize(); k < size; k++)
+                    lineEnds.add(src[k] + dest);
+            }
+            dest += n;
+        }
+        return new Result(text, dest, lineEndings, lineEnds);
+    }
+
+    /**
+     * 每个核心分几块，块太小时合并
+     *
+     * @param firstChunk 大于 0 时第一块单独切成这么大，剩下的再平分
+     */
+    private void split(int parallelism, int firstChunk) {
+        int size = bytes.remaining();
+        int first = firstChunk > 0 && size > firstChunk + MIN_CHUNK_BYTES ? 1 : 0;
+        int rest = size - first * firstChunk;
+        int chunks = first + Math.max(1, Math.min(parallelism * 4, rest / MIN_CHUNK_BYTES));
+        byteStarts = new int[chunks + 1];
+        int last = 0;
+        for (int i = 1; i < chunks; i++) {
+            int pos = Math.max(last, first * firstChunk + (int) ((long) rest * (i - first) / (chunks - first)));
+            if (utf8) {
+                // 跳过续字节，落到字符的第一个字节上
+                for (int n = 0; n < 3 && pos < size && (bytes.get(pos) & 0xC0) == 0x80; n++)
+                    pos++;
+            }
+            if (pos > 0 && pos < size && bytes.get(pos) == '\n' && bytes.get(pos - 1) == '\r')
+                pos++;
+            byteStarts[i] = pos;
+            last = pos;
+        }
+        byteStarts[chunks] = size;
+    }
+
+    private int countChars(int start, int end) {
+        if (!utf8)
+            return end - start;
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            int b = bytes.get(i);
+            if ((b & 0xC0) != 0x80)
+                count++;
+            // 四字节序列解码成一对代理字符
+            if ((b & 0xF8) == 0xF0)
+                count++;
+        }
+        return count;
+    }
+
+    private void decodeChunk(int chunk) {
+        int start = charStarts[chunk];
+        int count = charStarts[chunk + 1] - start;
+        ByteBuffer in = bytes.duplicate();
+        in.limit(byteStarts[chunk + 1]);
+        in.position(byteStarts[chunk]);
+        CharBuffer out = CharBuffer.wrap(text, start, count);
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CoderResult result = decoder.decode(in, out, true);
+        if (!result.isOverflow())
+            result = decoder.flush(out);
+        if (result.isOverflow() || in.hasRemaining() || out.hasRemaining()) {
+            mismatch = true;
+            return;
+        }
+        // 块不会从 \r\n 中间切开，每块可以单独处理
+        LineEnding.Normalizer lineEndings = new LineEnding.Normalizer();
+        count = lineEndings.normalize(text, start, count);
+        chunkLineEndings[chunk] = lineEndings;
+        chunkLengths[chunk] = count;
+        if (collectLineEnds) {
+            // 位置先相对块的开头，合并时再加上块的起点
+            IntegerArray lineEnds = new IntegerArray(Math.max(16, count / 64));
+            FileReader.collectLineEnds(text, start, count, 0, lineEnds);
+            chunkLineEnds[chunk] = lineEnds;
+        }
+    }
+
+    private static class Chunk {
+        char[] text;
+        int length;
+        LineEnding.Normalizer lineEndings;
+    }
+
+    /**
+     * 渐进加载时解码一块到它自己的数组里，字符数不用事先数
+     */
+    private class ChunkDecoder implements Callable<Chunk> {
+        private final int chunk;
+
+        ChunkDecoder(int chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public Chunk call() throws CharacterCodingException {
+            ByteBuffer in = bytes.duplicate();
+            in.limit(byteStarts[chunk + 1]);
+            in.position(byteStarts[chunk]);
+            CharBuffer out = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                    .decode(in);
+            Chunk result = new Chunk();
+            result.lineEndings = new LineEnding.Normalizer();
+            // decode() 返回新分配的数组，从 0 开始
+            result.text = out.array();
+            // 块不会从 \r\n 中间切开，每块可以单独处理
+            result.length = result.lineEndings.normalize(result.text, 0, out.limit());
+            return result;
+        }
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        final static int COUNT = 0;
+        final static int DECODE = 1;
+        private final int from;
+        private final int to;
+        private final int step;
+
+        ChunkTask(int from, int to, int step) {
+            this.from = from;
+            this.to = to;
+            this.step = step;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(from, mid, step), new ChunkTask(mid, to, step));
+                return;
+            }
+            if (from >= to || mismatch)
+                return;
+            if (step == COUNT) {
+                charStarts[from] = countChars(byteStarts[from], byteStarts[from + 1]);
+            } else {
+                decodeChunk(from);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.jecelyin.android.file_explorer.util.RootUtils;
+import com.jecelyin.common.utils.DLog;
+import com.stericson.RootShell.RootShell;
+import com.stericson.RootShell.execution.Command;
+import com.stericson.RootShell.execution.Shell;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams to files only root can access, without copying them to the app storage.
+ * <p>
+ * The root shell that RootShell keeps open runs <code>cat</code> (reading) or
+ * <code>cat | dd</code> (writing) against a named pipe in the cache dir, and the app reads or
+ * writes the other end of the pipe. The bytes go straight from the root process to the
+ * decoder (or from the encoder to the root process); nothing is stored on disk. The command's
+ * exit code is checked when the stream is closed.
+ */
+public class RootStreams {
+    private final static AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * @return size of the file in bytes, or -1 if it can't be found out
+     */
+    public static long length(File file) {
+        final long[] result = {-1};
+        Command command = new Command(0, false, "stat -c %s " + quote(file.getPath())) {
+            @Override
+            public void commandOutput(int id, String line) {
+                try {
+                    result[0] = Long.parseLong(line.trim());
+                } catch (NumberFormatException e) {
+                    DLog.d("stat: " + line);
+                }
+                super.commandOutput(id, line);
+            }
+        };
+        try {
+            Shell shell = RootShell.getShell(true);
+            shell.add(command);
+            RootUtils.commandWait(shell, command);
+        } catch (Exception e) {
+            DLog.e(e);
+        }
+        return result[0];
+    }
+
+    public static InputStream openInputStream(File file) throws IOException {
+        File fifo = makeFifo();
+        // shell 先打开管道再执行 cat，cat 失败时读取方会立即读到结尾
+        Command command = run("cat " + quote(file.getPath()) + " > " + quote(fifo.getPath()), fifo);
+        try {
+            return new RootInputStream(new FileInputStream(fifo), command, fifo, file);
+        } catch (IOException e) {
+            fifo.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * The file is truncated and rewritten in place, so owner, mode and SELinux label stay.
+     */
+    public static OutputStream openOutputStream(File file) throws IOException {
+        File fifo = makeFifo();
+        // 用管道连接 dd：目标文件打不开时 cat 也会打开管道，写入方不会一直阻塞
+        Command command = run("cat " + quote(fifo.getPath()) + " | dd of=" + quote(file.getPath()) + " bs=65536 2>/dev/null", fifo);
+        try {
+            return new RootOutputStream(new FileOutputStream(fifo), command, fifo, file);
+        } catch (IOException e) {
+            fifo.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy a root file inside the root shell, e.g. to make a backup, the data doesn't go
+     * through the app.
+     */
+    public static boolean copy(File src, File dest) {
+        Command command = new Command(0, false, "cp -p " + quote(src.getPath()) + " " + quote(dest.getPath()));
+        try {
+            Shell shell = RootShell.getShell(true);
+            shell.add(command);
+            RootUtils.commandWait(shell, command);
+            return command.getExitCode() == 0;
+        } catch (Exception e) {
+            DLog.e(e);
+            return false;
+        }
+    }
+
+    private static File makeFifo() throws IOException {
+        File fifo = new File(System.getProperty("java.io.tmpdir"), ".920pipe." + android.os.Process.myPid() + "." + sequence.incrementAndGet());
+        fifo.delete();
+        try {
+            Os.mkfifo(fifo.getPath(), 0600);
+        } catch (ErrnoException e) {
+            throw new IOException("Can't create pipe " + fifo + ": " + e.getMessage());
+        }
+        return fifo;
+    }
+
+    /**
+     * 传输时间和文件大小有关，不设超时
+     */
+    private static Command run(String cmd, File fifo) throws IOException {
+        Command command = new Command(0, 0, cmd);
+        try {
+            RootShell.getShell(true).add(command);
+        } catch (Exception e) {
+            fifo.delete();
+            throw new IOException("Can't run root command: " + e.getMessage());
+        }
+        return command;
+    }
+
+    private static void finish(Command command, File fifo, File file, boolean check) throws IOException {
+        try {
+            RootUtils.commandWait(RootShell.getShell(true), command);
+        } catch (Exception e) {
+            throw new IOException("Root command failed: " + e.getMessage());
+        } finally {
+            fifo.delete();
+        }
+        if (check && command.getExitCode() != 0)
+            throw new IOException("Root I/O on " + file.getPath() + " failed with exit code " + command.getExitCode());
+    }
+
+    private static String quote(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '"' || c == '\\' || c == '$' || c == '`')
+                sb.append('\\');
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    private static class RootInputStream extends FilterInputStream {
+        private final Command command;
+        private final File fifo;
+        private final File file;
+        private boolean eof;
+        private boolean closed;
+
+        RootInputStream(InputStream in, Command command, File fifo, File file) {
+            super(in);
+            this.command = command;
+            this.fifo = fifo;
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                eof = true;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n == -1)
+                eof = true;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            super.close();
+            // 没读完就关闭时 cat 会因为 SIGPIPE 退出，不算错误
+            finish(command, fifo, file, eof);
+        }
+    }
+
+    private static class RootOutputStream extends FilterOutputStream {
+        private final Command command;
+        private final File fifo;
+        private final File file;
+        private boolean closed;
+
+        RootOutputStream(OutputStream out, Command command, File fifo, File file) {
+            super(out);
+            this.command = command;
+            this.fifo = fifo;
+            this.file = file;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                finish(command, fifo, file, true);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The undecoded bytes of a file, kept while the file is open so it can be decoded again with
+ * another encoding without reading it from disk. The bytes are collected while the file is
+ * read the first time; files bigger than the memory budget aren't kept at all.
+ */
+public class SourceBytes {
+    /**
+     * 最多缓存的字节数，超过后放弃缓存
+     */
+    public final static int MAX_BUDGET = 8 * 1024 * 1024;
+
+    private final File file;
+    private final int budget;
+    private long lastModified;
+    private byte[] data;
+    private int count;
+    private boolean overflow;
+    private boolean complete;
+
+    public SourceBytes(File file) {
+        this(file, (int) Math.min(MAX_BUDGET, Runtime.getRuntime().maxMemory() / 16));
+    }
+
+    public SourceBytes(File file, int budget) {
+        this.file = file;
+        this.budget = budget;
+        this.data = new byte[0];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int length() {
+        return count;
+    }
+
+    /**
+     * Wrap the stream the file is read from; everything read from it is kept.
+     *
+     * @param expectedLength size of the file, or -1 if it isn't known
+     */
+    public InputStream capture(InputStream in, long expectedLength) {
+        // 读之前记下修改时间，读的过程中被修改的话缓存就不会被使用
+        lastModified = file.lastModified();
+        count = 0;
+        complete = false;
+        // 拿不到修改时间（没有权限 stat 的 root 文件是 0）就无法知道文件有没有变，不缓存
+        overflow = lastModified == 0 || expectedLength > budget;
+        if (!overflow && expectedLength > 0)
+            data = new byte[(int) expectedLength];
+        return new CaptureInputStream(in);
+    }
+
+    /**
+     * Read the whole file into the cache, for files that were decoded without a stream.
+     */
+    public void captureAll(InputStream in, long expectedLength) throws IOException {
+        InputStream stream = capture(in, expectedLength);
+        byte[] buf = new byte[16 * 1024];
+        while (!overflow && stream.read(buf) != -1) {
+            //读到结尾或者超出预算
+        }
+        finish();
+    }
+
+    /**
+     * The whole file was read through {@link #capture(InputStream, long)}.
+     */
+    public void finish() {
+        if (overflow) {
+            data = new byte[0];
+            count = 0;
+            return;
+        }
+        complete = true;
+        if (data.length != count)
+            data = Arrays.copyOf(data, count);
+    }
+
+    /**
+     * @return true if the cache holds the whole file as it is on disk now; never for files whose
+     * modification time can't be read, they are read again
+     */
+    public boolean isValid() {
+        return complete && lastModified != 0 && file.lastModified() == lastModified
+                && file.length() == count;
+    }
+
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data, 0, count);
+    }
+
+    /**
+     * @return a copy of the first <code>max</code> bytes
+     */
+    public byte[] getHead(int max) {
+        return Arrays.copyOf(data, Math.min(max, count));
+    }
+
+    private void append(byte[] buffer, int offset, int length) {
+        if (overflow)
+            return;
+        if (count + length > budget) {
+            overflow = true;
+            data = new byte[0];
+            count = 0;
+            return;
+        }
+        if (count + length > data.length)
+            data = Arrays.copyOf(data, Math.min(budget, Math.max(count + length, data.length * 2)));
+        System.arraycopy(buffer, offset, data, count, length);
+        count += length;
+    }
+
+    private class CaptureInputStream extends FilterInputStream {
+        private final byte[] single = new byte[1];
+
+        CaptureInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                single[0] = (byte) b;
+                append(single, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+                append(buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // 跳过的字节没有缓存，整个缓存作废
+            overflow = true;
+            return super.skip(n);
+        }
+    }
+}
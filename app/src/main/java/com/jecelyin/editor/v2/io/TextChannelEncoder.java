@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.io;
+
+import android.core.text.SpannableStringBuilder;
+import android.core.text.TextSnapshot;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes text straight into a channel.
+ * <p>
+ * For a {@link SpannableStringBuilder} the two regions around the gap are wrapped as
+ * {@link CharBuffer}s, so the chars go from the gap buffer through the encoder into one
+ * reused direct {@link ByteBuffer} and then to the channel, without intermediate copies.
+ * Other sequences are copied through a small char buffer.
+ * <p>
+ * The text only contains \n; any other {@link LineEnding} is put back while encoding.
+ */
+public class TextChannelEncoder {
+    private final static int BYTE_BUFFER_SIZE = 64 * 1024;
+    private final static int CHAR_BUFFER_SIZE = 16 * 1024;
+
+    private final static ThreadLocal<ByteBuffer> byteBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BYTE_BUFFER_SIZE);
+        }
+    };
+
+    private final CharsetEncoder encoder;
+    private final WritableByteChannel channel;
+    private final ByteBuffer out;
+    /**
+     * null 表示保持 \n
+     */
+    private final CharBuffer lineSeparator;
+    /**
+     * 两段之间被切开的代理对
+     */
+    private char pendingHighSurrogate;
+    private boolean hasPending;
+    private long bytesWritten;
+
+    public TextChannelEncoder(WritableByteChannel channel, String encoding) {
+        this(channel, encoding, LineEnding.LF);
+    }
+
+    public TextChannelEncoder(WritableByteChannel channel, String encoding, LineEnding lineEnding) {
+        this.channel = channel;
+        this.lineSeparator = lineEnding == LineEnding.LF ? null : CharBuffer.wrap(lineEnding.getChars());
+        this.encoder = Charset.forName(encoding).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.out = byteBuffer.get();
+        out.clear();
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    public static long write(CharSequence text, String encoding, WritableByteChannel channel) throws IOException {
+        return write(text, encoding, LineEnding.LF, channel);
+    }
+
+    /**
+     * @param lineEnding written for every \n of <code>text</code>
+     * @return number of bytes written
+     */
+    public static long write(CharSequence text, String encoding, LineEnding lineEnding, WritableByteChannel channel) throws IOException {
+        TextChannelEncoder encoder = new TextChannelEncoder(channel, encoding, lineEnding);
+        CharBuffer[] regions = null;
+        if (text instanceof TextSnapshot) {
+            regions = ((TextSnapshot) text).getCharBuffers();
+        } else if (text instanceof SpannableStringBuilder) {
+            regions = ((SpannableStringBuilder) text).getCharBuffers();
+        }
+        if (regions != null) {
+            for (int i = 0; i < regions.length; i++) {
+                encoder.encode(regions[i]);
+                // 从文件分页读出的字符写完就可以回收，不会整个文件都留在内存里
+                regions[i] = null;
+            }
+        } else {
+            char[] buf = new char[CHAR_BUFFER_SIZE];
+            CharBuffer chunk = CharBuffer.wrap(buf);
+            int size = text.length();
+            for (int start = 0; start < size; start += CHAR_BUFFER_SIZE) {
+                int end = Math.min(size, start + CHAR_BUFFER_SIZE);
+                TextUtils.getChars(text, start, end, buf, 0);
+                chunk.clear();
+                chunk.limit(end - start);
+                encoder.encode(chunk);
+            }
+        }
+        return encoder.finish();
+    }
+
+    public void encode(CharBuffer in) throws IOException {
+        if (lineSeparator == null) {
+            encodeRun(in);
+            return;
+        }
+        int end = in.limit();
+        for (int i = in.position(); i < end; i++) {
+            if (in.get(i) != '\n')
+                continue;
+            in.limit(i);
+            encodeRun(in);
+            in.limit(end);
+            in.position(i + 1);
+            lineSeparator.rewind();
+            encodeRun(lineSeparator);
+        }
+        encodeRun(in);
+    }
+
+    private void encodeRun(CharBuffer in) throws IOException {
+        if (hasPending && in.hasRemaining()) {
+            hasPending = false;
+            CharBuffer pair = CharBuffer.wrap(new char[]{pendingHighSurrogate, in.get()});
+            encodeRun(pair);
+        }
+        for (;;) {
+            CoderResult result = encoder.encode(in, out, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        if (in.hasRemaining()) {
+            // 只有末尾的高代理字符会剩下，和下一段的第一个字符一起编码
+            pendingHighSurrogate = in.get();
+            hasPending = true;
+        }
+    }
+
+    /**
+     * Flush the encoder and the byte buffer.
+     *
+     * @return total number of bytes written
+     */
+    public long finish() throws IOException {
+        CharBuffer tail = hasPending ? CharBuffer.wrap(new char[]{pendingHighSurrogate}) : CharBuffer.allocate(0);
+        hasPending = false;
+        while (encoder.encode(tail, out, true).isOverflow()) {
+            drain();
+        }
+        while (encoder.flush(out).isOverflow()) {
+            drain();
+        }
+        drain();
+        return bytesWritten;
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            bytesWritten += channel.write(out);
+        }
+        out.clear();
+    }
+}
@@ -25,6 +25,7 @@ import com.jecelyin.common.utils.DLog;
 import com.jecelyin.common.utils.UIUtils;
 import com.jecelyin.editor.v2.Pref;
 import com.jecelyin.editor.v2.common.SaveListener;
+import com.jecelyin.editor.v2.io.Compression;
 import com.jecelyin.editor.v2.io.FileWriter;
 import com.jecelyin.editor.v2.ui.editor.Document;
 import com.jecelyin.editor.v2.ui.editor.EditorDelegate;
@@ -60,7 +61,8 @@ public class SaveTask {
         EditorDelegate editorDelegate = editorDelegateWR.get();
         if (document == null || editorDelegate == null)
             return;
-        if (!document.isChanged()) {
+        //读取失败的文档不能覆盖文件
+        if (!document.isChanged() || document.isIncomplete()) {
             return;
         }
         this.isCluster = isCluster;
@@ -69,29 +71,31 @@ public class SaveTask {
             editorDelegate.startSaveFileSelectorActivity();
             return;
         }
-        if (document.isRoot()) {
-            saveTo(document.getRootFile(), file, document.getEncoding(), listener);
-        } else {
-            saveTo(file, null, document.getEncoding(), listener);
-        }
+        saveTo(file, document.isRoot(), document.getEncoding(), document.getCompression(), listener);
 
     }
 
+    /**
+     * 另存为时按新文件名决定是否压缩
+     */
     public void saveTo(final File file, final String encoding) {
-        saveTo(file, null, encoding, null);
+        saveTo(file, false, encoding, Compression.forFileName(file.getName()), null);
     }
 
     /**
-     * @param rootFile 要注意这里是否ROOT处理
-     * @param orgiFile 如果是Root处理，保存成功后要回写到原始文件
+     * @param root 没有写权限，通过 root shell 写入
      * @param encoding
+     * @param compression 原来是压缩文件时保存后还是压缩文件
      * @param listener
      */
-    private void saveTo(final File rootFile, final File orgiFile, final String encoding, final SaveListener listener) {
-        if (editorDelegateWR.get() == null || contextWR.get() == null)
+    private void saveTo(final File file, final boolean root, final String encoding, final Compression compression, final SaveListener listener) {
+        if (editorDelegateWR.get() == null || contextWR.get() == null || documentWR.get() == null)
             return;
         writing = true;
-        FileWriter fileWriter = new FileWriter(rootFile, orgiFile, encoding, Pref.getInstance(contextWR.get()).isKeepBackupFile());
+        //后台写文件时可以继续编辑
+        final CharSequence text = editorDelegateWR.get().getTextSnapshot();
+        FileWriter fileWriter = new FileWriter(file, root, encoding, documentWR.get().getLineEnding(), compression
+                , Pref.getInstance(contextWR.get()).isKeepBackupFile());
         fileWriter.setFileWriteListener(new FileWriter.FileWriteListener() {
             @Override
             public void onSuccess() {
@@ -100,7 +104,7 @@ public class SaveTask {
                 if (documentWR.get() == null || contextWR.get() == null || editorDelegateWR.get() == null) {
                     return;
                 }
-                documentWR.get().onSaveSuccess(orgiFile != null ? orgiFile : rootFile, encoding);
+                documentWR.get().onSaveSuccess(file, encoding, compression, text);
                 if (!isCluster) {
                     UIUtils.toast(contextWR.get(), R.string.save_success);
                 } else {
@@ -120,6 +124,6 @@ public class SaveTask {
                 }
             }
         });
-        fileWriter.write(editorDelegateWR.get().getEditableText());
+        fileWriter.write(text);
     }
 }
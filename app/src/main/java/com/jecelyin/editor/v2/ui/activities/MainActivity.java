@@ -459,7 +459,8 @@ public class MainActivity extends BaseActivity
                 rfm.show(getContext());
                 break;
             case R.id.m_wrap:
-                new WrapCharDialog(this).show();
+                EditorDelegate current = getCurrentEditorDelegate();
+                new WrapCharDialog(this, current == null ? null : current.getLineEnding()).show();
                 break;
             case R.id.m_highlight:
                 new LangListDialog(this).show();
@@ -505,7 +506,8 @@ public class MainActivity extends BaseActivity
                 doClusterCommand(new Command(Command.CommandEnum.READONLY_MODE));
                 break;
             case R.id.m_encoding:
-                new CharsetsDialog(this).show();
+                EditorDelegate delegate = getCurrentEditorDelegate();
+                new CharsetsDialog(this, delegate == null ? null : delegate.getRawHead(CharsetsDialog.PREVIEW_BYTES)).show();
                 break;
             case R.id.m_color:
                 if (ensureNotReadOnly()) {
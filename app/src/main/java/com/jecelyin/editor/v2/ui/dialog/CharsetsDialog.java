@@ -26,9 +26,14 @@ import android.widget.ListView;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.duy.text.editor.R;
+import com.jecelyin.common.utils.DLog;
 import com.jecelyin.editor.v2.common.Command;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.SortedMap;
@@ -37,10 +42,21 @@ import java.util.SortedMap;
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
 public class CharsetsDialog extends AbstractDialog {
+    /**
+     * 预览用的字节数，大约一屏
+     */
+    public final static int PREVIEW_BYTES = 2048;
+    private final static int PREVIEW_LINES = 20;
     private String[] names;
+    private final byte[] preview;
 
-    public CharsetsDialog(Context context) {
+    /**
+     * @param preview the first bytes of the file, to show how it looks with the chosen
+     *                encoding before reopening it; null to reopen right away
+     */
+    public CharsetsDialog(Context context, byte[] preview) {
         super(context);
+        this.preview = preview;
 
         initCharsets();
     }
@@ -77,9 +93,12 @@ public class CharsetsDialog extends AbstractDialog {
 
                     @Override
                     public void onSelection(MaterialDialog materialDialog, View view, int i, CharSequence charSequence) {
-                        Command command = new Command(Command.CommandEnum.RELOAD_WITH_ENCODING);
-                        command.object = names[i];
-                        getMainActivity().doCommand(command);
+                        String text = decodePreview(names[i]);
+                        if (text == null) {
+                            reopen(names[i]);
+                        } else {
+                            showPreview(names[i], text);
+                        }
                     }
                 })
                 .positiveText(R.string.cancel)
@@ -96,4 +115,65 @@ public class CharsetsDialog extends AbstractDialog {
         listView.setDividerHeight(context.getResources().getDimensionPixelSize(R.dimen.divider_height));
 
     }
+
+    private void reopen(String name) {
+        Command command = new Command(Command.CommandEnum.RELOAD_WITH_ENCODING);
+        command.object = name;
+        getMainActivity().doCommand(command);
+    }
+
+    /**
+     * 确认之前先看看第一屏用这个编码解码的效果，不合适就回到列表继续选
+     */
+    private void showPreview(final String name, String text) {
+        MaterialDialog dlg = getDialogBuilder()
+                .title(name)
+                .content(text)
+                .positiveText(R.string.reopen_with_encoding)
+                .negativeText(R.string.cancel)
+                .callback(new MaterialDialog.ButtonCallback() {
+                    @Override
+                    public void onPositive(MaterialDialog dialog) {
+                        reopen(name);
+                    }
+
+                    @Override
+                    public void onNegative(MaterialDialog dialog) {
+                        show();
+                    }
+                })
+                .show();
+
+        handleDialog(dlg);
+    }
+
+    private String decodePreview(String name) {
+        if (preview == null)
+            return null;
+        try {
+            CharsetDecoder decoder = Charset.forName(name).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            // 每个字节最多解码出一个字符；末尾不完整的字符留着不解码
+            CharBuffer out = CharBuffer.allocate(preview.length + 1);
+            decoder.decode(ByteBuffer.wrap(preview), out, false);
+            out.flip();
+            String text = out.toString();
+            if (text.startsWith("\uFEFF"))
+                text = text.substring(1);
+            int end = -1;
+            for (int i = 0; i < PREVIEW_LINES; i++) {
+                int next = text.indexOf('\n', end + 1);
+                if (next < 0) {
+                    end = -1;
+                    break;
+                }
+                end = next;
+            }
+            return end < 0 ? text : text.substring(0, end);
+        } catch (Exception e) {
+            DLog.e(e);
+            return null;
+        }
+    }
 }
@@ -19,13 +19,17 @@
 package com.jecelyin.editor.v2.ui.dialog;
 
 import android.content.Context;
+import android.core.text.SpannableStringBuilder;
 import android.core.widget.EditAreaView;
+import android.text.Editable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.TextView;
 
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.duy.text.editor.R;
+import com.jecelyin.common.task.JecAsyncTask;
+import com.jecelyin.common.task.TaskResult;
 import com.jecelyin.editor.v2.ui.editor.Document;
 
 import java.util.regex.Matcher;
@@ -57,16 +61,29 @@ public class DocumentInfoDialog extends AbstractDialog {
 
     @Override
     public void show() {
-        Matcher matcher = Pattern.compile("[a-zA-Z]+").matcher(editAreaView.getText());
-        int wordCount = 0;
-        while (matcher.find())
-            wordCount++;
+        Editable text = editAreaView.getText();
+        final CharSequence snapshot = text instanceof SpannableStringBuilder ? ((SpannableStringBuilder) text).getSnapshot() : text.toString();
 
         View view = LayoutInflater.from(context).inflate(R.layout.document_info, null);
-        ViewHolder viewHolder = new ViewHolder(view);
+        final ViewHolder viewHolder = new ViewHolder(view);
         viewHolder.mPathTextView.setText(context.getString(R.string.path_x, path == null ? "" : path));
-        viewHolder.mCharCountTextView.setText(context.getString(R.string.char_x, editAreaView.getText().length()));
-        viewHolder.mWordCountTextView.setText(context.getString(R.string.word_x, wordCount));
+        viewHolder.mCharCountTextView.setText(context.getString(R.string.char_x, snapshot.length()));
+        //大文件数单词要一会，在后台数完再显示
+        new JecAsyncTask<Void, Void, Integer>() {
+            @Override
+            protected void onRun(TaskResult<Integer> taskResult, Void... params) throws Exception {
+                Matcher matcher = Pattern.compile("[a-zA-Z]+").matcher(snapshot);
+                int wordCount = 0;
+                while (matcher.find())
+                    wordCount++;
+                taskResult.setResult(wordCount);
+            }
+
+            @Override
+            protected void onSuccess(Integer wordCount) {
+                viewHolder.mWordCountTextView.setText(context.getString(R.string.word_x, wordCount));
+            }
+        }.execute();
         viewHolder.mEncodingTextView.setText(context.getString(R.string.encoding_x, document.getEncoding()));
         viewHolder.mLineCountTextView.setText(context.getString(R.string.line_number_x, document.getLineNumber()));
 
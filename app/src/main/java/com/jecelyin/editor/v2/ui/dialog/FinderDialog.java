@@ -248,7 +248,7 @@ public class FinderDialog extends AbstractDialog implements DrawClickableEditTex
 
     private void findNext(final ExtGrep grep, final String replaceText) {
         grep.grepText(ExtGrep.GrepDirect.NEXT,
-                fragment.getEditableText(),
+                fragment.getTextSnapshot(),
                 fragment.getCursorOffset(),
                 new TaskListener<MatcherResult>() {
                     @Override
@@ -372,7 +372,7 @@ public class FinderDialog extends AbstractDialog implements DrawClickableEditTex
                     }
                     break;
                 case ID_REPLACE_ALL:
-                    grep.replaceAll(fragment.getEditableText(), replaceText);
+                    grep.replaceAll(fragment.getContext(), fragment.getEditableText(), replaceText);
                     break;
                 default:
                     return false;
@@ -383,7 +383,7 @@ public class FinderDialog extends AbstractDialog implements DrawClickableEditTex
         private void doFind(int id) {
             id = id == ID_FIND_PREV ? ID_FIND_PREV : ID_FIND_NEXT;
             grep.grepText(id == ID_FIND_PREV ? ExtGrep.GrepDirect.PREV : ExtGrep.GrepDirect.NEXT,
-                    fragment.getEditableText(),
+                    fragment.getTextSnapshot(),
                     fragment.getCursorOffset(),
                     new TaskListener<MatcherResult>() {
                         @Override
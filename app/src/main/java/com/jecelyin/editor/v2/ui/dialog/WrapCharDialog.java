@@ -24,13 +24,23 @@ import android.view.View;
 import com.afollestad.materialdialogs.MaterialDialog;
 import com.duy.text.editor.R;
 import com.jecelyin.editor.v2.common.Command;
+import com.jecelyin.editor.v2.io.LineEnding;
+
+import java.util.Arrays;
 
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
 public class WrapCharDialog extends AbstractDialog {
-    public WrapCharDialog(Context context) {
+    private final static String[] CHARS = new String[]{"\n", "\r\n", "\r"};
+    private final LineEnding current;
+
+    /**
+     * @param current the document's line terminator, preselected; may be null
+     */
+    public WrapCharDialog(Context context, LineEnding current) {
         super(context);
+        this.current = current;
     }
 
     @Override
@@ -39,7 +49,7 @@ public class WrapCharDialog extends AbstractDialog {
                 .title(R.string.convert_wrap_char)
                 .positiveText(R.string.ok)
                 .negativeText(R.string.cancel)
-                .itemsCallbackSingleChoice(-1, new MaterialDialog.ListCallbackSingleChoice() {
+                .itemsCallbackSingleChoice(current == null ? -1 : Arrays.asList(CHARS).indexOf(current.getChars()), new MaterialDialog.ListCallbackSingleChoice() {
 
                     @Override
                     public boolean onSelection(MaterialDialog materialDialog, View view, int i, CharSequence charSequence) {
@@ -53,9 +63,8 @@ public class WrapCharDialog extends AbstractDialog {
                         int index = dialog.getSelectedIndex();
                         if (index < 0)
                             return;
-                        String[] chars = new String[]{"\n", "\r\n"};
                         Command command = new Command(Command.CommandEnum.CONVERT_WRAP_CHAR);
-                        command.object = chars[index];
+                        command.object = CHARS[index];
                         getMainActivity().doCommand(command);
                     }
                 })
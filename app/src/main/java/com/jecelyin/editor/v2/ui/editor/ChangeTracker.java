@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.ui.editor;
+
+import android.text.TextUtils;
+
+/**
+ * Tells whether a document differs from the last saved (or loaded) text without hashing the
+ * whole document.
+ * <p>
+ * Every edit bumps a version counter; while the version still equals the saved version the
+ * answer is known in O(1). Otherwise the text is compared through a hash tree: the document is
+ * split into blocks of about {@link #BLOCK_CHARS} chars, each leaf keeps a polynomial hash of its
+ * block, and inner nodes combine their children, so the root is the hash of the whole text no
+ * matter where the block boundaries are. An edit only marks the blocks it touches; they are
+ * rehashed lazily, so undoing back to the saved text is still recognised as unchanged.
+ */
+public class ChangeTracker {
+    private final static int BLOCK_CHARS = 4 * 1024;
+    /**
+     * 两个 31 位以内的素数，乘积不会溢出 long
+     */
+    private final static long MOD_A = 2147483647L;
+    private final static long MOD_B = 1000000007L;
+    private final static long BASE = 131071L;
+
+    private int blockCount;
+    private int[] lengths = new int[16];
+    private boolean[] dirty = new boolean[16];
+    private long[] blockHashA = new long[16];
+    private long[] blockHashB = new long[16];
+    private long[] blockPowA = new long[16];
+    private long[] blockPowB = new long[16];
+    private boolean hasDirty;
+
+    /**
+     * 线段树，叶子从 capacity 开始；结构变化后整体重建
+     */
+    private int capacity;
+    private long[] treeHashA, treeHashB, treePowA, treePowB;
+    private boolean structureChanged = true;
+
+    /**
+     * 上次编辑所在的块，连续输入时不用从头查找
+     */
+    private int hintBlock, hintStart;
+
+    private int version;
+    private int savedVersion;
+    private int savedLength;
+    private long savedHash;
+
+    /**
+     * Append text while building the tracker for a freshly read file. Can be called from a
+     * background thread as long as the tracker is not shared yet.
+     */
+    public void append(char[] buf, int offset, int len) {
+        int end = offset + len;
+        while (offset < end) {
+            int last = blockCount - 1;
+            if (last < 0 || lengths[last] >= BLOCK_CHARS) {
+                addBlock(0);
+                last = blockCount - 1;
+            }
+            int n = Math.min(end - offset, BLOCK_CHARS - lengths[last]);
+            long ha = blockHashA[last], hb = blockHashB[last];
+            long pa = blockPowA[last], pb = blockPowB[last];
+            for (int i = offset; i < offset + n; i++) {
+                int c = buf[i] + 1;
+                ha = (ha * BASE + c) % MOD_A;
+                hb = (hb * BASE + c) % MOD_B;
+                pa = pa * BASE % MOD_A;
+                pb = pb * BASE % MOD_B;
+            }
+            blockHashA[last] = ha;
+            blockHashB[last] = hb;
+            blockPowA[last] = pa;
+            blockPowB[last] = pb;
+            lengths[last] += n;
+            offset += n;
+        }
+        structureChanged = true;
+    }
+
+    public void append(CharSequence text) {
+        char[] buf = new char[BLOCK_CHARS];
+        for (int start = 0, size = text.length(); start < size; start += BLOCK_CHARS) {
+            int end = Math.min(size, start + BLOCK_CHARS);
+            TextUtils.getChars(text, start, end, buf, 0);
+            append(buf, 0, end - start);
+        }
+    }
+
+    /**
+     * Record an edit, same arguments as {@link android.text.TextWatcher#onTextChanged}.
+     */
+    public void onTextChanged(int start, int before, int count) {
+        version++;
+        if (before == 0 && count == 0)
+            return;
+        if (blockCount == 0) {
+            addBlock(count);
+            dirty[0] = true;
+            hasDirty = true;
+            structureChanged = true;
+            return;
+        }
+
+        int first = findBlock(start);
+        int blockStart = hintStart;
+        int end = start + before;
+        int last = first;
+        int merged = lengths[first];
+        while (blockStart + merged < end && last + 1 < blockCount) {
+            last++;
+            merged += lengths[last];
+        }
+        lengths[first] = merged - before + count;
+        dirty[first] = true;
+        hasDirty = true;
+
+        if (last > first) {
+            removeBlocks(first + 1, last - first);
+        }
+    }
+
+    /**
+     * @return true if text differs from the text passed to the last {@link #markSaved}
+     */
+    public boolean isChanged(CharSequence text) {
+        if (version == savedVersion)
+            return false;
+        if (text.length() != savedLength)
+            return true;
+        flush(text);
+        return getHash() != savedHash;
+    }
+
+    public void markSaved(CharSequence text) {
+        flush(text);
+        savedVersion = version;
+        savedLength = text.length();
+        savedHash = getHash();
+    }
+
+    /**
+     * Restore the saved marker after the activity was recreated. The version is unknown,
+     * so the next check falls back to the hash.
+     */
+    public void restoreSaved(int length, long hash) {
+        savedVersion = -1;
+        savedLength = length;
+        savedHash = hash;
+    }
+
+    public int getSavedLength() {
+        return savedLength;
+    }
+
+    public long getSavedHash() {
+        return savedHash;
+    }
+
+    private long getHash() {
+        if (blockCount == 0)
+            return 0;
+        return treeHashA[1] << 32 | treeHashB[1];
+    }
+
+    private int findBlock(int offset) {
+        int i = hintBlock;
+        int s = hintStart;
+        while (offset < s && i > 0) {
+            i--;
+            s -= lengths[i];
+        }
+        while (offset >= s + lengths[i] && i + 1 < blockCount) {
+            s += lengths[i];
+            i++;
+        }
+        hintBlock = i;
+        hintStart = s;
+        return i;
+    }
+
+    private void addBlock(int length) {
+        ensureBlocks(blockCount + 1);
+        int i = blockCount++;
+        lengths[i] = length;
+        dirty[i] = false;
+        blockHashA[i] = 0;
+        blockHashB[i] = 0;
+        blockPowA[i] = 1;
+        blockPowB[i] = 1;
+    }
+
+    private void removeBlocks(int index, int count) {
+        int tail = blockCount - index - count;
+        System.arraycopy(lengths, index + count, lengths, index, tail);
+        System.arraycopy(dirty, index + count, dirty, index, tail);
+        System.arraycopy(blockHashA, index + count, blockHashA, index, tail);
+        System.arraycopy(blockHashB, index + count, blockHashB, index, tail);
+        System.arraycopy(blockPowA, index + count, blockPowA, index, tail);
+        System.arraycopy(blockPowB, index + count, blockPowB, index, tail);
+        blockCount -= count;
+        structureChanged = true;
+    }
+
+    private void ensureBlocks(int n) {
+        if (n <= lengths.length)
+            return;
+        int size = Math.max(n, lengths.length * 2);
+        lengths = copyOf(lengths, size);
+        boolean[] d = new boolean[size];
+        System.arraycopy(dirty, 0, d, 0, blockCount);
+        dirty = d;
+        blockHashA = copyOf(blockHashA, size);
+        blockHashB = copyOf(blockHashB, size);
+        blockPowA = copyOf(blockPowA, size);
+        blockPowB = copyOf(blockPowB, size);
+    }
+
+    private int[] copyOf(int[] src, int size) {
+        int[] dest = new int[size];
+        System.arraycopy(src, 0, dest, 0, blockCount);
+        return dest;
+    }
+
+    private long[] copyOf(long[] src, int size) {
+        long[] dest = new long[size];
+        System.arraycopy(src, 0, dest, 0, blockCount);
+        return dest;
+    }
+
+    /**
+     * Rehash the blocks touched since the last flush and bring the tree up to date.
+     */
+    private void flush(CharSequence text) {
+        if (!hasDirty && !structureChanged)
+            return;
+
+        if (hasDirty) {
+            char[] buf = new char[BLOCK_CHARS];
+            int offset = 0;
+            for (int i = 0; i < blockCount; i++) {
+                int len = lengths[i];
+                if (!dirty[i]) {
+                    offset += len;
+                    continue;
+                }
+                dirty[i] = false;
+                if (len == 0 && blockCount > 1) {
+                    removeBlocks(i, 1);
+                    i--;
+                    continue;
+                }
+                // 太大的块拆开，保证以后的修改只需重算一小段
+                int pieces = len > BLOCK_CHARS * 2 ? (len + BLOCK_CHARS - 1) / BLOCK_CHARS : 1;
+                if (pieces > 1) {
+                    insertBlocks(i + 1, pieces - 1);
+                }
+                for (int p = 0; p < pieces; p++) {
+                    int n = pieces == 1 ? len : Math.min(BLOCK_CHARS, len - p * BLOCK_CHARS);
+                    hashBlock(text, i + p, offset, n, buf);
+                    offset += n;
+                }
+                i += pieces - 1;
+            }
+            hasDirty = false;
+            hintBlock = 0;
+            hintStart = 0;
+        }
+
+        if (structureChanged) {
+            buildTree();
+        }
+    }
+
+    private void insertBlocks(int index, int count) {
+        ensureBlocks(blockCount + count);
+        int tail = blockCount - index;
+        System.arraycopy(lengths, index, lengths, index + count, tail);
+        System.arraycopy(dirty, index, dirty, index + count, tail);
+        System.arraycopy(blockHashA, index, blockHashA, index + count, tail);
+        System.arraycopy(blockHashB, index, blockHashB, index + count, tail);
+        System.arraycopy(blockPowA, index, blockPowA, index + count, tail);
+        System.arraycopy(blockPowB, index, blockPowB, index + count, tail);
+        for (int i = index; i < index + count; i++)
+            dirty[i] = false;
+        blockCount += count;
+        structureChanged = true;
+    }
+
+    private void hashBlock(CharSequence text, int block, int start, int len, char[] buf) {
+        long ha = 0, hb = 0, pa = 1, pb = 1;
+        for (int pos = start, end = start + len; pos < end; ) {
+            int n = Math.min(end - pos, buf.length);
+            TextUtils.getChars(text, pos, pos + n, buf, 0);
+            for (int i = 0; i < n; i++) {
+                int c = buf[i] + 1;
+                ha = (ha * BASE + c) % MOD_A;
+                hb = (hb * BASE + c) % MOD_B;
+                pa = pa * BASE % MOD_A;
+                pb = pb * BASE % MOD_B;
+            }
+            pos += n;
+        }
+        lengths[block] = len;
+        blockHashA[block] = ha;
+        blockHashB[block] = hb;
+        blockPowA[block] = pa;
+        blockPowB[block] = pb;
+        if (!structureChanged)
+            updateLeaf(block);
+    }
+
+    private void buildTree() {
+        int cap = 1;
+        while (cap < blockCount)
+            cap <<= 1;
+        if (treeHashA == null || treeHashA.length != cap * 2) {
+            treeHashA = new long[cap * 2];
+            treeHashB = new long[cap * 2];
+            treePowA = new long[cap * 2];
+            treePowB = new long[cap * 2];
+        }
+        capacity = cap;
+        for (int i = 0; i < cap; i++) {
+            int node = cap + i;
+            if (i < blockCount) {
+                treeHashA[node] = blockHashA[i];
+                treeHashB[node] = blockHashB[i];
+                treePowA[node] = blockPowA[i];
+                treePowB[node] = blockPowB[i];
+            } else {
+                treeHashA[node] = 0;
+                treeHashB[node] = 0;
+                treePowA[node] = 1;
+                treePowB[node] = 1;
+            }
+        }
+        for (int node = cap - 1; node >= 1; node--)
+            combine(node);
+        structureChanged = false;
+    }
+
+    private void updateLeaf(int block) {
+        int node = capacity + block;
+        treeHashA[node] = blockHashA[block];
+        treeHashB[node] = blockHashB[block];
+        treePowA[node] = blockPowA[block];
+        treePowB[node] = blockPowB[block];
+        for (node >>= 1; node >= 1; node >>= 1)
+            combine(node);
+    }
+
+    /**
+     * hash(LR) = hash(L) * BASE^|R| + hash(R)
+     */
+    private void combine(int node) {
+        int l = node * 2, r = l + 1;
+        treeHashA[node] = (treeHashA[l] * treePowA[r] + treeHashA[r]) % MOD_A;
+        treeHashB[node] = (treeHashB[l] * treePowB[r] + treeHashB[r]) % MOD_B;
+        treePowA[node] = treePowA[l] * treePowA[r] % MOD_A;
+        treePowB[node] = treePowB[l] * treePowB[r] % MOD_B;
+    }
+}
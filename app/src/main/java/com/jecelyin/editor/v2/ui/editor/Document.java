@@ -19,26 +19,37 @@
 package com.jecelyin.editor.v2.ui.editor;
 
 import android.content.Context;
+import android.core.content.UndoManager;
+import android.core.content.UndoOperation;
+import android.core.content.UndoOwner;
 import android.core.text.SpannableStringBuilder;
+import android.core.text.TextSnapshot;
 import android.os.AsyncTask;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.text.Editable;
-import android.text.Spannable;
+import android.text.TextUtils;
 import android.text.TextWatcher;
-import android.text.style.ForegroundColorSpan;
+import android.view.View;
 
 import com.duy.text.editor.R;
 import com.jecelyin.common.utils.DLog;
-import com.jecelyin.common.utils.StringUtils;
-import com.jecelyin.common.utils.SysUtils;
 import com.jecelyin.common.utils.UIUtils;
 import com.jecelyin.editor.v2.Pref;
 import com.jecelyin.editor.v2.common.ReadFileListener;
 import com.jecelyin.editor.v2.common.SaveListener;
 import com.jecelyin.editor.v2.highlight.Buffer;
-import com.jecelyin.editor.v2.highlight.HighlightInfo;
+import com.jecelyin.editor.v2.highlight.LineStyleRuns;
+import com.jecelyin.editor.v2.io.Compression;
+import com.jecelyin.editor.v2.io.FileChangeMonitor;
+import com.jecelyin.editor.v2.io.FileEncodingDetector;
+import com.jecelyin.editor.v2.io.FileFingerprint;
 import com.jecelyin.editor.v2.io.FileReader;
+import com.jecelyin.editor.v2.io.FileTailReader;
+import com.jecelyin.editor.v2.io.HugeTextFile;
+import com.jecelyin.editor.v2.io.LineEnding;
+import com.jecelyin.editor.v2.io.SourceBytes;
 import com.jecelyin.editor.v2.task.SaveTask;
-import com.stericson.RootTools.RootTools;
 
 import org.gjt.sp.jedit.Catalog;
 import org.gjt.sp.jedit.LineManager;
@@ -48,17 +59,21 @@ import org.gjt.sp.jedit.syntax.DefaultTokenHandler;
 import org.gjt.sp.jedit.syntax.ModeProvider;
 import org.gjt.sp.jedit.syntax.SyntaxStyle;
 import org.gjt.sp.jedit.syntax.Token;
+import org.gjt.sp.jedit.util.IntegerArray;
 
 import java.io.File;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
 
 /**
  * @author Jecelyin Peng <jecelyin@gmail.com>
  */
-public class Document implements ReadFileListener, TextWatcher {
+public class Document implements ReadFileListener, TextWatcher, FileChangeMonitor.Listener {
     public static SyntaxStyle[] styles;
 
     private final EditorDelegate editorDelegate;
@@ -66,12 +81,66 @@ public class Document implements ReadFileListener, TextWatcher {
     private final SaveTask saveTask;
     private final Pref pref;
     private final Buffer buffer;
-    private final HashMap<Integer, ArrayList<ForegroundColorSpan>> colorSpanMap;
+    /**
+     * 语法高亮的颜色，按行保存，绘制时直接读取，不再为每个 token 建 span
+     */
+    private final LineStyleRuns styleRuns;
+    private final DefaultTokenHandler tokenHandler = new DefaultTokenHandler();
+    /**
+     * 超过这个大小的文件先显示第一屏，其余部分在后台继续加载
+     */
+    private final static long STREAMING_THRESHOLD = 512 * 1024;
+    /**
+     * 判断文本是否修改过，读文件时在后台建好，加载完再换上
+     */
+    private ChangeTracker changeTracker;
+    private ChangeTracker loadedTracker;
+    /**
+     * 读文件时已经建好的行索引，setText 时直接交给 LineManager
+     */
+    private IntegerArray loadedLineEndOffsets;
+    /**
+     * 监控文件被其它程序修改，只重新读取变化的部分
+     */
+    private FileChangeMonitor fileMonitor;
+    private FileFingerprint fingerprint;
+    private boolean loading;
+    private boolean reloading;
+    /**
+     * 编辑器里不是完整的文件（读取失败，或者跟踪模式删掉了前面的部分），不能保存，否则会用残缺的内容覆盖文件
+     */
+    private boolean incomplete;
+    /**
+     * 跟踪模式：只读取日志文件新追加的部分
+     */
+    private final static int FOLLOW_POLL_INTERVAL = 1000;
+    private boolean following;
+    private FileTailReader tailReader;
+    private long byteLength;
+    /**
+     * 超过这个大小的文件只用只读的查看器打开，不放进编辑器。
+     * 比这小的大文件按页读取（{@link FileReader#PAGED_READ_THRESHOLD}），堆上主要是行索引和排版信息
+     */
+    private final static long VIEWER_THRESHOLD = Math.max(FileReader.PAGED_READ_THRESHOLD * 2,
+            Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4));
+    private HugeTextFile hugeFile;
+    /**
+     * 文件的原始字节，换编码重新打开时不用再读磁盘
+     */
+    private SourceBytes sourceBytes;
     private int lineNumber;
     private String encoding = "UTF-8";
-    private byte[] srcMD5;
-    private int srcLength;
-    private File file, rootFile;
+    /**
+     * 文本里只有 \n，保存时换成这个换行符；和保存时的不同也算修改过
+     */
+    private LineEnding lineEnding = LineEnding.LF;
+    private LineEnding savedLineEnding = LineEnding.LF;
+    private boolean mixedLineEndings;
+    /**
+     * gzip 或 zip 文件读写时直接解压和压缩
+     */
+    private Compression compression = Compression.NONE;
+    private File file;
     private String modeName;
     private boolean root;
 
@@ -82,43 +151,38 @@ public class Document implements ReadFileListener, TextWatcher {
         root = false;
 
         buffer = new Buffer(context);
-        colorSpanMap = new HashMap<>();
+        changeTracker = new ChangeTracker();
+        styleRuns = new LineStyleRuns(buffer);
+        editorDelegate.mEditText.setStyleRuns(styleRuns);
         this.saveTask = new SaveTask(context, editorDelegate, this);
         editorDelegate.mEditText.addTextChangedListener(this);
-    }
+        editorDelegate.mEditText.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+            @Override
+            public void onViewAttachedToWindow(View v) {
+                if (fileMonitor != null)
+                    fileMonitor.start();
+            }
 
-    /**
-     * Returns the md5sum for given string. Or dummy byte array on error
-     * Suppress NoSuchAlgorithmException because MD5 algorithm always present in JRE
-     *
-     * @param charSequence Given string
-     * @return md5 sum of given string
-     */
-    private static byte[] md5(CharSequence charSequence) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            byte[] ba = new byte[2];
-            for (int i = 0, n = charSequence.length(); i < n; i++) {
-                char cp = charSequence.charAt(i);
-                ba[0] = (byte) (cp & 0xff);
-                ba[1] = (byte) (cp >> 8 & 0xff);
-                digest.update(ba);
+            @Override
+            public void onViewDetachedFromWindow(View v) {
+                if (fileMonitor != null)
+                    fileMonitor.stop();
             }
-            return digest.digest();
-        } catch (NoSuchAlgorithmException e) {
-            DLog.e("Can't Calculate MD5 hash!", e);
-            return charSequence.toString().getBytes();
-        }
+        });
     }
 
     public void onSaveInstanceState(EditorDelegate.SavedState ss) {
         ss.lineNumber = lineNumber;
-        ss.textMd5 = srcMD5;
-        ss.textLength = srcLength;
+        ss.textHash = changeTracker.getSavedHash();
+        ss.textLength = changeTracker.getSavedLength();
         ss.encoding = encoding;
+        ss.lineEnding = lineEnding.name();
+        ss.savedLineEnding = savedLineEnding.name();
+        ss.mixedLineEndings = mixedLineEndings;
+        ss.compression = compression.getType().name();
+        ss.entryName = compression.getEntryName();
         ss.modeName = modeName;
         ss.file = file;
-        ss.rootFile = rootFile;
         ss.root = root;
     }
 
@@ -132,11 +196,16 @@ public class Document implements ReadFileListener, TextWatcher {
         if (ss.lineNumber > 0) {
             lineNumber = ss.lineNumber;
         }
-        srcMD5 = ss.textMd5;
-        srcLength = ss.textLength;
+        changeTracker.restoreSaved(ss.textLength, ss.textHash);
         encoding = ss.encoding;
+        if (ss.lineEnding != null) {
+            lineEnding = LineEnding.valueOf(ss.lineEnding);
+            savedLineEnding = LineEnding.valueOf(ss.savedLineEnding);
+        }
+        mixedLineEndings = ss.mixedLineEndings;
+        if (ss.compression != null)
+            compression = new Compression(Compression.Type.valueOf(ss.compression), ss.entryName);
         file = ss.file;
-        rootFile = ss.rootFile;
         root = ss.root;
     }
 
@@ -149,21 +218,42 @@ public class Document implements ReadFileListener, TextWatcher {
             UIUtils.alert(context, context.getString(R.string.cannt_access_file, file.getPath()));
             return;
         }
-        root = false;
-        if ((!file.canRead() || !file.canWrite()) && pref.isRootable()) {
-            rootFile = new File(SysUtils.getAppStoragePath(context), file.getName() + ".root");
-            if (rootFile.exists())
-                rootFile.delete();
-
-            root = RootTools.copyFile(file.getPath(), rootFile.getPath(), false, true);
-        }
+        //没有权限的文件通过 root shell 的管道直接读写，不再复制到应用目录
+        root = (!file.canRead() || !file.canWrite()) && pref.isRootable();
         if (!file.canRead() && !root) {
             UIUtils.alert(context, context.getString(R.string.cannt_read_file, file.getPath()));
             return;
         }
         this.file = file;
-        FileReader reader = new FileReader(root ? rootFile : file, encodingName);
-        new ReadFileTask(reader, this).execute();
+        //查看器要随机读取文件，root 文件和压缩文件只能顺序读取
+        if (!root && file.length() > VIEWER_THRESHOLD && !isCompressed(file)) {
+            loading = true;
+            new OpenViewerTask(this, file, encodingName).execute();
+            return;
+        }
+        readFile(encodingName);
+    }
+
+    private static boolean isCompressed(File file) {
+        try {
+            return Compression.detect(file) != Compression.Type.NONE;
+        } catch (IOException e) {
+            DLog.e(e);
+            return false;
+        }
+    }
+
+    private void readFile(String encodingName) {
+        hugeFile = null;
+        FileReader reader = new FileReader(file, encodingName);
+        reader.setRoot(root);
+        if (sourceBytes == null || !sourceBytes.getFile().equals(file) || !sourceBytes.isValid())
+            sourceBytes = new SourceBytes(file);
+        reader.setSourceBytes(sourceBytes);
+        boolean streaming = file.length() > STREAMING_THRESHOLD;
+        loadedTracker = new ChangeTracker();
+        loading = true;
+        new ReadFileTask(reader, this, streaming).execute();
     }
 
     @Override
@@ -171,20 +261,43 @@ public class Document implements ReadFileListener, TextWatcher {
         editorDelegate.onLoadStart();
     }
 
-    @Override
-    public SpannableStringBuilder onAsyncReaded(FileReader fileReader, boolean ok) {
-        Editable text = fileReader.getBuffer();
-        Mode mode = ModeProvider.instance.getModeForFile(file == null ? null : file.getPath(), null, text.subSequence(0, Math.min(80, text.length())).toString());
+    private void detectMode(CharSequence text) {
+        //zip 里的文件按它自己的名字判断
+        Mode mode = ModeProvider.instance.getModeForFile(file == null ? null : file.getPath(), compression.getEntryName(), text.subSequence(0, Math.min(80, text.length())).toString());
         if (mode == null)
             mode = ModeProvider.instance.getMode(Catalog.DEFAULT_MODE_NAME);
         modeName = mode.getName();
+        setBufferMode(mode);
+    }
+
+    /**
+     * 换语言时编辑器的行注释也跟着换
+     */
+    private void setBufferMode(Mode mode) {
         buffer.setMode(mode);
+        if (editorDelegate != null && editorDelegate.mEditText != null)
+            editorDelegate.mEditText.setLineComment(mode == null ? null : (String) mode.getProperty("lineComment"));
+    }
 
+    @Override
+    public SpannableStringBuilder onAsyncReaded(FileReader fileReader, boolean ok) {
         lineNumber = fileReader.getLineNumber();
         encoding = fileReader.getEncoding();
+        byteLength = fileReader.getByteLength();
+        compression = fileReader.getCompression();
+        lineEnding = fileReader.getLineEnding();
+        savedLineEnding = lineEnding;
+        mixedLineEndings = fileReader.hasMixedLineEndings();
 
-        srcMD5 = md5(text);
-        srcLength = text.length();
+        Editable text = fileReader.getBuffer();
+        if (text == null) {
+            //渐进加载，文本已经分段交给编辑器了
+            return null;
+        }
+        detectMode(text);
+        loadedLineEndOffsets = fileReader.getLineEndOffsets();
+
+        loadedTracker.append(text);
 
         return (SpannableStringBuilder) text;
 
@@ -195,18 +308,60 @@ public class Document implements ReadFileListener, TextWatcher {
         //给回收了。。
         if (editorDelegate == null || editorDelegate.mEditText == null)
             return;
+        loading = false;
         if (!ok) {
-            editorDelegate.onLoadFinish();
-            UIUtils.alert(context, context.getString(R.string.read_file_exception));
+            loadedLineEndOffsets = null;
+            loadedTracker = null;
+            sourceBytes = null;
+            onReadFailed();
             return;
         }
 
+        incomplete = false;
         editorDelegate.mEditText.setLineNumber(lineNumber);
-        editorDelegate.mEditText.setText(spannableStringBuilder);
+        if (spannableStringBuilder != null)
+            editorDelegate.mEditText.setText(spannableStringBuilder);
+        loadedLineEndOffsets = null;
+        if (loadedTracker != null) {
+            changeTracker = loadedTracker;
+            loadedTracker = null;
+            changeTracker.markSaved(editorDelegate.getEditableText());
+        }
+        watchFile();
+        if (following)
+            startFollowing();
         editorDelegate.onLoadFinish();
+        if (mixedLineEndings) {
+            //保存前会再确认一次，这里先告诉用户
+            UIUtils.toast(context, R.string.mixed_line_endings, lineEnding.name());
+        }
 
     }
 
+    @Override
+    public void onAsyncChunkReaded(char[] buf, int len) {
+        loadedTracker.append(buf, 0, len);
+    }
+
+    @Override
+    public void onChunk(CharSequence text, boolean first, int progress) {
+        if (editorDelegate == null || editorDelegate.mEditText == null)
+            return;
+        if (first) {
+            detectMode(text);
+            //大文件后面的部分要追加到 rope 里
+            if (file.length() > FileReader.ROPE_THRESHOLD)
+                text = SpannableStringBuilder.ropeOf(text);
+            editorDelegate.mEditText.setText(text);
+            editorDelegate.onFirstScreenLoaded();
+        } else {
+            //onTextChanged 会继续更新行号和高亮
+            editorDelegate.mEditText.appendLoadedText(text);
+        }
+        editorDelegate.mEditText.setLineNumber(lineNumber);
+        editorDelegate.onLoadProgress(progress);
+    }
+
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
 
@@ -218,42 +373,51 @@ public class Document implements ReadFileListener, TextWatcher {
 
         Editable editableText = editorDelegate.getEditableText();
         buffer.setEditable(editableText);
-
-        if (before > 0) {
-            buffer.remove(start, before);
-        }
-        if (count > 0) {
-            buffer.insert(start, s.subSequence(start, start + count));
+        changeTracker.onTextChanged(start, before, count);
+
+        if (loadedLineEndOffsets != null && start == 0 && count == editableText.length()) {
+            //刚读入的文件，行索引在解码时已经建好了
+            buffer.setLineEndOffsets(loadedLineEndOffsets);
+            loadedLineEndOffsets = null;
+            styleRuns.clear();
+        } else {
+            int oldLineCount = buffer.getLineManager().getLineCount();
+            if (before > 0) {
+                buffer.remove(start, before);
+            }
+            if (count > 0) {
+                buffer.insert(start, s.subSequence(start, start + count));
+            }
+            //后面的行只是移动了，颜色不用重新计算
+            styleRuns.linesChanged(buffer.getLineManager().getLineOfOffset(start),
+                    buffer.getLineManager().getLineCount() - oldLineCount);
         }
 
         lineNumber = buffer.getLineManager().getLineCount();
 
-        if (!pref.isHighlight() || editableText.length() > pref.getHighlightSizeLimit())
+        if (!pref.isHighlight() || editableText.length() > pref.getHighlightSizeLimit()) {
+            styleRuns.clear();
             return;
+        }
 
         LineManager lineManager = buffer.getLineManager();
         int startLine = lineManager.getLineOfOffset(start);
         int endLine = lineManager.getLineOfOffset(start + count);
-        int lineStartOffset = lineManager.getLineStartOffset(startLine);
-        int lineEndOffset = lineManager.getLineEndOffset(endLine);
 
         boolean canHighlight = buffer.isCanHighlight();
         if (startLine == 0 && !canHighlight) {
             Mode mode = ModeProvider.instance.getModeForFile(file == null ? null : file.getPath(), null, s.subSequence(0, Math.min(80, s.length())).toString());
             if (mode != null)
                 modeName = mode.getName();
-            buffer.setMode(mode);
+            setBufferMode(mode);
         }
 
-        if (!canHighlight)
+        if (!canHighlight) {
+            styleRuns.clear();
             return;
-
-        ForegroundColorSpan[] spans = editableText.getSpans(lineStartOffset, lineEndOffset, ForegroundColorSpan.class);
-        for (ForegroundColorSpan span : spans) {
-            editableText.removeSpan(span);
         }
 
-        highlight(editableText, startLine, endLine);
+        highlight(startLine, endLine);
     }
 
     @Override
@@ -264,10 +428,11 @@ public class Document implements ReadFileListener, TextWatcher {
     public void setMode(String name) {
         modeName = name;
 
-        buffer.setMode(Catalog.getModeByName(name));
-        editorDelegate.getEditableText().clearSpans();
+        setBufferMode(Catalog.getModeByName(name));
+        styleRuns.clear();
 
-        highlight(editorDelegate.getEditableText());
+        highlight(0, lineNumber - 1);
+        editorDelegate.mEditText.invalidate();
     }
 
     public String getModeName() {
@@ -294,163 +459,638 @@ public class Document implements ReadFileListener, TextWatcher {
         return encoding;
     }
 
-    public File getRootFile() {
-        return rootFile;
-    }
-
     public boolean isRoot() {
         return root;
     }
 
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public LineEnding getLineEnding() {
+        return lineEnding;
+    }
+
+    /**
+     * @return true if the file had more than one kind of line terminator when it was read
+     */
+    public boolean hasMixedLineEndings() {
+        return mixedLineEndings;
+    }
+
+    /**
+     * Change the line terminator the document is saved with. The text doesn't change, the
+     * conversion is a single undo step.
+     */
+    public void setLineEnding(LineEnding newLineEnding) {
+        if (newLineEnding == null || newLineEnding == lineEnding)
+            return;
+        UndoManager undoManager = editorDelegate.mEditText.getUndoManager();
+        UndoOwner owner = undoManager.getOwner(LineEndingOperation.OWNER_TAG, this);
+        undoManager.beginUpdate("Line ending");
+        undoManager.addOperation(new LineEndingOperation(owner, lineEnding, newLineEnding), UndoManager.MERGE_MODE_NONE);
+        undoManager.endUpdate();
+        applyLineEnding(newLineEnding);
+    }
+
+    private void applyLineEnding(LineEnding newLineEnding) {
+        lineEnding = newLineEnding;
+        mixedLineEndings = false;
+        editorDelegate.noticeDocumentChanged();
+    }
+
     public void save() {
         save(false, null);
     }
 
     public void save(boolean isCluster, SaveListener listener) {
+        //查看器是只读的，编辑器里没有文件内容
+        if (hugeFile != null) {
+            if (listener != null)
+                listener.onSaved();
+            return;
+        }
         if (saveTask.isWriting()) {
             UIUtils.toast(context, R.string.writing);
             return;
         }
+        if (incomplete) {
+            if (listener != null)
+                listener.onSaved();
+            UIUtils.toast(context, R.string.incomplete_document);
+            return;
+        }
         if (isCluster && file == null) {
             listener.onSaved();
             UIUtils.toast(context, R.string.save_all_without_new_document_message);
             return;
         }
+        if (mixedLineEndings && isChanged()) {
+            //混用的换行符保存时会统一成一种，用户确认后才转换
+            confirmLineEndingConversion(isCluster, listener);
+            return;
+        }
         saveTask.save(isCluster, listener);
     }
 
+    private void confirmLineEndingConversion(final boolean isCluster, final SaveListener listener) {
+        UIUtils.showConfirmDialog(context, context.getString(R.string.convert_line_endings)
+                , context.getString(R.string.mixed_line_endings_confirm, file.getName(), lineEnding.name())
+                , new UIUtils.OnClickCallback() {
+                    @Override
+                    public void onOkClick() {
+                        mixedLineEndings = false;
+                        save(isCluster, listener);
+                    }
+
+                    @Override
+                    public void onCancelClick() {
+                        //全部保存时继续下一个文档
+                        if (isCluster && listener != null)
+                            listener.onSaved();
+                    }
+                });
+    }
+
     public void saveAs() {
+        if (hugeFile != null)
+            return;
         editorDelegate.startSaveFileSelectorActivity();
     }
 
     void saveTo(File file, String encoding) {
+        if (incomplete) {
+            UIUtils.toast(context, R.string.incomplete_document);
+            return;
+        }
         saveTask.saveTo(file, encoding);
     }
 
-    public void onSaveSuccess(File file, String encoding) {
+    /**
+     * @param savedText the snapshot that was written
+     */
+    public void onSaveSuccess(File file, String encoding, Compression compression, CharSequence savedText) {
+        sourceBytes = null;
         this.file = file;
         this.encoding = encoding;
-        srcMD5 = md5(editorDelegate.getText());
-        srcLength = editorDelegate.getText().length();
+        this.compression = compression;
+        savedLineEnding = lineEnding;
+        Editable text = editorDelegate.getEditableText();
+        //保存期间又修改过的话，文件里是旧的版本，文档仍然是修改过的
+        if (!(savedText instanceof TextSnapshot) || !(text instanceof SpannableStringBuilder)
+                || ((TextSnapshot) savedText).getVersion() == ((SpannableStringBuilder) text).getVersion())
+            changeTracker.markSaved(text);
+        watchFile();
         editorDelegate.noticeDocumentChanged();
     }
 
     public boolean isChanged() {
-        if (srcMD5 == null) {
-            return editorDelegate.getText().length() != 0;
+        if (hugeFile != null)
+            return false;
+        return lineEnding != savedLineEnding || changeTracker.isChanged(editorDelegate.getEditableText());
+    }
+
+    /**
+     * 文档刚和磁盘上的文件一致（读取或保存后），开始监控并在后台记下文件的指纹
+     */
+    private void watchFile() {
+        if (file == null || root) {
+            if (fileMonitor != null)
+                fileMonitor.stop();
+            fileMonitor = null;
+            fingerprint = null;
+            return;
+        }
+        if (fileMonitor == null || !fileMonitor.getFile().equals(file)) {
+            if (fileMonitor != null)
+                fileMonitor.stop();
+            fileMonitor = new FileChangeMonitor(file, this);
+        } else {
+            fileMonitor.markSynced();
+        }
+        if (editorDelegate.mEditText.isAttachedToWindow())
+            fileMonitor.start();
+        fingerprint = null;
+        //压缩文件改变后只能整个重新读取
+        if (!compression.isCompressed())
+            new FingerprintTask(this, file, encoding).execute();
+    }
+
+    /**
+     * The first bytes of the file, undecoded (but decompressed), to preview other encodings.
+     *
+     * @return null if they can't be read cheaply
+     */
+    public byte[] getRawHead(int max) {
+        boolean cached = sourceBytes != null && sourceBytes.getFile().equals(file) && sourceBytes.isValid();
+        if (cached && !compression.isCompressed())
+            return sourceBytes.getHead(max);
+        if (!cached && (file == null || root || !file.canRead()))
+            return null;
+        try {
+            InputStream in = Compression.open(cached ? sourceBytes.openStream() : new FileInputStream(file)).stream;
+            try {
+                byte[] head = new byte[compression.isCompressed() ? max : (int) Math.min(max, file.length())];
+                int n = FileEncodingDetector.readSample(in, head);
+                return n == head.length ? head : Arrays.copyOf(head, n);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            DLog.e(e);
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the file is shown by the read-only viewer instead of the editor
+     */
+    public boolean isViewerMode() {
+        return hugeFile != null;
+    }
+
+    public HugeTextFile getHugeFile() {
+        return hugeFile;
+    }
+
+    private void onViewerReady(HugeTextFile hugeFile, String encodingName, boolean ok) {
+        if (editorDelegate.mEditText == null)
+            return;
+        loading = false;
+        if (!ok) {
+            onReadFailed();
+            return;
+        }
+        if (hugeFile == null) {
+            //这个编码不能按换行符字节分行，只能读进编辑器
+            readFile(encodingName);
+            return;
         }
-        if (srcLength != editorDelegate.getEditableText().length())
+        //编辑器里上一个文件的内容用不到了
+        clearText();
+        incomplete = false;
+        this.hugeFile = hugeFile;
+        sourceBytes = null;
+        encoding = hugeFile.getEncoding();
+        lineNumber = hugeFile.getLineCount();
+        following = false;
+        tailReader = null;
+        if (fileMonitor != null)
+            fileMonitor.stop();
+        fileMonitor = null;
+        fingerprint = null;
+        editorDelegate.onViewerReady(hugeFile);
+    }
+
+    /**
+     * 渐进加载时已经显示了一部分，编辑器里也可能还是上一个文件的内容，都清掉并保持只读
+     */
+    private void onReadFailed() {
+        clearText();
+        incomplete = true;
+        editorDelegate.onLoadFailed();
+        UIUtils.alert(context, context.getString(R.string.read_file_exception));
+    }
+
+    private void clearText() {
+        editorDelegate.mEditText.setText("");
+        changeTracker = new ChangeTracker();
+        changeTracker.markSaved(editorDelegate.getEditableText());
+        lineEnding = savedLineEnding;
+    }
+
+    /**
+     * @return true if the editor doesn't hold the complete file, saving it would truncate the file
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * 跟踪模式下文档只读，文件新追加的内容直接加到末尾
+     *
+     * @return false if the document can't follow its file
+     */
+    public boolean setFollowing(boolean follow) {
+        if (!follow) {
+            following = false;
+            tailReader = null;
+            if (fileMonitor != null)
+                fileMonitor.setPollInterval(FileChangeMonitor.POLL_INTERVAL);
+            //前面的部分删掉了，重新读取整个文件才能编辑
+            if (incomplete)
+                loadFile(file, encoding);
             return true;
+        }
+        if (file == null || root || fileMonitor == null || hugeFile != null || compression.isCompressed() || isChanged())
+            return false;
+        following = true;
+        startFollowing();
+        return true;
+    }
+
+    private void startFollowing() {
+        //文件会一直增长，缓存的字节用不上了
+        sourceBytes = null;
+        tailReader = new FileTailReader(file, encoding, byteLength, pref.getFollowMaxSize());
+        fileMonitor.setPollInterval(FOLLOW_POLL_INTERVAL);
+        trimFollowedText();
+        editorDelegate.mEditText.gotoEnd();
+        readTail();
+    }
+
+    private void readTail() {
+        reloading = true;
+        new TailTask(this, tailReader).execute();
+    }
 
-        byte[] curMD5 = md5(editorDelegate.getEditableText());
+    private void onTailRead(FileTailReader reader, String appended) {
+        reloading = false;
+        if (reader != tailReader || editorDelegate.mEditText == null)
+            return;
+        if (appended == null) {
+            //文件被截断或者替换了，重新读取
+            loadFile(file, encoding);
+            return;
+        }
+        if (appended.isEmpty())
+            return;
+
+        byteLength = reader.getPosition();
+        //一次性追加，onTextChanged 只处理新增的行
+        editorDelegate.mEditText.appendLoadedText(appended);
+        trimFollowedText();
+        changeTracker.markSaved(editorDelegate.getEditableText());
+        editorDelegate.mEditText.setLineNumber(lineNumber);
+        editorDelegate.mEditText.gotoEnd();
+        editorDelegate.noticeDocumentChanged();
+        //读取期间又追加了内容，监控可能已经把这次改变记下了
+        if (file.length() > byteLength)
+            readTail();
+    }
+
+    /**
+     * 超过保留大小时从头删除整行
+     */
+    private void trimFollowedText() {
+        Editable text = editorDelegate.getEditableText();
+        int excess = text.length() - pref.getFollowMaxSize();
+        if (excess <= 0)
+            return;
+        int cut = TextUtils.indexOf(text, '\n', excess);
+        cut = cut < 0 ? excess : cut + 1;
+        editorDelegate.mEditText.reloadText(0, cut, "");
+        //文档已经不是完整的文件了，之后的改变只能整个重新读取，也不能保存
+        fingerprint = null;
+        incomplete = true;
+    }
+
+    @Override
+    public void onFileChanged(File changedFile) {
+        if (loading || reloading || saveTask.isWriting() || !changedFile.equals(file))
+            return;
+        if (following) {
+            readTail();
+            return;
+        }
+        if (isChanged()) {
+            promptReload();
+            return;
+        }
+        if (fingerprint == null) {
+            loadFile(file, encoding);
+            return;
+        }
+        reloading = true;
+        new ReloadTask(this, fingerprint, file, encoding).execute();
+    }
 
-        return !StringUtils.isEqual(srcMD5, curMD5);
+    private void promptReload() {
+        reloading = true;
+        UIUtils.showConfirmDialog(context, context.getString(R.string.file_changed_on_disk)
+                , context.getString(R.string.file_changed_on_disk_message, file.getName())
+                , new UIUtils.OnClickCallback() {
+                    @Override
+                    public void onOkClick() {
+                        reloading = false;
+                        loadFile(file, encoding);
+                    }
+
+                    @Override
+                    public void onCancelClick() {
+                        reloading = false;
+                    }
+                });
     }
 
-    private void highlight(Spannable spannableStringBuilder) {
-        highlight(spannableStringBuilder, 0, lineNumber - 1);
+    private void onReloadDone(FileFingerprint.Patch patch) {
+        reloading = false;
+        if (editorDelegate.mEditText == null)
+            return;
+        if (isChanged()) {
+            //读取期间用户修改了文档
+            promptReload();
+            return;
+        }
+        Editable text = editorDelegate.getEditableText();
+        if (patch == null || !patch.matches(text)) {
+            loadFile(file, encoding);
+            return;
+        }
+        if (patch.isEmpty())
+            return;
+
+        //onTextChanged 只更新变化部分的行索引和高亮
+        editorDelegate.mEditText.reloadText(patch.prefixChars, text.length() - patch.suffixChars, patch.text);
+        changeTracker.markSaved(text);
+        //新版本每块之前的字符数要重新数，在后台完成之前再有修改就整个重新读取
+        fingerprint = null;
+        new FingerprintTask(this, file, encoding).execute();
+        editorDelegate.mEditText.setLineNumber(lineNumber);
+        editorDelegate.noticeDocumentChanged();
     }
 
-    private void highlight(Spannable spannableStringBuilder, int startLine, int endLine) {
+    private void highlight(int startLine, int endLine) {
         if (!buffer.isCanHighlight())
             return;
-        DefaultTokenHandler tokenHandler;
 //        L.d("hl startLine=" + startLine + " endLine=" + endLine);
-        DLog.startTracing(null);
         if (styles == null)
             styles = StyleLoader.loadStyles(context);
-        ArrayList<HighlightInfo> mergerArray;
 
         for (int i = startLine; i <= endLine; i++) {
-            tokenHandler = new DefaultTokenHandler();
+            tokenHandler.init();
             buffer.markTokens(i, tokenHandler);
-            Token token = tokenHandler.getTokens();
 
-            mergerArray = new ArrayList<>();
-            collectToken(buffer, i, token, mergerArray);
-            addTokenSpans(spannableStringBuilder, i, mergerArray);
+            styleRuns.startLine();
+            for (Token token = tokenHandler.getTokens(); token.id != Token.END; token = token.next) {
+                SyntaxStyle style = styles[token.id];
+                if (style != null)
+                    styleRuns.addRun(token.offset, token.length, style.getForegroundColor());
+            }
+            styleRuns.endLine(i);
         }
     }
 
-    private void addTokenSpans(Spannable spannableStringBuilder, int line, ArrayList<HighlightInfo> mergerArray) {
-        ForegroundColorSpan fcs;
+    /**
+     * 换行符的转换只改文档的属性，撤销时换回去
+     */
+    public static class LineEndingOperation extends UndoOperation<Document> {
+        final static String OWNER_TAG = "lineEnding";
+        public static final Parcelable.ClassLoaderCreator<LineEndingOperation> CREATOR
+                = new Parcelable.ClassLoaderCreator<LineEndingOperation>() {
+            public LineEndingOperation createFromParcel(Parcel in) {
+                return new LineEndingOperation(in, null);
+            }
+
+            public LineEndingOperation createFromParcel(Parcel in, ClassLoader loader) {
+                return new LineEndingOperation(in, loader);
+            }
 
-        ArrayList<ForegroundColorSpan> oldSpans = colorSpanMap.remove(line);
-        if (oldSpans != null) {
-            for (ForegroundColorSpan span : oldSpans) {
-                spannableStringBuilder.removeSpan(span);
+            public LineEndingOperation[] newArray(int size) {
+                return new LineEndingOperation[size];
             }
+        };
+        private final LineEnding oldLineEnding;
+        private final LineEnding newLineEnding;
+
+        LineEndingOperation(UndoOwner owner, LineEnding oldLineEnding, LineEnding newLineEnding) {
+            super(owner);
+            this.oldLineEnding = oldLineEnding;
+            this.newLineEnding = newLineEnding;
         }
 
-        int length = spannableStringBuilder.length();
+        LineEndingOperation(Parcel src, ClassLoader loader) {
+            super(src, loader);
+            oldLineEnding = LineEnding.valueOf(src.readString());
+            newLineEnding = LineEnding.valueOf(src.readString());
+        }
+
+        @Override
+        public void commit() {
+        }
 
-        ArrayList<ForegroundColorSpan> spans = new ArrayList<>(mergerArray.size());
-        for (HighlightInfo hi : mergerArray) {
-            if (hi.endOffset > length) {
-                // TODO: 15/12/27 不应该出现这种情况，要找到原因并解决
-                DLog.e("assert hi.endOffset %d > maxLength %d", hi.endOffset, length);
-                hi.endOffset = length;
+        @Override
+        public void undo() {
+            getOwnerData().applyLineEnding(oldLineEnding);
+        }
+
+        @Override
+        public void redo() {
+            getOwnerData().applyLineEnding(newLineEnding);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeString(oldLineEnding.name());
+            dest.writeString(newLineEnding.name());
+        }
+    }
+
+    private final static class OpenViewerTask extends AsyncTask<Void, Integer, HugeTextFile>
+            implements HugeTextFile.ProgressListener {
+        private final Document document;
+        private final File file;
+        private final String encoding;
+        private boolean ok = true;
+
+        OpenViewerTask(Document document, File file, String encoding) {
+            this.document = document;
+            this.file = file;
+            this.encoding = encoding;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            document.onStart();
+        }
+
+        @Override
+        protected HugeTextFile doInBackground(Void... params) {
+            try {
+                String charset = TextUtils.isEmpty(encoding) ? FileEncodingDetector.detectEncoding(file) : encoding;
+                if (!HugeTextFile.isSupported(Charset.forName(charset)))
+                    return null;
+                HugeTextFile hugeFile = new HugeTextFile(file, charset);
+                ok = hugeFile.buildIndex(this);
+                return hugeFile;
+            } catch (Exception e) {
+                DLog.e(e);
+                ok = false;
+                return null;
             }
-            if (hi.startOffset >= hi.endOffset) {
-                DLog.e("hi.startOffset %d >= hi.endOffset %d", hi.startOffset, hi.endOffset);
-                continue;
+        }
+
+        @Override
+        public boolean onIndexProgress(int progress) {
+            publishProgress(progress);
+            return !isCancelled();
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            document.editorDelegate.onLoadProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(HugeTextFile hugeFile) {
+            document.onViewerReady(hugeFile, encoding, ok);
+        }
+    }
+
+    private final static class FingerprintTask extends AsyncTask<Void, Void, FileFingerprint> {
+        private final Document document;
+        private final File file;
+        private final String encoding;
+        private final long lastModified;
+
+        FingerprintTask(Document document, File file, String encoding) {
+            this.document = document;
+            this.file = file;
+            this.encoding = encoding;
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        protected FileFingerprint doInBackground(Void... params) {
+            try {
+                FileFingerprint fingerprint = FileFingerprint.compute(file, encoding);
+                //计算期间文件又被修改了，这个指纹不可信
+                return file.lastModified() == lastModified ? fingerprint : null;
+            } catch (IOException e) {
+                DLog.e(e);
+                return null;
             }
-            fcs = new ForegroundColorSpan(hi.color);
-            spannableStringBuilder.setSpan(fcs, hi.startOffset, hi.endOffset, SpannableStringBuilder.SPAN_EXCLUSIVE_EXCLUSIVE);
-            spans.add(fcs);
-        }
-        colorSpanMap.put(line, spans);
-    }
-
-    private void collectToken(Buffer buffer, int lineNumber, Token token
-            , ArrayList<HighlightInfo> mergerArray) {
-//        Segment segment = new Segment();
-//        buffer.getLineText(lineNumber, segment);
-//        String line = segment.toString();
-//        String match;
-
-        int lineStartOffset = buffer.getLineManager().getLineStartOffset(lineNumber);
-
-        HighlightInfo hi;
-        while (token.id != Token.END) {
-            int startIndex = lineStartOffset + token.offset;
-            int endIndex = lineStartOffset + token.offset + token.length;
-            SyntaxStyle style = styles[token.id];
-            //注意下面这句的使用
-            token = token.next;
-
-            if (style == null)
-                continue;
-
-//            int color = 0xFFFFFF & style.getForegroundColor();
-            int color = style.getForegroundColor();
-
-            if (mergerArray.isEmpty()) {
-                mergerArray.add(new HighlightInfo(startIndex, endIndex, color));
-            } else {
-                hi = mergerArray.get(mergerArray.size() - 1);
-                if (hi.color == color && hi.endOffset == startIndex) {
-                    hi.endOffset = endIndex;
-                } else {
-                    mergerArray.add(new HighlightInfo(startIndex, endIndex, color));
-                }
+        }
+
+        @Override
+        protected void onPostExecute(FileFingerprint fingerprint) {
+            if (file.equals(document.file))
+                document.fingerprint = fingerprint;
+        }
+    }
+
+    private final static class TailTask extends AsyncTask<Void, Void, String> {
+        private final Document document;
+        private final FileTailReader reader;
+
+        TailTask(Document document, FileTailReader reader) {
+            this.document = document;
+            this.reader = reader;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                return reader.read();
+            } catch (IOException e) {
+                DLog.e(e);
+                return "";
             }
         }
 
-//        for(HighlightInfo hl : mergerArray) {
-//            match = line.substring(hl.startOffset, hl.endOffset);
-//            System.err.println("<" + String.format("#%06X", hl.color) + ">" + match + "</" + String.format("#%06X", hl.color) + ">");
-//        }
+        @Override
+        protected void onPostExecute(String appended) {
+            document.onTailRead(reader, appended);
+        }
+    }
+
+    private final static class ReloadTask extends AsyncTask<Void, Void, FileFingerprint.Patch> {
+        private final Document document;
+        private final FileFingerprint fingerprint;
+        private final File file;
+        private final String encoding;
+
+        ReloadTask(Document document, FileFingerprint fingerprint, File file, String encoding) {
+            this.document = document;
+            this.fingerprint = fingerprint;
+            this.file = file;
+            this.encoding = encoding;
+        }
 
+        @Override
+        protected FileFingerprint.Patch doInBackground(Void... params) {
+            try {
+                return fingerprint.diff(file, encoding);
+            } catch (IOException e) {
+                DLog.e(e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(FileFingerprint.Patch patch) {
+            document.onReloadDone(patch);
+        }
     }
 
-    private final static class ReadFileTask extends AsyncTask<File, Void, SpannableStringBuilder> {
+    private final static class ReadFileTask extends AsyncTask<File, ReadFileTask.Chunk, SpannableStringBuilder>
+            implements FileReader.ChunkListener {
+        /**
+         * 第一屏的字符数，读到就马上显示
+         */
+        private final static int FIRST_SCREEN_CHARS = 8 * 1024;
+        private final static int CHUNK_CHARS = 256 * 1024;
         private final ReadFileListener listener;
         private final FileReader fileReader;
-
-        public ReadFileTask(FileReader reader, ReadFileListener listener) {
+        /**
+         * 最多两段文本等待 UI 线程追加，避免读取速度远快于显示时占用过多内存
+         */
+        private final Semaphore pending = new Semaphore(2);
+        private StringBuilder batch;
+        private boolean first = true;
+        private boolean ok;
+
+        public ReadFileTask(FileReader reader, ReadFileListener listener, boolean streaming) {
             this.fileReader = reader;
             this.listener = listener;
+            if (streaming) {
+                batch = new StringBuilder(FIRST_SCREEN_CHARS);
+                reader.setChunkListener(this);
+            }
         }
 
         @Override
@@ -460,15 +1100,64 @@ public class Document implements ReadFileListener, TextWatcher {
 
         @Override
         protected SpannableStringBuilder doInBackground(File... params) {
-            if (!fileReader.read())
+            ok = fileReader.read();
+            if (!ok)
                 return null;
 
+            //按页读取的大文件没有分段，整个交给 onAsyncReaded
+            if (batch != null && fileReader.getBuffer() == null && (first || batch.length() > 0)) {
+                try {
+                    publishChunk(100);
+                } catch (InterruptedIOException e) {
+                    ok = false;
+                    return null;
+                }
+            }
             return listener.onAsyncReaded(fileReader, true);
         }
 
+        @Override
+        public void onChunkRead(char[] buf, int len, int progress) throws IOException {
+            listener.onAsyncChunkReaded(buf, len);
+            batch.append(buf, 0, len);
+            if (batch.length() >= (first ? FIRST_SCREEN_CHARS : CHUNK_CHARS))
+                publishChunk(progress);
+        }
+
+        private void publishChunk(int progress) throws InterruptedIOException {
+            try {
+                pending.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            publishProgress(new Chunk(batch.toString(), first, progress));
+            first = false;
+            batch.setLength(0);
+        }
+
+        @Override
+        protected void onProgressUpdate(Chunk... chunks) {
+            for (Chunk chunk : chunks) {
+                listener.onChunk(chunk.text, chunk.first, chunk.progress);
+                pending.release();
+            }
+        }
+
         @Override
         protected void onPostExecute(SpannableStringBuilder spannableStringBuilder) {
-            listener.onDone(spannableStringBuilder, spannableStringBuilder != null);
+            listener.onDone(spannableStringBuilder, ok);
+        }
+
+        static class Chunk {
+            final CharSequence text;
+            final boolean first;
+            final int progress;
+
+            Chunk(CharSequence text, boolean first, int progress) {
+                this.text = text;
+                this.first = first;
+                this.progress = progress;
+            }
         }
     }
 }
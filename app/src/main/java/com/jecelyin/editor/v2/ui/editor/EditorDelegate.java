@@ -20,6 +20,7 @@ package com.jecelyin.editor.v2.ui.editor;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.core.text.SpannableStringBuilder;
 import android.core.widget.BaseEditorView;
 import android.core.widget.EditAreaView;
 import android.graphics.Color;
@@ -44,6 +45,8 @@ import com.jecelyin.editor.v2.Pref;
 import com.jecelyin.editor.v2.common.Command;
 import com.jecelyin.editor.v2.common.OnVisibilityChangedListener;
 import com.jecelyin.editor.v2.common.SaveListener;
+import com.jecelyin.editor.v2.io.HugeTextFile;
+import com.jecelyin.editor.v2.io.LineEnding;
 import com.jecelyin.editor.v2.ui.activities.MainActivity;
 import com.jecelyin.editor.v2.ui.dialog.DocumentInfoDialog;
 import com.jecelyin.editor.v2.ui.dialog.FinderDialog;
@@ -153,12 +156,54 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
     public void onLoadStart() {
         loaded = false;
         mEditText.setEnabled(false);
+        mEditorView.setViewerMode(false);
         mEditorView.setLoading(true);
     }
 
+    /**
+     * 大文件的行索引建好了，用只读查看器显示
+     */
+    public void onViewerReady(HugeTextFile hugeFile) {
+        mEditorView.getHugeFileView().setFile(hugeFile);
+        mEditorView.setViewerMode(true);
+        mEditorView.setLoading(false);
+        mEditorView.setLoadProgress(-1);
+        mEditText.setEnabled(true);
+        mEditText.setReadOnly(true);
+        loaded = true;
+        noticeDocumentChanged();
+        UIUtils.toast(context, R.string.huge_file_viewer, hugeFile.getFile().getName());
+    }
+
+    /**
+     * 渐进加载：第一屏文本已经显示，剩余部分加载完之前保持只读
+     */
+    public void onFirstScreenLoaded() {
+        mEditorView.setLoading(false);
+        mEditText.setEnabled(true);
+        mEditText.setReadOnly(true);
+    }
+
+    public void onLoadProgress(int progress) {
+        mEditorView.setLoadProgress(progress);
+    }
+
+    /**
+     * 读取失败，编辑器里没有完整的文件，保持只读，也不算加载完成
+     */
+    public void onLoadFailed() {
+        mEditorView.setLoading(false);
+        mEditorView.setLoadProgress(-1);
+        mEditText.setEnabled(true);
+        mEditText.setReadOnly(true);
+        noticeDocumentChanged();
+    }
+
     public void onLoadFinish() {
         mEditorView.setLoading(false);
+        mEditorView.setLoadProgress(-1);
         mEditText.setEnabled(true);
+        mEditText.setReadOnly(Pref.getInstance(context).isReadOnly() || document.isFollowing());
         mEditText.post(new Runnable() {
             @Override
             public void run() {
@@ -188,6 +233,20 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
         return savedState.title;
     }
 
+    /**
+     * @see Document#getRawHead(int)
+     */
+    public byte[] getRawHead(int max) {
+        return document == null ? null : document.getRawHead(max);
+    }
+
+    /**
+     * @return null if the document isn't created yet
+     */
+    public LineEnding getLineEnding() {
+        return document == null ? null : document.getLineEnding();
+    }
+
     public String getPath() {
         return document == null ? (savedState.file == null ? null : savedState.file.getPath()) : document.getPath();
     }
@@ -204,6 +263,14 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
         return mEditText.getText();
     }
 
+    /**
+     * 当前文本的不可变视图，后台线程读取用，不复制文本
+     */
+    public CharSequence getTextSnapshot() {
+        Editable text = mEditText.getText();
+        return text instanceof SpannableStringBuilder ? ((SpannableStringBuilder) text).getSnapshot() : text.toString();
+    }
+
     public CharSequence getSelectedText() {
         return mEditText.hasSelection() ? mEditText.getEditableText().subSequence(mEditText.getSelectionStart(), mEditText.getSelectionEnd()) : "";
     }
@@ -248,7 +315,9 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
     public boolean doCommand(Command command) {
         if (mEditText == null)
             return false;
-        boolean readonly = Pref.getInstance(context).isReadOnly();
+        //加载完之前不允许修改
+        boolean readonly = Pref.getInstance(context).isReadOnly() || !loaded || document.isFollowing()
+                || document.isViewerMode() || document.isIncomplete();
         switch (command.what) {
             case HIDE_SOFT_INPUT:
                 mEditText.hideSoftInput();
@@ -280,16 +349,25 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
                 break;
             case CONVERT_WRAP_CHAR:
                 if (!readonly)
-                    mEditText.convertWrapCharTo((String) command.object);
+                    document.setLineEnding(LineEnding.fromChars((String) command.object));
                 break;
             case GOTO_LINE:
-                mEditText.gotoLine(command.args.getInt("line"));
+                if (document.isViewerMode())
+                    mEditorView.getHugeFileView().gotoLine(command.args.getInt("line"));
+                else
+                    mEditText.gotoLine(command.args.getInt("line"));
                 break;
             case GOTO_TOP:
-                mEditText.gotoTop();
+                if (document.isViewerMode())
+                    mEditorView.getHugeFileView().gotoTop();
+                else
+                    mEditText.gotoTop();
                 break;
             case GOTO_END:
-                mEditText.gotoEnd();
+                if (document.isViewerMode())
+                    mEditorView.getHugeFileView().gotoEnd();
+                else
+                    mEditText.gotoEnd();
                 break;
             case DOC_INFO:
                 DocumentInfoDialog documentInfoDialog = new DocumentInfoDialog(context);
@@ -301,7 +379,8 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
             case READONLY_MODE:
                 Pref pref = Pref.getInstance(context);
                 boolean readOnly = pref.isReadOnly();
-                mEditText.setReadOnly(readOnly);
+                mEditText.setReadOnly(readOnly || !loaded || document.isFollowing() || document.isViewerMode()
+                        || document.isIncomplete());
                 ((MainActivity) context).doNextCommand();
                 break;
             case SAVE:
@@ -312,7 +391,11 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
                 document.saveAs();
                 break;
             case FIND:
-                FinderDialog.showFindDialog(this);
+                //查看器只读取可见的几屏，不支持查找
+                if (document.isViewerMode())
+                    UIUtils.toast(context, R.string.huge_file_viewer, document.getFile().getName());
+                else
+                    FinderDialog.showFindDialog(this);
                 break;
             case HIGHLIGHT:
                 String scope = (String) command.object;
@@ -348,6 +431,9 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
             case RELOAD_WITH_ENCODING:
                 reOpenWithEncoding((String) command.object);
                 break;
+            case FOLLOW_MODE:
+                toggleFollowing();
+                break;
             case FORWARD:
                 mEditText.forwardLocation();
                 break;
@@ -387,6 +473,21 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
         document.loadFile(file, encoding);
     }
 
+    private void toggleFollowing() {
+        boolean follow = !document.isFollowing();
+        if (!document.setFollowing(follow)) {
+            UIUtils.toast(context, R.string.follow_mode_not_available);
+            return;
+        }
+        //关闭时裁剪过的文档会重新读取，读完之前仍然只读
+        mEditText.setReadOnly(follow || !loaded || document.isIncomplete() || Pref.getInstance(context).isReadOnly());
+        if (follow) {
+            UIUtils.toast(context, R.string.follow_mode_enabled, document.getFile().getName());
+        } else {
+            UIUtils.toast(context, R.string.follow_mode_disabled);
+        }
+    }
+
     void noticeDocumentChanged() {
         File file = document.getFile();
         if (file != null) {
@@ -467,12 +568,17 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
         if (document != null) {
             document.onSaveInstanceState(ss);
         }
-        if (mEditText != null) {
+        if (document != null && document.isViewerMode()) {
+            //查看器模式没有文本可以保存，还原时重新打开文件
+            ss.editorState = null;
+        } else if (mEditText != null) {
             mEditText.setFreezesText(true);
             ss.editorState = (BaseEditorView.SavedState) mEditText.onSaveInstanceState();
         }
 
-        if (loaded && !disableAutoSave && document != null && document.getFile() != null && Pref.getInstance(context).isAutoSave()) {
+        //混用换行符的文件要用户确认才能转换，不自动保存
+        if (loaded && !disableAutoSave && document != null && document.getFile() != null && !document.hasMixedLineEndings()
+                && Pref.getInstance(context).isAutoSave()) {
             int newOrientation = context.getResources().getConfiguration().orientation;
             if (orientation != newOrientation) {
                 DLog.d("current is screen orientation, discard auto save!");
@@ -508,11 +614,15 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
         File file;
         String title;
         String encoding;
+        String lineEnding;
+        String savedLineEnding;
+        boolean mixedLineEndings;
+        String compression;
+        String entryName;
         String modeName;
         BaseEditorView.SavedState editorState;
-        byte[] textMd5;
+        long textHash;
         boolean root;
-        File rootFile;
         int textLength;
 
         public SavedState() {
@@ -522,19 +632,21 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
             this.index = in.readInt();
             this.offset = in.readInt();
             this.lineNumber = in.readInt();
-            String file, rootFile;
-            file = in.readString();
-            rootFile = in.readString();
+            String file = in.readString();
             this.file = TextUtils.isEmpty(file) ? null : new File(file);
-            this.rootFile = TextUtils.isEmpty(rootFile) ? null : new File(rootFile);
             this.root = in.readInt() == 1;
             this.title = in.readString();
             this.encoding = in.readString();
+            this.lineEnding = in.readString();
+            this.savedLineEnding = in.readString();
+            this.mixedLineEndings = in.readInt() == 1;
+            this.compression = in.readString();
+            this.entryName = in.readString();
             this.modeName = in.readString();
             int hasState = in.readInt();
             if (hasState == 1)
                 this.editorState = in.readParcelable(BaseEditorView.SavedState.class.getClassLoader());
-            this.textMd5 = in.createByteArray();
+            this.textHash = in.readLong();
             this.textLength = in.readInt();
         }
 
@@ -549,15 +661,19 @@ public class EditorDelegate implements OnVisibilityChangedListener, TextWatcher
             dest.writeInt(this.offset);
             dest.writeInt(this.lineNumber);
             dest.writeString(this.file == null ? null : this.file.getPath());
-            dest.writeString(this.rootFile == null ? null : this.rootFile.getPath());
             dest.writeInt(root ? 1 : 0);
             dest.writeString(this.title);
             dest.writeString(this.encoding);
+            dest.writeString(this.lineEnding);
+            dest.writeString(this.savedLineEnding);
+            dest.writeInt(mixedLineEndings ? 1 : 0);
+            dest.writeString(this.compression);
+            dest.writeString(this.entryName);
             dest.writeString(this.modeName);
             dest.writeInt(this.editorState == null ? 0 : 1);
             if (this.editorState != null)
                 dest.writeParcelable(this.editorState, flags);
-            dest.writeByteArray(this.textMd5);
+            dest.writeLong(this.textHash);
             dest.writeInt(textLength);
         }
     }
@@ -64,6 +64,8 @@ public class SettingsFragment extends PreferenceFragment implements Preference.O
                 ((CheckBoxPreference) preference).setChecked((boolean) value);
             } else if ("pref_highlight_file_size_limit".equals(key)) {
                 preference.setSummary(stringValue + " KB");
+            } else if ("pref_follow_max_size".equals(key)) {
+                preference.setSummary(stringValue + " MB");
             } else {
                 // For all other preferences, set the summary to the value's
                 // simple string representation.
@@ -128,6 +128,7 @@ public class MenuFactory {
         menuItemInfos.add(new MenuItemInfo(MenuGroup.VIEW, R.id.m_readonly, Command.CommandEnum.READONLY_MODE, R.drawable.ic_remove_red_eye_white_24dp, R.string.read_only));
         menuItemInfos.add(new MenuItemInfo(MenuGroup.VIEW, R.id.m_highlight, Command.CommandEnum.NONE, R.drawable.ic_highlight_white_24dp, R.string.highlight_language));
         menuItemInfos.add(new MenuItemInfo(MenuGroup.VIEW, R.id.m_encoding, Command.CommandEnum.NONE, R.drawable.m_encoding, R.string.encoding));
+        menuItemInfos.add(new MenuItemInfo(MenuGroup.VIEW, R.id.m_follow, Command.CommandEnum.FOLLOW_MODE, R.drawable.ic_vertical_align_bottom_white_24dp, R.string.follow_mode));
 
         menuItemInfos.add(new MenuItemInfo(MenuGroup.OTHER, R.id.m_color, Command.CommandEnum.NONE, R.drawable.ic_color_lens_white_24dp, R.string.insert_color));
         menuItemInfos.add(new MenuItemInfo(MenuGroup.OTHER, R.id.m_datetime, Command.CommandEnum.NONE, R.drawable.ic_date_range_white_24dp, R.string.insert_datetime));
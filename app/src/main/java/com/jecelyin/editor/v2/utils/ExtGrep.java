@@ -1,10 +1,12 @@
 package com.jecelyin.editor.v2.utils;
 
+import android.content.Context;
+import android.core.text.SpannableStringBuilder;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.Editable;
 
-import com.jecelyin.editor.v2.TextEditorApplication;
+import com.jecelyin.common.app.ProgressDialog;
 import com.jecelyin.common.task.JecAsyncTask;
 import com.jecelyin.common.task.TaskListener;
 import com.jecelyin.common.task.TaskResult;
@@ -99,42 +101,16 @@ public class ExtGrep implements Parcelable {
     }
 
     public static String parseReplacement(MatcherResult m, String replaceText) {
-        boolean escape = false;
-        boolean dollar = false;
-
+        Replacement replacement = Replacement.compile(replaceText);
         StringBuilder buffer = new StringBuilder();
-        int length = replaceText.length();
-        for (int i = 0; i < length; i++) {
-            char c = replaceText.charAt(i);
-            if (c == '\\' && !escape) {
-                escape = true;
-            } else if (c == '$' && !escape) {
-                dollar = true;
-            } else if (c >= '0' && c <= '9' && dollar) {
-                int group = c - '0';
-                if (group < m.groupCount())
-                    buffer.append(m.group(group));
-                dollar = false;
-            } else if (c == 'r' && escape) {
-                buffer.append('\r');
-                escape = false;
-            } else if (c == 'n' && escape) {
-                buffer.append('\n');
-                escape = false;
-            } else if (c == 't' && escape) {
-                buffer.append('\t');
-                escape = false;
-            } else {
-                buffer.append(c);
-                dollar = false;
-                escape = false;
+        for (int i = 0; i < replacement.groups.length; i++) {
+            int group = replacement.groups[i];
+            if (group < 0) {
+                buffer.append(replacement.texts[i]);
+            } else if (group < m.groupCount()) {
+                buffer.append(m.group(group));
             }
         }
-
-        // This seemingly stupid piece of code reproduces a JDK bug.
-        if (escape) {
-            throw new ArrayIndexOutOfBoundsException(replaceText.length());
-        }
         return buffer.toString();
     }
 
@@ -451,25 +427,14 @@ public class ExtGrep implements Parcelable {
         return null;
     }
 
-    public void replaceAll(Editable text, String replaceText) {
-        Matcher m = grepPattern.matcher(text);
-        ArrayList<Integer> array = new ArrayList<>();
-        // 从头开始搜索获取所有位置
-        while (m.find()) {
-            array.add(m.start());
-            array.add(m.end());
-        }
-        int size = array.size();
-        if (size == 0) {
-            UIUtils.toast(TextEditorApplication.getContext(), TextEditorApplication.getContext().getResources().getQuantityString(R.plurals.x_text_replaced, 0));
-            return;
-        }
-        int count = 0;
-        for (int i = size - 2; i >= 0; i -= 2) {
-            count++;
-            text.replace(array.get(i), array.get(i + 1), replaceText);
-        }
-        UIUtils.toast(TextEditorApplication.getContext(), TextEditorApplication.getContext().getResources().getQuantityString(R.plurals.x_text_replaced, count, count));
+    /**
+     * 在后台线程找出所有匹配，一次拼出替换后的文本，回到主线程作为一次修改换进文档，
+     * 只重新排版和高亮一次，撤销一次就能全部恢复
+     */
+    public void replaceAll(Context context, Editable text, String replaceText) {
+        ReplaceAllTask task = new ReplaceAllTask(context, text, replaceText);
+        task.setProgress(new ProgressDialog(context, R.string.replace_all));
+        task.execute();
     }
 
     private List<Result> grepFile(final File file) {
@@ -710,4 +675,201 @@ public class ExtGrep implements Parcelable {
         private Result() {
         }
     }
+
+    /**
+     * 解析好的替换文本，替换全部时每个匹配不用再解析一次
+     */
+    private static class Replacement {
+        /**
+         * 每一段是 texts[i]，或者 groups[i] >= 0 时是这个分组匹配到的文本
+         */
+        final String[] texts;
+        final int[] groups;
+
+        private Replacement(String[] texts, int[] groups) {
+            this.texts = texts;
+            this.groups = groups;
+        }
+
+        static Replacement compile(String replaceText) {
+            boolean escape = false;
+            boolean dollar = false;
+
+            ArrayList<String> texts = new ArrayList<>();
+            ArrayList<Integer> groups = new ArrayList<>();
+            StringBuilder buffer = new StringBuilder();
+            int length = replaceText.length();
+            for (int i = 0; i < length; i++) {
+                char c = replaceText.charAt(i);
+                if (c == '\\' && !escape) {
+                    escape = true;
+                } else if (c == '$' && !escape) {
+                    dollar = true;
+                } else if (c >= '0' && c <= '9' && dollar) {
+                    if (buffer.length() > 0) {
+                        texts.add(buffer.toString());
+                        groups.add(-1);
+                        buffer.setLength(0);
+                    }
+                    texts.add(null);
+                    groups.add(c - '0');
+                    dollar = false;
+                } else if (c == 'r' && escape) {
+                    buffer.append('\r');
+                    escape = false;
+                } else if (c == 'n' && escape) {
+                    buffer.append('\n');
+                    escape = false;
+                } else if (c == 't' && escape) {
+                    buffer.append('\t');
+                    escape = false;
+                } else {
+                    buffer.append(c);
+                    dollar = false;
+                    escape = false;
+                }
+            }
+
+            // This seemingly stupid piece of code reproduces a JDK bug.
+            if (escape) {
+                throw new ArrayIndexOutOfBoundsException(replaceText.length());
+            }
+            if (buffer.length() > 0) {
+                texts.add(buffer.toString());
+                groups.add(-1);
+            }
+            int[] groupArray = new int[groups.size()];
+            for (int i = 0; i < groupArray.length; i++) {
+                groupArray[i] = groups.get(i);
+            }
+            return new Replacement(texts.toArray(new String[texts.size()]), groupArray);
+        }
+
+        void appendTo(StringBuilder buffer, Matcher m) {
+            for (int i = 0; i < groups.length; i++) {
+                int group = groups[i];
+                if (group < 0) {
+                    buffer.append(texts[i]);
+                } else if (group <= m.groupCount()) {
+                    buffer.append(m.group(group));
+                }
+            }
+        }
+    }
+
+    /**
+     * 替换全部时的进度
+     */
+    interface ReplaceAllProgress {
+        /**
+         * @return false to stop, the matches found so far are still replaced
+         */
+        boolean onProgress(int count);
+    }
+
+    /**
+     * Find every match of <code>pattern</code> in <code>text</code> and build the text from the
+     * start of the first match to the end of the last one with all of them replaced, the same as
+     * {@link #parseReplacement} gives for each match.
+     *
+     * @param progress called about every 1% of the text, may be null
+     */
+    static ReplaceAllResult replaceAll(Pattern pattern, CharSequence text, String replaceText, ReplaceAllProgress progress) {
+        Replacement replacement = Replacement.compile(replaceText);
+        ReplaceAllResult result = new ReplaceAllResult();
+        Matcher m = pattern.matcher(text);
+        // 大约每处理 1% 的文本报告一次进度，顺便看看是否取消了
+        int step = Math.max(text.length() / 100, 1);
+        int nextProgress = step;
+        int last = 0;
+        while (m.find()) {
+            if (result.text == null) {
+                result.start = m.start();
+                result.text = new StringBuilder(text.length() - result.start);
+            } else {
+                result.text.append(text, last, m.start());
+            }
+            replacement.appendTo(result.text, m);
+            last = m.end();
+            result.count++;
+
+            if (progress != null && last >= nextProgress) {
+                if (!progress.onProgress(result.count))
+                    break;
+                nextProgress = last + step;
+            }
+        }
+        result.end = last;
+        return result;
+    }
+
+    static class ReplaceAllResult {
+        int count;
+        /**
+         * 第一个匹配的开始到最后一个匹配的结束，替换成 text
+         */
+        int start;
+        int end;
+        StringBuilder text;
+    }
+
+    private class ReplaceAllTask extends JecAsyncTask<Void, Integer, ReplaceAllResult> {
+        private final Context context;
+        private final Editable text;
+        private final String replaceText;
+        private final CharSequence snapshot;
+        private final int version;
+
+        ReplaceAllTask(Context context, Editable text, String replaceText) {
+            this.context = context;
+            this.text = text;
+            this.replaceText = replaceText;
+            if (text instanceof SpannableStringBuilder) {
+                SpannableStringBuilder ssb = (SpannableStringBuilder) text;
+                snapshot = ssb.getSnapshot();
+                version = ssb.getVersion();
+            } else {
+                snapshot = text.toString();
+                version = 0;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            getProgress().setMessage(context.getResources().getQuantityString(R.plurals.x_text_replaced, values[0], values[0]));
+        }
+
+        @Override
+        protected void onRun(TaskResult<ReplaceAllResult> taskResult, Void... params) throws Exception {
+            compilePattern();
+            taskResult.setResult(replaceAll(grepPattern, snapshot, replaceText, new ReplaceAllProgress() {
+                @Override
+                public boolean onProgress(int count) {
+                    if (isCancelled())
+                        return false;
+                    publishProgress(count);
+                    return true;
+                }
+            }));
+        }
+
+        @Override
+        protected void onSuccess(ReplaceAllResult result) {
+            if (result.count > 0) {
+                if (text instanceof SpannableStringBuilder && ((SpannableStringBuilder) text).getVersion() != version) {
+                    // 文本在后台查找时又被修改了，重新来一次
+                    replaceAll(context, text, replaceText);
+                    return;
+                }
+                text.replace(result.start, result.end, result.text);
+            }
+            UIUtils.toast(context, context.getResources().getQuantityString(R.plurals.x_text_replaced, result.count, result.count));
+        }
+
+        @Override
+        protected void onError(Exception e) {
+            DLog.e(e);
+            UIUtils.toast(context, e.getMessage());
+        }
+    }
 }
@@ -33,8 +33,11 @@ import com.jecelyin.editor.v2.common.OnVisibilityChangedListener;
  */
 public class EditorView extends RelativeLayout {
     private EditAreaView editText;
+    private HugeFileView hugeFileView;
     private ProgressBar progressView;
+    private ProgressBar loadProgressView;
     private boolean removed = false;
+    private boolean viewerMode = false;
     private OnVisibilityChangedListener visibilityChangedListener;
 
     public EditorView(Context context, AttributeSet attrs) {
@@ -50,7 +53,9 @@ public class EditorView extends RelativeLayout {
         super.onFinishInflate();
 
         editText = findViewById(R.id.edit_text);
+        hugeFileView = findViewById(R.id.huge_file_view);
         progressView = findViewById(R.id.progress_view);
+        loadProgressView = findViewById(R.id.load_progress_view);
 
     }
 
@@ -58,16 +63,47 @@ public class EditorView extends RelativeLayout {
         return editText;
     }
 
+    public HugeFileView getHugeFileView() {
+        return hugeFileView;
+    }
+
     public void setLoading(boolean loading) {
         if (loading) {
             ((View) editText).setVisibility(GONE);
             progressView.setVisibility(VISIBLE);
         } else {
-            ((View) editText).setVisibility(VISIBLE);
+            ((View) editText).setVisibility(viewerMode ? GONE : VISIBLE);
             progressView.setVisibility(GONE);
         }
     }
 
+    /**
+     * 大文件用只读的查看器代替编辑框
+     */
+    public void setViewerMode(boolean viewerMode) {
+        this.viewerMode = viewerMode;
+        ((View) editText).setVisibility(viewerMode ? GONE : VISIBLE);
+        hugeFileView.setVisibility(viewerMode ? VISIBLE : GONE);
+    }
+
+    public boolean isViewerMode() {
+        return viewerMode;
+    }
+
+    /**
+     * 渐进加载的进度条，文本已经显示但还没加载完
+     *
+     * @param progress 0-100, or -1 to hide
+     */
+    public void setLoadProgress(int progress) {
+        if (progress < 0) {
+            loadProgressView.setVisibility(GONE);
+        } else {
+            loadProgressView.setVisibility(VISIBLE);
+            loadProgressView.setProgress(progress);
+        }
+    }
+
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
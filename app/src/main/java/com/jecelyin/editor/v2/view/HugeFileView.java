@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 Jecelyin Peng <jecelyin@gmail.com>
+ *
+ * This file is part of 920 Text Editor.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jecelyin.editor.v2.view;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.OverScroller;
+
+import com.duy.text.editor.R;
+import com.jecelyin.common.utils.DLog;
+import com.jecelyin.common.utils.SysUtils;
+import com.jecelyin.editor.v2.Pref;
+import com.jecelyin.editor.v2.io.HugeTextFile;
+
+import java.io.IOException;
+
+/**
+ * Read-only view of a {@link HugeTextFile}. Only the lines around the visible ones are
+ * decoded and kept in memory; lines are never wrapped so the position of any line is just
+ * line * lineHeight, which makes scrolling and jumping to a line independent of the file size.
+ *
+ * @author Jecelyin Peng <jecelyin@gmail.com>
+ */
+public class HugeFileView extends View {
+    /**
+     * 缓存的行数是一屏的几倍
+     */
+    private final static int WINDOW_SCREENS = 3;
+
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint lineNumberPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gutterPaint = new Paint();
+    private final Paint thumbPaint = new Paint();
+    private final OverScroller scroller;
+    private final GestureDetector gestureDetector;
+    private final int thumbWidth;
+    private final int thumbHeight;
+    private final int gutterPadding;
+
+    private HugeTextFile file;
+    private String[] window = new String[0];
+    private int windowStart;
+    private int windowCount;
+    private float windowWidth;
+
+    private int lineHeight;
+    private int baseline;
+    private int gutterWidth;
+    /**
+     * 第一可见行和它被卷出去的像素
+     */
+    private int topLine;
+    private int topOffset;
+    private int scrollLeft;
+    private int flingLastY;
+    private boolean draggingThumb;
+
+    public HugeFileView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public HugeFileView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        scroller = new OverScroller(context);
+        gestureDetector = new GestureDetector(context, new GestureListener());
+        thumbWidth = SysUtils.dpAsPixels(context, 6);
+        thumbHeight = SysUtils.dpAsPixels(context, 48);
+        gutterPadding = SysUtils.dpAsPixels(context, 8);
+
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        lineNumberPaint.setTypeface(Typeface.MONOSPACE);
+        lineNumberPaint.setTextAlign(Paint.Align.RIGHT);
+        initTheme();
+        setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP
+                , Pref.getInstance(context).getFontSize(), getResources().getDisplayMetrics()));
+    }
+
+    @SuppressWarnings("ResourceType")
+    private void initTheme() {
+        TypedArray a = getContext().obtainStyledAttributes(new int[]{
+                R.attr.textForeground,
+                R.attr.textBackground,
+                R.attr.gutterForeground,
+                R.attr.gutterBackground,
+        });
+        textPaint.setColor(a.getColor(0, Color.BLACK));
+        setBackgroundColor(a.getColor(1, Color.WHITE));
+        lineNumberPaint.setColor(a.getColor(2, Color.BLACK));
+        gutterPaint.setColor(a.getColor(3, Color.LTGRAY));
+        a.recycle();
+        thumbPaint.setColor(lineNumberPaint.getColor());
+        thumbPaint.setAlpha(0x80);
+    }
+
+    public void setTextSize(float size) {
+        textPaint.setTextSize(size);
+        lineNumberPaint.setTextSize(size / 2);
+        Paint.FontMetricsInt fm = textPaint.getFontMetricsInt();
+        lineHeight = fm.descent - fm.ascent;
+        baseline = -fm.ascent;
+        updateGutter();
+        windowCount = 0;
+        invalidate();
+    }
+
+    public void setFile(HugeTextFile file) {
+        this.file = file;
+        topLine = 0;
+        topOffset = 0;
+        scrollLeft = 0;
+        windowCount = 0;
+        scroller.forceFinished(true);
+        updateGutter();
+        invalidate();
+    }
+
+    public HugeTextFile getFile() {
+        return file;
+    }
+
+    /**
+     * @return 1-based line number of the first visible line
+     */
+    public int getFirstVisibleLine() {
+        return topLine + 1;
+    }
+
+    /**
+     * @param line 1-based
+     */
+    public void gotoLine(int line) {
+        scroller.forceFinished(true);
+        topLine = line - 1;
+        topOffset = 0;
+        clampScroll();
+        invalidate();
+    }
+
+    public void gotoTop() {
+        gotoLine(1);
+    }
+
+    public void gotoEnd() {
+        gotoLine(Integer.MAX_VALUE);
+    }
+
+    private int getLineCount() {
+        return file == null ? 0 : file.getLineCount();
+    }
+
+    private int getVisibleLines() {
+        return lineHeight <= 0 ? 1 : getHeight() / lineHeight + 2;
+    }
+
+    private void updateGutter() {
+        int lines = Math.max(getLineCount(), 1);
+        gutterWidth = (int) lineNumberPaint.measureText(Integer.toString(lines * 10)) + gutterPadding;
+    }
+
+    /**
+     * 按像素滚动，不用把整个文件的高度放进一个 int
+     */
+    private void scrollByPixels(int dx, int dy) {
+        scrollLeft += dx;
+        long y = (long) topLine * lineHeight + topOffset + dy;
+        if (lineHeight > 0) {
+            y = Math.max(0, y);
+            topLine = (int) Math.min(Integer.MAX_VALUE, y / lineHeight);
+            topOffset = (int) (y % lineHeight);
+        }
+        clampScroll();
+        invalidate();
+    }
+
+    private void clampScroll() {
+        int maxTop = Math.max(0, getLineCount() - Math.max(1, getHeight() / Math.max(lineHeight, 1)));
+        if (topLine >= maxTop) {
+            topLine = maxTop;
+            topOffset = 0;
+        }
+        if (topLine < 0) {
+            topLine = 0;
+            topOffset = 0;
+        }
+        int maxLeft = Math.max(0, (int) windowWidth - (getWidth() - gutterWidth - gutterPadding));
+        scrollLeft = Math.max(0, Math.min(scrollLeft, maxLeft));
+    }
+
+    /**
+     * 可见行不在缓存里时重新读取，缓存前后各留一屏
+     */
+    private void ensureWindow() {
+        int visible = getVisibleLines();
+        if (windowCount > 0 && topLine >= windowStart && topLine + visible <= windowStart + windowCount)
+            return;
+        int size = visible * WINDOW_SCREENS;
+        if (window.length != size)
+            window = new String[size];
+        windowStart = Math.max(0, topLine - visible);
+        try {
+            windowCount = file.readLines(windowStart, size, window);
+        } catch (IOException e) {
+            DLog.e(e);
+            windowCount = 0;
+        }
+        windowWidth = 0;
+        for (int i = 0; i < windowCount; i++) {
+            windowWidth = Math.max(windowWidth, textPaint.measureText(window[i]));
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        windowCount = 0;
+        clampScroll();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (file == null || lineHeight <= 0)
+            return;
+        ensureWindow();
+
+        int width = getWidth();
+        int height = getHeight();
+        float textX = gutterWidth + gutterPadding - scrollLeft;
+        float numberX = gutterWidth - gutterPadding / 2;
+        int count = getLineCount();
+
+        canvas.save();
+        canvas.clipRect(gutterWidth, 0, width, height);
+        int y = -topOffset;
+        for (int line = topLine; line < count && y < height; line++, y += lineHeight) {
+            int index = line - windowStart;
+            if (index >= 0 && index < windowCount)
+                canvas.drawText(window[index], textX, y + baseline, textPaint);
+        }
+        canvas.restore();
+
+        canvas.drawRect(0, 0, gutterWidth, height, gutterPaint);
+        y = -topOffset;
+        for (int line = topLine; line < count && y < height; line++, y += lineHeight) {
+            canvas.drawText(Integer.toString(line + 1), numberX, y + baseline, lineNumberPaint);
+        }
+
+        // 滚动块的位置按行号比例算，拖动它可以快速跳到任意位置
+        if (count > getVisibleLines()) {
+            int top = getThumbTop();
+            canvas.drawRect(width - thumbWidth, top, width, top + thumbHeight, thumbPaint);
+        }
+    }
+
+    private int getThumbTop() {
+        int count = Math.max(1, getLineCount() - 1);
+        return (int) ((long) topLine * (getHeight() - thumbHeight) / count);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                draggingThumb = getLineCount() > getVisibleLines()
+                        && event.getX() >= getWidth() - thumbWidth * 4;
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (draggingThumb) {
+                    draggingThumb = false;
+                    return true;
+                }
+                break;
+        }
+        if (draggingThumb) {
+            float fraction = (event.getY() - thumbHeight / 2) / Math.max(1, getHeight() - thumbHeight);
+            fraction = Math.max(0, Math.min(1, fraction));
+            scroller.forceFinished(true);
+            topLine = (int) (fraction * (getLineCount() - 1));
+            topOffset = 0;
+            clampScroll();
+            invalidate();
+            return true;
+        }
+        return gestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    @Override
+    public void computeScroll() {
+        if (!scroller.computeScrollOffset())
+            return;
+        int y = scroller.getCurrY();
+        scrollByPixels(0, y - flingLastY);
+        flingLastY = y;
+        postInvalidateOnAnimation();
+    }
+
+    private class GestureListener extends GestureDetector.SimpleOnGestureListener {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            scroller.forceFinished(true);
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            scrollByPixels((int) distanceX, (int) distanceY);
+            return true;
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            // 只记录相对位移，滚动位置本身可能超出 int
+            flingLastY = 0;
+            scroller.fling(0, 0, 0, (int) -velocityY, 0, 0, Integer.MIN_VALUE / 2, Integer.MAX_VALUE / 2);
+            postInvalidateOnAnimation();
+            return true;
+        }
+    }
+}